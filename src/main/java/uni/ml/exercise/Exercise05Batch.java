@@ -0,0 +1,253 @@
+package uni.ml.exercise;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import uni.ml.text.BaggedBayesClassifier;
+import uni.ml.text.BayesTextClassifier;
+import uni.ml.text.ClassificationWriter;
+import uni.ml.text.TextDataset;
+import uni.ml.text.TextDatasetView;
+import uni.ml.util.CompressedFiles;
+
+import static uni.ml.text.TextUtil.keepLettersOnly;
+import static uni.ml.text.TextUtil.filterStopwords;
+
+
+/**
+ * Classifies many test files with a single model, which is trained or loaded once:
+ * the files are classified concurrently by a bounded pool of threads, each file into its own output file.
+ * Each thread reads, classifies and writes its file in blocks of instances.
+ */
+public class Exercise05Batch {
+
+	private static final int BLOCK_SIZE = 4096;
+
+	/**
+	 * The result of classifying one file.
+	 */
+	private static class FileResult {
+		final File input;
+		final int numInstances;
+		final long nanos;
+		final String error;
+
+		FileResult(File input, int numInstances, long nanos, String error) {
+			this.input = input;
+			this.numInstances = numInstances;
+			this.nanos = nanos;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * Lists the input files: all files of a directory or the files matching a glob pattern in the pattern's directory
+	 * (e.g. data/test-*.txt.gz), sorted by name.
+	 */
+	static List<File> listFiles(String input) throws IOException {
+		Path path = Paths.get(input);
+		Path directory = Files.isDirectory(path)? path : path.toAbsolutePath().getParent();
+		String glob = Files.isDirectory(path)? "*" : path.getFileName().toString();
+		List<File> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob)) {
+			for (Path file : stream) {
+				if (Files.isRegularFile(file))
+					files.add(file.toFile());
+			}
+		}
+		Collections.sort(files);
+		return files;
+	}
+
+	/**
+	 * @return The output file of an input file: the file of the same name (without .gz) in the output directory.
+	 */
+	static File outputFile(File input, File outputDirectory) {
+		String name = input.getName();
+		return new File(outputDirectory, name.endsWith(".gz")? name.substring(0, name.length()-3) : name);
+	}
+
+	/**
+	 * Maps the input files to their output files.
+	 * @return The output file of the i-th input file at index i.
+	 * @throws IllegalArgumentException if the output directory contains an input file or two input files
+	 * (e.g. x.txt and x.txt.gz) would be written to the same output file.
+	 */
+	static List<File> outputFiles(List<File> inputs, File outputDirectory) throws IOException {
+		File directory = outputDirectory.getCanonicalFile();
+		Map<File, File> inputsByOutput = new HashMap<>();
+		List<File> outputs = new ArrayList<>();
+		for (File input : inputs) {
+			if (directory.equals(input.getCanonicalFile().getParentFile()))
+				throw new IllegalArgumentException("output directory must differ from the directory of the input files: " + outputDirectory);
+			File output = outputFile(input, directory);
+			File previous = inputsByOutput.put(output, input);
+			if (previous != null)
+				throw new IllegalArgumentException(previous.getName() + " and " + input.getName() + " would both be written to " + output);
+			outputs.add(output);
+		}
+		return outputs;
+	}
+
+	/**
+	 * Classifies one file in blocks of {@value #BLOCK_SIZE} instances and writes out their predictions, so the memory
+	 * of a thread does not depend on the size of the file.
+	 * @param classifier Predicts the class of each instance as index into the labels, must be thread-safe.
+	 */
+	static FileResult classify(Function<TextDatasetView, int[]> classifier, List<String> labels, File input, File output, 
+			Function<String, String> filter) {
+		long start = System.nanoTime();
+		int numInstances = 0;
+		try (BufferedReader r = CompressedFiles.openReader(input);
+				ClassificationWriter writer = new ClassificationWriter(output, labels)) {
+			int numLoaded;
+			do {
+				TextDataset block = new TextDataset();
+				numLoaded = block.loadFromReader(r, filter, BLOCK_SIZE);
+				writer.write(classifier.apply(block));
+				numInstances += numLoaded;
+			} while (numLoaded == BLOCK_SIZE);
+			return new FileResult(input, numInstances, System.nanoTime()-start, null);
+		} catch (IOException | RuntimeException e) {
+			return new FileResult(input, 0, System.nanoTime()-start, e.toString());
+		}
+	}
+
+	public static void main(String[] args) {
+		Exercise05Task01.Options options = new Exercise05Task01.Options(args);
+		boolean load = options.has("load-model");
+		int numInputs = load? 0 : 1; // positional arguments before the input files
+		if (options.numPositional() >= numInputs+2) {
+			try {
+				List<File> inputs = listFiles(options.positional(numInputs));
+				File outputDirectory = new File(options.positional(numInputs+1));
+				List<File> outputs = outputFiles(inputs, outputDirectory);
+				Function<String, String> filter = keepLettersOnly().andThen(filterStopwords());
+				long start = System.nanoTime();
+				Function<TextDatasetView, int[]> classifier;
+				List<String> labels;
+				if (options.has("bag")) {
+					// the ensemble predicts by votes of single word models
+					options.rejectCombination("bag", "load-model", "save-model", "hash-bits", "ngram-order", "prune", "cache");
+					TextDataset trainingSet = new TextDataset();
+					trainingSet.loadFromFile(new File(options.positional(0)), filter);
+					int vocabularySize = options.numPositional() >= 4?
+							Integer.parseInt(options.positional(3)) : Exercise05Task01.DEFAULT_VOCABULARY_SIZE;
+					BaggedBayesClassifier ensemble = Exercise05Task01.ensemble(options, vocabularySize);
+					ensemble.learnBayesText(trainingSet);
+					classifier = ensemble::predictBayesText;
+					labels = ensemble.targetValues();
+					System.out.println("Trained " + ensemble.numMembers() + " bagged members in " + (System.nanoTime()-start)/1000000 
+							+ " ms, vocabulary size: " + ensemble.numFeatures());
+				} else {
+					BayesTextClassifier c;
+					if (load) {
+						c = BayesTextClassifier.loadModel(new File(options.value("load-model")));
+					} else {
+						TextDataset trainingSet = new TextDataset();
+						trainingSet.loadFromFile(new File(options.positional(0)), filter);
+						int vocabularySize = options.numPositional() >= 4?
+								Integer.parseInt(options.positional(3)) : Exercise05Task01.DEFAULT_VOCABULARY_SIZE;
+						c = options.has("hash-bits")? BayesTextClassifier.withFeatureHashing(options.intValue("hash-bits", 0))
+								: new BayesTextClassifier(vocabularySize);
+						c.setNGramOrder(options.intValue("ngram-order", 1));
+						c.learnBayesText(trainingSet);
+						if (options.has("save-model"))
+							c.saveModel(new File(options.value("save-model")));
+					}
+					c.setPruning(options.has("prune"));
+					if (options.has("cache"))
+						c.setPredictionCache(Exercise05Task01.predictionCache(options));
+					classifier = testSet -> {
+						int[] predictions = new int[testSet.numInstances()];
+						c.predictBayesText(testSet, predictions, null);
+						return predictions;
+					};
+					labels = c.targetValues();
+					System.out.println((load? "Loaded" : "Trained") + " model in " + (System.nanoTime()-start)/1000000 + " ms, "
+							+ (c.hashBits() > 0? "hash buckets: " : "vocabulary size: ") + c.numFeatures());
+				}
+
+				if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs())
+					throw new IOException("cannot create output directory " + outputDirectory);
+				int numThreads = Math.max(1, Math.min(options.intValue("threads", Runtime.getRuntime().availableProcessors()), inputs.size()));
+
+				start = System.nanoTime();
+				List<FileResult> results = new ArrayList<>();
+				ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+				try {
+					List<Future<FileResult>> futures = new ArrayList<>();
+					for (int i = 0; i < inputs.size(); i++) {
+						File input = inputs.get(i);
+						File output = outputs.get(i);
+						futures.add(executor.submit(() -> classify(classifier, labels, input, output, filter)));
+					}
+					for (Future<FileResult> future : futures) {
+						results.add(future.get());
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("interrupted while classifying", e);
+				} catch (ExecutionException e) {
+					throw new IllegalStateException(e.getCause());
+				} finally {
+					executor.shutdown();
+				}
+				long nanos = System.nanoTime()-start;
+
+				System.out.println(String.format("%-32s %12s %10s %14s", "file", "instances", "time [ms]", "instances/s"));
+				long numInstances = 0;
+				int numFailed = 0;
+				for (FileResult result : results) {
+					if (result.error != null) {
+						numFailed++;
+						System.out.println(String.format("%-32s failed: %s", result.input.getName(), result.error));
+						continue;
+					}
+					numInstances += result.numInstances;
+					System.out.println(String.format("%-32s %12d %10d %14.0f", result.input.getName(), result.numInstances,
+							result.nanos/1000000, result.numInstances*1e9/Math.max(1, result.nanos)));
+				}
+				System.out.println(String.format("Files: %d (%d failed), threads: %d, instances: %d, total: %d ms, %.0f instances/s",
+						results.size(), numFailed, numThreads, numInstances, nanos/1000000, numInstances*1e9/Math.max(1, nanos)));
+				if (numFailed > 0)
+					System.exit(1);
+				return;
+			} catch (IOException | IllegalArgumentException e) {
+				System.out.println(e.getMessage());
+				System.exit(1);
+			}
+		}
+		System.out.println("Invalid number of arguments, run with: ");
+		System.out.println("[path_to_training_file] [test_directory_or_glob] [output_directory] [vocabulary_size (optional)] [options]");
+		System.out.println("[test_directory_or_glob] [output_directory] --load-model=FILE [options]");
+		System.out.println("Each test file is classified into the file of the same name (without .gz) in the output directory,");
+		System.out.println("which must differ from the directory of the test files. The files are read in blocks of " + BLOCK_SIZE + " lines,");
+		System.out.println("so the memory grows with the number of threads, not with the size of the files.");
+		System.out.println("options:");
+		System.out.println("  --load-model=FILE          classify with the model saved in FILE (see --save-model) instead of training one");
+		System.out.println("  --save-model=FILE          save the trained model to FILE");
+		System.out.println("  --hash-bits=K              hash words into 2^K buckets (feature hashing) instead of building a vocabulary");
+		System.out.println("  --ngram-order=N            use all n-grams of up to N consecutive words as features (N <= 3)");
+		System.out.println("  --bag=N[,SEED]             classify by the votes of N bagged classifiers trained from shared counts (seed of the bootstrap weights, default 0)");
+		System.out.println("  --prune                    skip target values that cannot be predicted anymore (exact, same predictions)");
+		System.out.println("  --cache=N                  classify repeated texts of all files once, caching the labels of the N most recent texts");
+		System.out.println("  --threads=N                number of files classified concurrently (default #cores)");
+		System.exit(1);
+	}
+}
@@ -0,0 +1,1445 @@
+package uni.ml.exercise;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.zip.GZIPOutputStream;
+
+import uni.ml.text.BaggedBayesClassifier;
+import uni.ml.text.BayesTextClassifier;
+import uni.ml.text.ClassificationContext;
+import uni.ml.text.Deduplicator;
+import uni.ml.text.DoubleLogProbabilityTable;
+import uni.ml.text.EarlyStopping;
+import uni.ml.text.Evaluation;
+import uni.ml.text.FeatureSelection;
+import uni.ml.text.InvertedIndex;
+import uni.ml.text.OutOfCoreTrainer;
+import uni.ml.text.LogProbabilityTable;
+import uni.ml.text.MappedTextDataset;
+import uni.ml.text.PredictionCache;
+import uni.ml.text.ScoringKernel;
+import uni.ml.text.TextDataset;
+import uni.ml.text.TextDatasetIndexedView;
+import uni.ml.text.TextDatasetView;
+import uni.ml.text.TextInstance;
+
+import uni.ml.util.CompressedFiles;
+import uni.ml.util.Hashing;
+import uni.ml.util.ParallelGzipInputStream;
+import uni.ml.util.PerfectHashIndex;
+import uni.ml.util.Sampling;
+import uni.ml.util.Stemmer;
+import uni.ml.util.Stopwords;
+import uni.ml.util.StreamSampler;
+import uni.ml.util.WordIndex;
+
+import static uni.ml.text.TextUtil.keepLettersOnly;
+import static uni.ml.text.TextUtil.filterStopwords;
+
+
+/**
+ * Benchmarks and self-checks of the Bayes text classifier.
+ */
+public class Exercise05Benchmark {
+
+	static final int WARMUP_ROUNDS = 20;
+	static final int MEASURED_ROUNDS = 10;
+
+	/**
+	 * @return The number of bytes allocated by the current thread so far.
+	 */
+	static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Reads the non-empty lines of a (plain or gzip compressed) dataset file.
+	 */
+	static List<String> readLines(File file) throws IOException {
+		List<String> lines = new ArrayList<>();
+		try (BufferedReader r = new BufferedReader(new InputStreamReader(CompressedFiles.open(file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = r.readLine()) != null) {
+				if (!line.trim().isEmpty())
+					lines.add(line);
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * Checks that classifying raw lines with a reusable context allocates no objects in the steady state
+	 * and yields the same predictions as classifying the loaded dataset.
+	 * @return true if the check passed.
+	 */
+	static boolean checkAllocation(BayesTextClassifier c, List<String> lines, TextDataset testSet) {
+		int[] expected = c.predictBayesText(testSet);
+		ClassificationContext context = new ClassificationContext();
+		int[] predictions = new int[lines.size()];
+
+		for (int round = 0; round < WARMUP_ROUNDS; round++) {
+			for (int i = 0; i < lines.size(); i++) {
+				predictions[i] = c.predictBayesText(lines.get(i), context);
+			}
+		}
+
+		long calibration = allocatedBytes();
+		long overhead = allocatedBytes() - calibration; // allocated by the measurement itself
+		long start = allocatedBytes();
+		for (int round = 0; round < MEASURED_ROUNDS; round++) {
+			for (int i = 0; i < lines.size(); i++) {
+				predictions[i] = c.predictBayesText(lines.get(i), context);
+			}
+		}
+		long allocated = allocatedBytes() - start - overhead;
+
+		int mismatches = 0;
+		for (int i = 0; i < predictions.length; i++) {
+			if (predictions[i] != expected[i])
+				mismatches++;
+		}
+		long numClassified = (long) MEASURED_ROUNDS*lines.size();
+		System.out.println("Classified lines: " + numClassified);
+		System.out.println("Allocated bytes: " + allocated + " (" + (double) allocated/numClassified + " per line)");
+		System.out.println("Mismatches with dataset classification: " + mismatches);
+		return allocated <= 0 && mismatches == 0;
+	}
+
+	/**
+	 * Classifies the lines repeatedly with a reusable context.
+	 * @return The best throughput in lines per second.
+	 */
+	static double measureThroughput(BayesTextClassifier c, List<String> lines) {
+		ClassificationContext context = new ClassificationContext();
+		double best = 0;
+		for (int round = 0; round < WARMUP_ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < lines.size(); i++) {
+				c.predictBayesText(lines.get(i), context);
+			}
+			best = Math.max(best, lines.size()*1e9/(System.nanoTime()-start));
+		}
+		return best;
+	}
+	
+	/**
+	 * @return The fraction of correctly classified instances or NaN, if the test set is unlabeled.
+	 */
+	static double accuracy(BayesTextClassifier c, TextDataset testSet) {
+		if (!testSet.hasInstances() || testSet.instanceAt(0).label().isEmpty())
+			return Double.NaN;
+		return c.testBayesText(testSet);
+	}
+	
+	/**
+	 * Compares single word features with n-gram features (1 &lt;= n &lt;= order):
+	 * reports training time, model memory, classification throughput and accuracy.
+	 */
+	static boolean compareNGrams(TextDataset trainingSet, TextDataset testSet, List<String> lines, int vocabularySize, int order) {
+		System.out.println(String.format("%-6s %12s %14s %16s %10s", "order", "train [ms]", "model [bytes]", "lines/s", "accuracy"));
+		double unigramThroughput = 0;
+		long unigramBytes = 0;
+		for (int n : new int[] {1, order}) {
+			BayesTextClassifier c = new BayesTextClassifier(vocabularySize);
+			c.setNGramOrder(n);
+			long start = System.nanoTime();
+			c.learnBayesText(trainingSet);
+			long trainingTime = (System.nanoTime()-start)/1000000;
+			double throughput = measureThroughput(c, lines);
+			if (n == 1) {
+				unigramThroughput = throughput;
+				unigramBytes = c.modelBytes();
+			}
+			System.out.println(String.format("%-6d %12d %14d %16.0f %10.4f", n, trainingTime, c.modelBytes(), throughput, accuracy(c, testSet)));
+			if (n > 1) {
+				System.out.println(String.format("overhead of order %d: %.2fx memory, %.2fx time per line", 
+						n, (double) c.modelBytes()/unigramBytes, unigramThroughput/throughput));
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return The heap memory in use after a garbage collection in bytes.
+	 */
+	static long usedHeap() {
+		System.gc();
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+	
+	/**
+	 * Compares a model on the heap with the same model in direct memory and in a memory-mapped file:
+	 * reports the heap used by the model and the throughput and checks that the predictions do not change.
+	 */
+	static boolean compareOffHeap(BayesTextClassifier c, TextDataset testSet, List<String> lines) throws IOException {
+		int[] expected = c.predictBayesText(testSet);
+		File modelFile = File.createTempFile("model", ".bin");
+		File mappedFile = File.createTempFile("model", ".map");
+		modelFile.deleteOnExit();
+		mappedFile.deleteOnExit();
+		c.saveModel(modelFile);
+		BayesTextClassifier.loadModel(modelFile).moveModelOffHeap(mappedFile);
+		
+		// load all models before classifying anything, so that the heap is only measured while models are added
+		String[] storages = {"heap", "direct", "mapped"};
+		BayesTextClassifier[] models = new BayesTextClassifier[storages.length];
+		long[] heapBytes = new long[storages.length];
+		for (int i = 0; i < storages.length; i++) {
+			long usedBefore = usedHeap();
+			models[i] = storages[i].equals("mapped")? BayesTextClassifier.mapModel(mappedFile) : BayesTextClassifier.loadModel(modelFile);
+			if (storages[i].equals("direct"))
+				models[i].moveModelOffHeap();
+			heapBytes[i] = usedHeap() - usedBefore;
+		}
+		
+		System.out.println(String.format("%-8s %14s %14s %16s %10s", "storage", "model [bytes]", "heap [bytes]", "lines/s", "mismatches"));
+		int mismatches = 0;
+		for (int i = 0; i < storages.length; i++) {
+			int[] predictions = models[i].predictBayesText(testSet);
+			int numMismatches = 0;
+			for (int j = 0; j < predictions.length; j++) {
+				if (predictions[j] != expected[j])
+					numMismatches++;
+			}
+			mismatches += numMismatches;
+			System.out.println(String.format("%-8s %14d %14d %16.0f %10d", 
+					storages[i], models[i].modelBytes(), heapBytes[i], measureThroughput(models[i], lines), numMismatches));
+		}
+		return mismatches == 0;
+	}
+	
+	/**
+	 * Compares the double precision model with its quantized versions (32 bit float, 16 bit integer):
+	 * reports table memory, throughput, accuracy and the agreement of predictions and scores with the double model.
+	 * @param minAgreement The minimum fraction of predictions of each quantized model that must agree with the double model.
+	 */
+	static boolean compareQuantization(BayesTextClassifier c, TextDataset testSet, List<String> lines, double minAgreement) throws IOException {
+		int n = testSet.numInstances();
+		int[] expected = new int[n];
+		double[] expectedScores = new double[n];
+		c.predictBayesText(testSet, expected, expectedScores);
+		File modelFile = File.createTempFile("model", ".bin");
+		modelFile.deleteOnExit();
+		c.saveModel(modelFile);
+		
+		System.out.println(String.format("%-6s %14s %16s %10s %10s %14s", "bits", "model [bytes]", "lines/s", "accuracy", "agreement", "max |error|"));
+		boolean passed = true;
+		for (int bits : new int[] {64, 32, 16}) {
+			BayesTextClassifier q = BayesTextClassifier.loadModel(modelFile);
+			if (bits < 64)
+				q.quantizeModel(bits);
+			int[] predictions = new int[n];
+			double[] scores = new double[n];
+			q.predictBayesText(testSet, predictions, scores);
+			int agreeing = 0;
+			double maxError = 0;
+			for (int i = 0; i < n; i++) {
+				if (predictions[i] == expected[i]) {
+					agreeing++;
+					maxError = Math.max(maxError, Math.abs(scores[i]-expectedScores[i]));
+				}
+			}
+			double agreement = n == 0? 1 : (double) agreeing/n;
+			System.out.println(String.format("%-6d %14d %16.0f %10.4f %10.4f %14.3e", 
+					bits, q.modelBytes(), measureThroughput(q, lines), accuracy(q, testSet), agreement, maxError));
+			passed &= agreement >= minAgreement;
+		}
+		return passed;
+	}
+	
+	/**
+	 * Scores random feature sets with a random double table repeatedly.
+	 * @return The best throughput in feature sets per second.
+	 */
+	static double measureScoring(LogProbabilityTable table, int[][] featureSets, double[] scores) {
+		double best = 0;
+		for (int round = 0; round < WARMUP_ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (int[] features : featureSets) {
+				table.score(features, features.length, scores, 0);
+			}
+			best = Math.max(best, featureSets.length*1e9/(System.nanoTime()-start));
+		}
+		return best;
+	}
+	
+	/**
+	 * Compares the scalar scoring kernel with the Vector API kernel (see {@link ScoringKernel}):
+	 * the throughput of scoring alone for several numbers of target values and of classifying the test lines,
+	 * and checks that both kernels compute identical scores.
+	 */
+	static boolean compareScoringKernels(BayesTextClassifier c, TextDataset testSet, List<String> lines) {
+		if (!ScoringKernel.isVectorAvailable()) {
+			System.out.println("Vector API not available, run with Java 17+ and --add-modules jdk.incubator.vector");
+			return false;
+		}
+		Random random = new Random(42);
+		int numFeatures = Exercise05Task01.DEFAULT_VOCABULARY_SIZE;
+		int[][] featureSets = new int[10000][];
+		for (int i = 0; i < featureSets.length; i++) {
+			featureSets[i] = random.ints(0, numFeatures).distinct().limit(100).sorted().toArray();
+		}
+		
+		boolean passed = true;
+		System.out.println(String.format("%-10s %16s %16s %10s %8s", "classes", "scalar [1/s]", "vector [1/s]", "speedup", "equal"));
+		for (int numClasses : new int[] {2, 4, 8, 16, 64}) {
+			double[] logClassProbabilities = random.doubles(numClasses, -3, 0).toArray();
+			double[] logWordProbabilities = random.doubles(numFeatures*numClasses, -15, -3).toArray();
+			LogProbabilityTable table = new DoubleLogProbabilityTable(logClassProbabilities, logWordProbabilities);
+			double[] scalarScores = new double[numClasses];
+			double[] vectorScores = new double[numClasses];
+			boolean equal = true;
+			for (int[] features : featureSets) {
+				ScoringKernel.setVectorized(false);
+				table.score(features, features.length, scalarScores, 0);
+				ScoringKernel.setVectorized(true);
+				table.score(features, features.length, vectorScores, 0);
+				equal &= Arrays.equals(scalarScores, vectorScores);
+			}
+			ScoringKernel.setVectorized(false);
+			double scalar = measureScoring(table, featureSets, scalarScores);
+			ScoringKernel.setVectorized(true);
+			double vector = measureScoring(table, featureSets, vectorScores);
+			System.out.println(String.format("%-10d %16.0f %16.0f %9.2fx %8s", numClasses, scalar, vector, vector/scalar, equal));
+			passed &= equal;
+		}
+		
+		int n = testSet.numInstances();
+		int[] expected = new int[n];
+		double[] expectedScores = new double[n];
+		int[] predictions = new int[n];
+		double[] scores = new double[n];
+		ScoringKernel.setVectorized(false);
+		c.predictBayesText(testSet, expected, expectedScores);
+		double scalar = measureThroughput(c, lines);
+		ScoringKernel.setVectorized(true);
+		c.predictBayesText(testSet, predictions, scores);
+		double vector = measureThroughput(c, lines);
+		boolean equal = Arrays.equals(expected, predictions) && Arrays.equals(expectedScores, scores);
+		System.out.println(String.format("%-10s %16.0f %16.0f %9.2fx %8s", "test set", scalar, vector, vector/scalar, equal));
+		return passed && equal;
+	}
+	
+	/**
+	 * Compares exhaustive scoring with branch-and-bound pruning (see BayesTextClassifier.setPruning()):
+	 * reports the fraction of pruned operations and the throughput and checks that predictions and their scores are identical.
+	 */
+	static boolean comparePruning(BayesTextClassifier c, TextDataset testSet, List<String> lines) {
+		int n = testSet.numInstances();
+		int[] expected = new int[n];
+		double[] expectedScores = new double[n];
+		int[] predictions = new int[n];
+		double[] scores = new double[n];
+		c.setPruning(false);
+		c.predictBayesText(testSet, expected, expectedScores);
+		double exhaustive = measureThroughput(c, lines);
+		c.setPruning(true);
+		c.predictBayesText(testSet, predictions, scores);
+		double pruned = measureThroughput(c, lines);
+		
+		ClassificationContext context = new ClassificationContext();
+		int mismatches = 0;
+		for (int i = 0; i < lines.size(); i++) {
+			c.setPruning(false);
+			int exhaustivePrediction = c.predictBayesText(lines.get(i), context);
+			double exhaustiveScore = context.scores()[exhaustivePrediction];
+			c.setPruning(true);
+			int prediction = c.predictBayesText(lines.get(i), context);
+			if (prediction != exhaustivePrediction || Double.compare(context.scores()[prediction], exhaustiveScore) != 0)
+				mismatches++;
+		}
+		for (int i = 0; i < n; i++) {
+			if (predictions[i] != expected[i] || Double.compare(scores[i], expectedScores[i]) != 0)
+				mismatches++;
+		}
+		System.out.println(String.format("Operations: %d, pruned: %d (%.1f%%)", context.numOperations(), context.numPrunedOperations(), 
+				100.0*context.numPrunedOperations()/Math.max(1, context.numOperations())));
+		System.out.println(String.format("Throughput exhaustive: %.0f lines/s, pruning: %.0f lines/s (%.2fx)", exhaustive, pruned, pruned/exhaustive));
+		System.out.println("Mismatches with exhaustive scoring: " + mismatches);
+		return mismatches == 0;
+	}
+	
+	/**
+	 * Checks that a prediction cache follows the early stopping settings: classifies the test set with a cache,
+	 * switching between all tokens and a small token budget, and compares with the uncached predictions.
+	 */
+	static boolean checkCachedEarlyStopping(BayesTextClassifier c, TextDatasetView testSet) {
+		EarlyStopping budget = new EarlyStopping();
+		budget.setMaxTokens(5);
+		c.setPredictionCache(new PredictionCache(testSet.numInstances()));
+		int mismatches = 0;
+		for (EarlyStopping settings : new EarlyStopping[] {null, budget, null}) {
+			c.setEarlyStopping(settings);
+			int[] expected = c.predictBayesText(testSet);
+			for (int i = 0; i < expected.length; i++) {
+				if (expected[i] >= 0 && !c.targetValues().get(expected[i]).equals(c.classifyBayesText(testSet.instanceAt(i))))
+					mismatches++;
+			}
+		}
+		System.out.println("Cache: " + c.predictionCache());
+		c.setPredictionCache(null);
+		return report("cached early stopping", mismatches == 0);
+	}
+	
+	/**
+	 * Checks that two classifiers of different vocabulary sizes, which share a prediction cache, get their own
+	 * predictions in alternating calls.
+	 */
+	static boolean checkSharedCache(TextDatasetView trainingSet, TextDatasetView testSet, int vocabularySize) {
+		BayesTextClassifier[] classifiers = {new BayesTextClassifier(vocabularySize), new BayesTextClassifier(vocabularySize/10)};
+		PredictionCache cache = new PredictionCache(testSet.numInstances());
+		int[][] expected = new int[classifiers.length][];
+		for (int m = 0; m < classifiers.length; m++) {
+			classifiers[m].learnBayesText(trainingSet);
+			classifiers[m].setPredictionCache(cache);
+			expected[m] = classifiers[m].predictBayesText(testSet);
+		}
+		int mismatches = 0;
+		int differences = 0;
+		for (int i = 0; i < testSet.numInstances(); i++) {
+			for (int m = 0; m < classifiers.length; m++) {
+				String label = classifiers[m].classifyBayesText(testSet.instanceAt(i));
+				if (expected[m][i] >= 0 && !classifiers[m].targetValues().get(expected[m][i]).equals(label))
+					mismatches++;
+			}
+			if (!classifiers[0].classifyBayesText(testSet.instanceAt(i)).equals(classifiers[1].classifyBayesText(testSet.instanceAt(i))))
+				differences++;
+		}
+		System.out.println("Shared cache: " + cache + ", differing predictions of the classifiers: " + differences);
+		return report("shared cache", mismatches == 0);
+	}
+	
+	/**
+	 * Compares exhaustive scoring with anytime classification (see BayesTextClassifier.setEarlyStopping()) for several
+	 * criteria: reports accuracy, agreement with exhaustive scoring, the fraction of scored operations and early stops and
+	 * the mean and 99th percentile latency per line. Checks that the exact criterion alone does not change the predictions.
+	 */
+	static boolean compareEarlyStopping(BayesTextClassifier c, List<String> lines) {
+		String[] names = {"exhaustive", "exact", "margin 20", "margin 10", "margin 5", "margin 2",
+				"100 tokens", "50 tokens", "20 tokens", "20 us", "10 us"};
+		EarlyStopping[] settings = new EarlyStopping[names.length];
+		for (int s = 1; s < names.length; s++) {
+			settings[s] = new EarlyStopping();
+		}
+		settings[2].setMargin(20);
+		settings[3].setMargin(10);
+		settings[4].setMargin(5);
+		settings[5].setMargin(2);
+		settings[6].setMaxTokens(100);
+		settings[7].setMaxTokens(50);
+		settings[8].setMaxTokens(20);
+		settings[9].setTimeBudget(20000);
+		settings[10].setTimeBudget(10000);
+
+		ClassificationContext context = new ClassificationContext();
+		int[] expected = new int[lines.size()];
+		int[] predictions = new int[lines.size()];
+		long[] latencies = new long[lines.size()];
+		boolean exactEqual = true;
+		System.out.println(String.format("%-12s %10s %10s %10s %10s %12s %12s",
+				"stopping", "accuracy", "agreement", "scored", "stopped", "mean [ns]", "p99 [ns]"));
+		for (int s = 0; s < names.length; s++) {
+			c.setEarlyStopping(settings[s]);
+			long best = Long.MAX_VALUE;
+			for (int round = 0; round < WARMUP_ROUNDS; round++) {
+				context.resetOperations();
+				long total = 0;
+				for (int i = 0; i < lines.size(); i++) {
+					long start = System.nanoTime();
+					predictions[i] = c.predictBayesText(lines.get(i), context);
+					latencies[i] = System.nanoTime()-start;
+					total += latencies[i];
+				}
+				best = Math.min(best, total);
+			}
+			if (s == 0)
+				expected = predictions.clone();
+			int numCorrect = 0;
+			int numLabeled = 0;
+			int numAgreeing = 0;
+			for (int i = 0; i < lines.size(); i++) {
+				String label = TextDataset.labelOf(lines.get(i).trim());
+				if (!label.isEmpty()) {
+					numLabeled++;
+					if (predictions[i] >= 0 && c.targetValues().get(predictions[i]).equals(label))
+						numCorrect++;
+				}
+				if (predictions[i] == expected[i])
+					numAgreeing++;
+			}
+			if (s == 1)
+				exactEqual = numAgreeing == lines.size();
+			Arrays.sort(latencies);
+			double scored = s == 0? 1 : 1 - (double) context.numPrunedOperations()/Math.max(1, context.numOperations());
+			System.out.println(String.format("%-12s %10.4f %10.4f %9.1f%% %9.1f%% %12.0f %12d", names[s],
+					numLabeled == 0? Double.NaN : (double) numCorrect/numLabeled, (double) numAgreeing/lines.size(),
+					100*scored, 100.0*context.numEarlyStops()/lines.size(), (double) best/lines.size(),
+					latencies[(int) (0.99*(lines.size()-1))]));
+		}
+		c.setEarlyStopping(null);
+		return report("exact early stopping", exactEqual);
+	}
+
+	/**
+	 * Compares the feature selection strategies for decreasing vocabulary sizes:
+	 * reports model memory, throughput and accuracy of each combination.
+	 */
+	static boolean compareFeatureSelection(TextDataset trainingSet, TextDataset testSet, List<String> lines, int vocabularySize, int order) {
+		System.out.println(String.format("%-20s %8s %12s %14s %16s %10s", "selection", "size", "train [ms]", "model [bytes]", "lines/s", "accuracy"));
+		for (FeatureSelection selection : FeatureSelection.values()) {
+			for (int divisor : new int[] {1, 2, 5, 10}) {
+				BayesTextClassifier c = new BayesTextClassifier(vocabularySize/divisor);
+				c.setNGramOrder(order);
+				c.setFeatureSelection(selection);
+				long start = System.nanoTime();
+				c.learnBayesText(trainingSet);
+				long trainingTime = (System.nanoTime()-start)/1000000;
+				System.out.println(String.format("%-20s %8d %12d %14d %16.0f %10.4f", 
+						selection, c.numFeatures(), trainingTime, c.modelBytes(), measureThroughput(c, lines), accuracy(c, testSet)));
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Trains a classifier out of core with a small memory budget and checks that it equals the classifier trained in memory:
+	 * same target values, vocabulary, probabilities and predictions.
+	 */
+	static boolean compareOutOfCore(TextDataset trainingSet, File trainingPath, TextDataset testSet, int vocabularySize, 
+			long memoryBudget, Function<String, String> filter) throws IOException {
+		long start = System.nanoTime();
+		BayesTextClassifier c = new BayesTextClassifier(vocabularySize);
+		c.learnBayesText(trainingSet);
+		long inMemoryTime = (System.nanoTime()-start)/1000000;
+		
+		start = System.nanoTime();
+		OutOfCoreTrainer trainer = new OutOfCoreTrainer(vocabularySize, filter);
+		trainer.setMemoryBudget(memoryBudget);
+		BayesTextClassifier o = trainer.train(trainingPath);
+		long outOfCoreTime = (System.nanoTime()-start)/1000000;
+		
+		System.out.println("Distinct words: " + trainer.numDistinctWords() + ", spilled runs: " + trainer.numRuns());
+		System.out.println("Training time in memory: " + inMemoryTime + " ms (after loading), out of core: " + outOfCoreTime + " ms");
+		return compareModels(c, o, testSet);
+	}
+	
+	/**
+	 * Counts the shards of the training file in concurrent local processes (standing in for nodes),
+	 * combines the snapshots of the first half of the shards and trains a classifier from the snapshots.
+	 * Checks that it equals the classifier trained in memory.
+	 */
+	static boolean compareMapReduce(TextDataset trainingSet, File trainingPath, TextDataset testSet, int vocabularySize, 
+			int numProcesses, Function<String, String> filter) throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		BayesTextClassifier c = new BayesTextClassifier(vocabularySize);
+		c.learnBayesText(trainingSet);
+		long inMemoryTime = (System.nanoTime()-start)/1000000;
+		
+		start = System.nanoTime();
+		String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+		List<File> snapshots = new ArrayList<>();
+		List<Process> processes = new ArrayList<>();
+		for (int shard = 0; shard < numProcesses; shard++) {
+			File snapshot = File.createTempFile("shard" + shard + "-", ".counts");
+			snapshot.deleteOnExit();
+			snapshots.add(snapshot);
+			processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), Exercise05MapReduce.class.getName(), 
+					"count", trainingPath.getPath(), Integer.toString(shard), Integer.toString(numProcesses), snapshot.getPath())
+					.inheritIO().start());
+		}
+		boolean succeeded = true;
+		for (Process process : processes) {
+			succeeded &= process.waitFor() == 0;
+		}
+		if (!succeeded) {
+			System.out.println("Counting process failed");
+			return false;
+		}
+		long countTime = (System.nanoTime()-start)/1000000;
+		
+		start = System.nanoTime();
+		OutOfCoreTrainer trainer = new OutOfCoreTrainer(vocabularySize, filter);
+		List<File> reduced = snapshots;
+		if (numProcesses > 2) {
+			File combined = File.createTempFile("combined", ".counts");
+			combined.deleteOnExit();
+			trainer.mergeSnapshots(snapshots.subList(0, numProcesses/2), combined);
+			reduced = new ArrayList<>();
+			reduced.add(combined);
+			reduced.addAll(snapshots.subList(numProcesses/2, numProcesses));
+		}
+		BayesTextClassifier o = trainer.train(reduced);
+		long reduceTime = (System.nanoTime()-start)/1000000;
+		for (File snapshot : snapshots) {
+			snapshot.delete();
+		}
+		if (reduced != snapshots)
+			reduced.get(0).delete();
+		
+		System.out.println("Processes: " + numProcesses + ", instances: " + trainer.numInstances() + ", distinct words: " + trainer.numDistinctWords());
+		System.out.println("Training time in memory: " + inMemoryTime + " ms (after loading), counting: " + countTime 
+				+ " ms (with process startup), merging: " + reduceTime + " ms");
+		return compareModels(c, o, testSet);
+	}
+	
+	/**
+	 * Scans the instances with a label for a word, like the classifier does without an index.
+	 * @param excluded The id of an instance to skip or -1.
+	 * @return The number of occurrences nk of the word in the instances with the label.
+	 */
+	static int scanCount(TextDatasetView dataset, String word, String label, int excluded) {
+		int count = 0;
+		for (int i = 0; i < dataset.numInstances(); i++) {
+			TextInstance instance = dataset.instanceAt(i);
+			if (i != excluded && instance.label().equals(label))
+				count += instance.countWord(word);
+		}
+		return count;
+	}
+	
+	/**
+	 * Builds an inverted index of the training set and checks its count table, probability and leave-one-out queries
+	 * against the classifier and against scanning the instances: reports build time, memory and the time per query.
+	 */
+	static boolean compareInvertedIndex(TextDataset trainingSet, int vocabularySize) {
+		BayesTextClassifier c = new BayesTextClassifier(vocabularySize);
+		c.learnBayesText(trainingSet);
+		long start = System.nanoTime();
+		InvertedIndex index = new InvertedIndex(trainingSet);
+		long buildTime = (System.nanoTime()-start)/1000000;
+		System.out.println("Distinct words: " + index.numWords() + ", build time: " + buildTime + " ms, memory: " + index.memoryBytes() + " bytes");
+		
+		boolean equal = true;
+		boolean probabilitiesEqual = true;
+		for (String label : c.targetValues()) {
+			probabilitiesEqual &= index.classProbability(label) == c.classProbabilities().get(label);
+			Map<String, Double> probs = c.conditionalWordProbabilities().get(label);
+			for (Entry<String, Integer> word : c.vocabulary()) {
+				probabilitiesEqual &= index.conditionalProbability(word.getKey(), label, vocabularySize) == probs.get(word.getKey());
+			}
+		}
+		equal &= report("probabilities of the classifier", probabilitiesEqual);
+		
+		// sample words of the vocabulary and instances to leave out
+		Random random = new Random(42);
+		int numSamples = 50;
+		String[] words = new String[numSamples];
+		int[] excluded = new int[numSamples];
+		for (int j = 0; j < numSamples; j++) {
+			words[j] = c.vocabulary().get(random.nextInt(c.vocabulary().size())).getKey();
+			excluded[j] = random.nextInt(trainingSet.numInstances());
+		}
+		boolean postingsEqual = true;
+		boolean leaveOneOutEqual = true;
+		long scanTime = 0;
+		long indexTime = 0;
+		for (int j = 0; j < numSamples; j++) {
+			String label = trainingSet.instanceAt(excluded[j]).label();
+			List<Integer> expected = new ArrayList<>();
+			for (int i = 0; i < trainingSet.numInstances(); i++) {
+				TextInstance instance = trainingSet.instanceAt(i);
+				if (instance.label().equals(label) && instance.countWord(words[j]) > 0)
+					expected.add(i);
+			}
+			postingsEqual &= Arrays.equals(expected.stream().mapToInt(Integer::intValue).toArray(), index.instances(words[j], label));
+			
+			start = System.nanoTime();
+			int count = scanCount(trainingSet, words[j], label, excluded[j]);
+			long numWords = 0;
+			for (int i = 0; i < trainingSet.numInstances(); i++) {
+				TextInstance instance = trainingSet.instanceAt(i);
+				if (i != excluded[j] && instance.label().equals(label))
+					numWords += instance.numWords();
+			}
+			double scanned = (double) (count + 1)/(numWords+vocabularySize);
+			scanTime += System.nanoTime()-start;
+			start = System.nanoTime();
+			double indexed = index.conditionalProbabilityWithout(words[j], label, vocabularySize, excluded[j]);
+			indexTime += System.nanoTime()-start;
+			leaveOneOutEqual &= scanned == indexed;
+		}
+		equal &= report("instances containing a word", postingsEqual);
+		equal &= report("leave-one-out probabilities", leaveOneOutEqual);
+		System.out.println(String.format("Time per leave-one-out query: scan %.1f us, index %.1f us", 
+				scanTime/1e3/numSamples, indexTime/1e3/numSamples));
+		return equal;
+	}
+	
+	/**
+	 * Evaluates a classifier with one and with several threads: checks that the confusion matrices equal the one counted
+	 * from serial predictions and that the accuracy equals testBayesText(), reports the metrics and the throughput.
+	 */
+	static boolean compareEvaluation(BayesTextClassifier c, TextDataset testSet, int numThreads) {
+		int numClasses = c.targetValues().size();
+		int[] predictions = c.predictBayesText(testSet);
+		int[] expected = new int[(numClasses+1)*(numClasses+1)];
+		for (int i = 0; i < predictions.length; i++) {
+			int actual = c.targetValues().indexOf(testSet.instanceAt(i).label());
+			expected[(actual < 0? numClasses : actual)*(numClasses+1) + (predictions[i] < 0? numClasses : predictions[i])]++;
+		}
+		
+		boolean equal = true;
+		Evaluation evaluation = null;
+		for (int threads : numThreads == 1? new int[] {1} : new int[] {1, numThreads}) {
+			double best = 0;
+			for (int round = 0; round < WARMUP_ROUNDS; round++) {
+				evaluation = c.evaluateBayesText(testSet, threads);
+				best = Math.max(best, evaluation.instancesPerSecond());
+			}
+			System.out.println(String.format("Threads: %d, %.0f instances/s", threads, best));
+			for (int i = 0; i <= numClasses; i++) {
+				for (int j = 0; j <= numClasses; j++) {
+					equal &= evaluation.count(i, j) == expected[i*(numClasses+1)+j];
+				}
+			}
+		}
+		System.out.println(evaluation);
+		equal = report("confusion matrix", equal);
+		return report("accuracy", (float) evaluation.accuracy() == c.testBayesText(testSet)) && equal;
+	}
+	
+	/**
+	 * Compares looking up the raw tokens (lower case letter sequences) of lines in a hash table with open addressing
+	 * ({@link WordIndex}) and in the frozen perfect hash index of the same vocabulary, from character and UTF-8 byte ranges:
+	 * checks that all ids are equal and reports the time per lookup and the memory.
+	 */
+	static boolean compareDictionaries(BayesTextClassifier c, List<String> lines) {
+		WordIndex words = new WordIndex(c.vocabulary().size());
+		for (Entry<String, Integer> word : c.vocabulary()) {
+			words.add(word.getKey());
+		}
+		PerfectHashIndex frozen = new PerfectHashIndex(words);
+
+		// all tokens as ranges of one character and one byte array
+		StringBuilder text = new StringBuilder();
+		List<Integer> starts = new ArrayList<>();
+		for (String line : lines) {
+			for (String token : line.toLowerCase().split("[^\\p{L}]+")) {
+				if (!token.isEmpty()) {
+					starts.add(text.length());
+					text.append(token);
+				}
+			}
+		}
+		starts.add(text.length());
+		char[] chars = text.toString().toCharArray();
+		int numTokens = starts.size()-1;
+		int[] charStarts = new int[numTokens+1];
+		int[] byteStarts = new int[numTokens+1];
+		ByteArrayOutputStream utf8 = new ByteArrayOutputStream();
+		for (int t = 0; t < numTokens; t++) {
+			byte[] token = new String(chars, starts.get(t), starts.get(t+1)-starts.get(t)).getBytes(StandardCharsets.UTF_8);
+			utf8.write(token, 0, token.length);
+			byteStarts[t+1] = utf8.size();
+			charStarts[t+1] = starts.get(t+1);
+		}
+		byte[] bytes = utf8.toByteArray();
+
+		long expectedSum = 0;
+		int numKnown = 0;
+		boolean equal = true;
+		for (int t = 0; t < numTokens; t++) {
+			int expected = words.get(chars, charStarts[t], charStarts[t+1]-charStarts[t]);
+			expectedSum += expected;
+			if (expected >= 0)
+				numKnown++;
+			equal &= frozen.get(chars, charStarts[t], charStarts[t+1]-charStarts[t]) == expected
+					&& frozen.get(bytes, byteStarts[t], byteStarts[t+1]-byteStarts[t]) == expected
+					&& frozen.get(new String(chars, charStarts[t], charStarts[t+1]-charStarts[t])) == expected;
+		}
+		System.out.println(String.format("Tokens: %d, in vocabulary: %.1f%%", numTokens, 100.0*numKnown/numTokens));
+		System.out.println(String.format("%-22s %14s %14s", "dictionary", "ns/lookup", "memory [bytes]"));
+		String[] names = {"open addressing", "perfect hash (chars)", "perfect hash (UTF-8)"};
+		for (int d = 0; d < names.length; d++) {
+			long best = Long.MAX_VALUE;
+			for (int round = 0; round < WARMUP_ROUNDS; round++) {
+				long sum = 0;
+				long start = System.nanoTime();
+				for (int t = 0; t < numTokens; t++) {
+					if (d == 0)
+						sum += words.get(chars, charStarts[t], charStarts[t+1]-charStarts[t]);
+					else if (d == 1)
+						sum += frozen.get(chars, charStarts[t], charStarts[t+1]-charStarts[t]);
+					else
+						sum += frozen.get(bytes, byteStarts[t], byteStarts[t+1]-byteStarts[t]);
+				}
+				best = Math.min(best, System.nanoTime()-start);
+				equal &= sum == expectedSum;
+			}
+			System.out.println(String.format("%-22s %14.1f %14d", names[d], (double) best/numTokens,
+					d == 0? words.memoryBytes() : frozen.memoryBytes()));
+		}
+		return report("ids", equal);
+	}
+
+	/**
+	 * The stopword check before the stopwords were precompiled: stems the word and looks it up in both sets.
+	 */
+	static boolean isStemmedStopwordBySets(String word) {
+		if (word.length() < 2 || (word.charAt(0) >= '0' && word.charAt(0) <= '9'))
+			return true;
+		String stemmed = Stopwords.stemString(word);
+		return Stopwords.stopWordSet.contains(stemmed) || Stopwords.stemmedStopWordSet.contains(stemmed)
+				|| Stopwords.stopWordSet.contains(word) || Stopwords.stemmedStopWordSet.contains(word);
+	}
+
+	/**
+	 * Compares the stopword check by stemming and four set lookups with the precompiled stopword index,
+	 * for Strings and character ranges: checks that the precomputed stems are up to date and that all tokens
+	 * (letters of space separated words) of the lines are classified the same and reports the time per check.
+	 */
+	static boolean compareStopwords(List<String> lines) {
+		long start = System.nanoTime();
+		Set<String> stemmed = Stopwords.stemStringSet(Stopwords.stopWordSet);
+		System.out.println(String.format("Stemming the stopwords at startup: %.2f ms (avoided)", (System.nanoTime()-start)/1e6));
+		boolean equal = report("precomputed stems", stemmed.equals(Stopwords.stemmedStopWordSet));
+
+		List<String> tokens = new ArrayList<>();
+		for (String line : lines) {
+			for (String word : line.split(" ")) {
+				String letters = word.replaceAll("[^a-zA-Z]+", "");
+				if (!letters.isEmpty())
+					tokens.add(letters);
+			}
+		}
+		boolean equalChecks = true;
+		int numStopwords = 0;
+		Stemmer stemmer = new Stemmer();
+		for (String token : tokens) {
+			boolean expected = isStemmedStopwordBySets(token);
+			if (expected)
+				numStopwords++;
+			equalChecks &= Stopwords.isStemmedStopword(token) == expected
+					&& Stopwords.isStemmedStopword(token.toCharArray(), 0, token.length(), stemmer) == expected;
+		}
+		System.out.println(String.format("Tokens: %d, stopwords: %.1f%%", tokens.size(), 100.0*numStopwords/tokens.size()));
+
+		char[][] chars = new char[tokens.size()][];
+		long[] hashes = new long[tokens.size()];
+		for (int t = 0; t < chars.length; t++) {
+			chars[t] = tokens.get(t).toCharArray();
+			hashes[t] = Hashing.hash64(chars[t], 0, chars[t].length);
+		}
+		System.out.println(String.format("%-30s %12s", "check", "ns/token"));
+		String[] names = {"stemming, 4 set lookups", "index (String)", "index (chars)", "index (chars, hashed)"};
+		for (int m = 0; m < names.length; m++) {
+			long best = Long.MAX_VALUE;
+			for (int round = 0; round < WARMUP_ROUNDS; round++) {
+				int count = 0;
+				start = System.nanoTime();
+				for (int t = 0; t < chars.length; t++) {
+					boolean stopword;
+					if (m == 0)
+						stopword = isStemmedStopwordBySets(tokens.get(t));
+					else if (m == 1)
+						stopword = Stopwords.isStemmedStopword(tokens.get(t));
+					else if (m == 2)
+						stopword = Stopwords.isStemmedStopword(chars[t], 0, chars[t].length, stemmer);
+					else
+						stopword = Stopwords.isStemmedStopword(chars[t], 0, chars[t].length, hashes[t], stemmer);
+					if (stopword)
+						count++;
+				}
+				best = Math.min(best, System.nanoTime()-start);
+				equalChecks &= count == numStopwords;
+			}
+			System.out.println(String.format("%-30s %12.1f", names[m], (double) best/chars.length));
+		}
+		return report("stopword checks", equalChecks) && equal;
+	}
+
+	/**
+	 * Compares loading a dataset eagerly with mapping it lazily: checks that all instances and labels are the same and
+	 * reports the time of opening the dataset and of training on a random sample with the number of tokenized instances.
+	 * @param fraction The size of the sample relative to the dataset.
+	 * @param cacheSize The maximum number of cached instances of the lazy dataset.
+	 */
+	static boolean compareLazyDataset(File file, TextDataset testSet, int vocabularySize, double fraction, int cacheSize,
+			Function<String, String> filter) throws IOException {
+		System.out.println(String.format("%-8s %12s %16s %12s %10s", "dataset", "open [ms]", "sample train [ms]", "tokenized", "accuracy"));
+		int[] sample = Sampling.randomSplit((float) fraction, new MappedTextDataset(file, filter, 0).numInstances()).first();
+		int[] predictions = null;
+		boolean equal = true;
+		for (String name : new String[] {"eager", "lazy"}) {
+			long start = System.nanoTime();
+			TextDatasetView dataset;
+			if (name.equals("eager")) {
+				TextDataset loaded = new TextDataset();
+				loaded.loadFromFile(file, filter);
+				dataset = loaded;
+			} else {
+				dataset = new MappedTextDataset(file, filter, cacheSize);
+			}
+			long openTime = System.nanoTime()-start;
+			start = System.nanoTime();
+			BayesTextClassifier c = new BayesTextClassifier(vocabularySize);
+			c.learnBayesText(new TextDatasetIndexedView(dataset, sample));
+			long trainTime = System.nanoTime()-start;
+			String tokenized = dataset instanceof MappedTextDataset? Long.toString(((MappedTextDataset) dataset).numTokenized())
+					: Integer.toString(dataset.numInstances());
+			System.out.println(String.format("%-8s %12d %16d %12s %10.4f", name, openTime/1000000, trainTime/1000000, tokenized,
+					c.testBayesText(testSet)));
+			if (predictions == null)
+				predictions = c.predictBayesText(testSet);
+			else
+				equal &= report("predictions", Arrays.equals(predictions, c.predictBayesText(testSet)));
+		}
+
+		TextDataset loaded = new TextDataset();
+		loaded.loadFromFile(file, filter);
+		MappedTextDataset mapped = new MappedTextDataset(file, filter, 0);
+		boolean equalInstances = loaded.numInstances() == mapped.numInstances();
+		boolean equalLabels = equalInstances;
+		for (int i = 0; equalInstances && i < loaded.numInstances(); i++) {
+			equalLabels &= loaded.instanceAt(i).label().equals(mapped.labelAt(i));
+			equalInstances &= loaded.instanceAt(i).label().equals(mapped.instanceAt(i).label())
+					&& loaded.instanceAt(i).words().equals(mapped.instanceAt(i).words());
+		}
+		equal &= report("instances", equalInstances);
+		return report("labels", equalLabels) && equal;
+	}
+
+	/**
+	 * Draws many samples of a small stream with different seeds and compares the frequency with which each item
+	 * is sampled with its inclusion probability.
+	 * @param probabilities The inclusion probability of each item.
+	 * @return The largest deviation from the expected frequency in standard deviations (binomial).
+	 */
+	static double maxInclusionDeviation(Function<Long, StreamSampler<Integer>> samplers, double[] probabilities, int runs) {
+		int[] frequencies = new int[probabilities.length];
+		for (int run = 0; run < runs; run++) {
+			StreamSampler<Integer> sampler = samplers.apply((long) run);
+			for (int i = 0; i < probabilities.length; i++) {
+				sampler.offer(i);
+			}
+			for (int i : sampler.sample()) {
+				frequencies[i]++;
+			}
+		}
+		double deviation = 0;
+		for (int i = 0; i < probabilities.length; i++) {
+			double expected = runs*probabilities[i];
+			deviation = Math.max(deviation, Math.abs(frequencies[i] - expected)/Math.sqrt(expected*(1-probabilities[i])));
+		}
+		return deviation;
+	}
+
+	/**
+	 * Checks the streaming samplers: the inclusion frequencies of uniform, weighted and stratified samples of a small stream,
+	 * that a seed reproduces a sample and that sampling while loading yields the instances of a full load at the sampled
+	 * positions. Reports loading time and accuracy of models trained on the full file and on the samples.
+	 * @param sampleSize The number of sampled lines (per label for the stratified sample).
+	 */
+	static boolean compareSampling(File file, TextDataset testSet, int vocabularySize, int sampleSize, Function<String, String> filter)
+			throws IOException {
+		int n = 100;
+		int k = 10;
+		int runs = 20000;
+		double tolerance = 5; // standard deviations
+		double[] uniform = new double[n];
+		Arrays.fill(uniform, (double) k/n);
+		double deviation = maxInclusionDeviation(seed -> StreamSampler.uniform(k, seed), uniform, runs);
+		System.out.println(String.format("uniform: max. deviation of inclusion frequencies %.2f sigma", deviation));
+		boolean equal = report("uniform inclusion", deviation < tolerance);
+
+		// weights 1 and 3, sample of one item: P(i) = w_i/sum(w)
+		double[] weighted = new double[n];
+		for (int i = 0; i < n; i++) {
+			weighted[i] = (i < n/2? 1.0 : 3.0)/(n/2*4.0);
+		}
+		deviation = maxInclusionDeviation(seed -> StreamSampler.weighted(1, i -> i < n/2? 1.0 : 3.0, seed), weighted, runs*k);
+		System.out.println(String.format("weighted: max. deviation of inclusion frequencies %.2f sigma", deviation));
+		equal &= report("weighted inclusion", deviation < tolerance);
+
+		// strata of 20 and 80 items, k of each
+		double[] stratified = new double[n];
+		for (int i = 0; i < n; i++) {
+			stratified[i] = i%5 == 0? (double) k/(n/5) : (double) k/(n-n/5);
+		}
+		deviation = maxInclusionDeviation(seed -> StreamSampler.stratified(k, i -> i%5 == 0, seed), stratified, runs);
+		System.out.println(String.format("stratified: max. deviation of inclusion frequencies %.2f sigma", deviation));
+		equal &= report("stratified inclusion", deviation < tolerance);
+
+		TextDataset loaded = new TextDataset();
+		long start = System.nanoTime();
+		loaded.loadFromFile(file, filter);
+		long loadTime = System.nanoTime()-start;
+		BayesTextClassifier full = new BayesTextClassifier(vocabularySize);
+		full.learnBayesText(loaded);
+		System.out.println(String.format("%-12s %10s %12s %12s %10s", "sample", "load [ms]", "instances", "labels", "accuracy"));
+		System.out.println(String.format("%-12s %10d %12d %12s %10.4f", "none", loadTime/1000000, loaded.numInstances(),
+				labelCounts(loaded), full.testBayesText(testSet)));
+
+		List<String> labels = new ArrayList<>();
+		for (int i = 0; i < loaded.numInstances(); i++) {
+			if (!labels.contains(loaded.instanceAt(i).label()))
+				labels.add(loaded.instanceAt(i).label());
+		}
+		String rareLabel = labels.get(labels.size()-1);
+		boolean equalInstances = true;
+		boolean reproducible = true;
+		for (String name : new String[] {"uniform", "weighted", "stratified"}) {
+			long[] firstPositions = null;
+			for (int run = 0; run < 2; run++) {
+				StreamSampler<String> sampler;
+				if (name.equals("uniform"))
+					sampler = StreamSampler.uniform(sampleSize, 42);
+				else if (name.equals("weighted")) // oversample one label
+					sampler = StreamSampler.weighted(sampleSize, line -> TextDataset.labelOf(line).equals(rareLabel)? 4 : 1, 42);
+				else
+					sampler = StreamSampler.stratified(sampleSize, TextDataset::labelOf, 42);
+				TextDataset sample = new TextDataset();
+				start = System.nanoTime();
+				sample.loadSampleFromFile(file, filter, sampler);
+				loadTime = System.nanoTime()-start;
+				long[] positions = sampler.positions();
+				if (run == 0) {
+					firstPositions = positions;
+					BayesTextClassifier c = new BayesTextClassifier(Math.min(vocabularySize, distinctWords(sample)));
+					c.learnBayesText(sample);
+					System.out.println(String.format("%-12s %10d %12d %12s %10.4f", name, loadTime/1000000, sample.numInstances(),
+							labelCounts(sample), c.testBayesText(testSet)));
+					for (int i = 0; i < positions.length; i++) {
+						TextInstance expected = loaded.instanceAt((int) positions[i]);
+						equalInstances &= sample.instanceAt(i).label().equals(expected.label())
+								&& sample.instanceAt(i).words().equals(expected.words());
+					}
+					equalInstances &= positions.length == sample.numInstances();
+				} else {
+					reproducible &= Arrays.equals(positions, firstPositions);
+				}
+			}
+		}
+		equal &= report("sampled instances", equalInstances);
+		return report("reproducible samples", reproducible) && equal;
+	}
+
+	/**
+	 * @return The number of distinct words of a dataset.
+	 */
+	static int distinctWords(TextDatasetView dataset) {
+		Set<String> words = new HashSet<>();
+		for (int i = 0; i < dataset.numInstances(); i++) {
+			words.addAll(dataset.instanceAt(i).words());
+		}
+		return words.size();
+	}
+
+	/**
+	 * @return The number of instances of each label, e.g. "A:12 B:30".
+	 */
+	static String labelCounts(TextDatasetView dataset) {
+		Map<String, Integer> counts = new TreeMap<>();
+		for (int i = 0; i < dataset.numInstances(); i++) {
+			counts.merge(dataset.instanceAt(i).label(), 1, Integer::sum);
+		}
+		StringBuilder s = new StringBuilder();
+		for (Entry<String, Integer> entry : counts.entrySet()) {
+			s.append(s.length() == 0? "" : " ").append(entry.getKey()).append(':').append(entry.getValue());
+		}
+		return s.toString();
+	}
+
+	/**
+	 * Compares a bagged ensemble trained from a shared count table with a single classifier and with the same number of
+	 * classifiers trained from scratch on the explicit bootstrap replicates (voting like the ensemble, ties to the first value):
+	 * reports training time, classification time and accuracy.
+	 * @param numMembers The number of bagged classifiers.
+	 * @return true, if the ensemble is at least as accurate as the single classifier (up to 1%).
+	 */
+	static boolean compareBagging(TextDataset trainingSet, TextDataset testSet, int vocabularySize, int numMembers) {
+		System.out.println(String.format("%-24s %12s %14s %10s", "classifier", "train [ms]", "classify [ms]", "accuracy"));
+		long start = System.nanoTime();
+		BayesTextClassifier single = new BayesTextClassifier(vocabularySize);
+		single.learnBayesText(trainingSet);
+		long trainTime = System.nanoTime()-start;
+		start = System.nanoTime();
+		double singleAccuracy = single.testBayesText(testSet);
+		System.out.println(String.format("%-24s %12d %14d %10.4f", "single", trainTime/1000000, (System.nanoTime()-start)/1000000,
+				singleAccuracy));
+
+		start = System.nanoTime();
+		BaggedBayesClassifier ensemble = new BaggedBayesClassifier(vocabularySize, numMembers, 42);
+		ensemble.learnBayesText(trainingSet);
+		long ensembleTrainTime = System.nanoTime()-start;
+		start = System.nanoTime();
+		double ensembleAccuracy = ensemble.testBayesText(testSet);
+		System.out.println(String.format("%-24s %12d %14d %10.4f", "ensemble (shared counts)", ensembleTrainTime/1000000,
+				(System.nanoTime()-start)/1000000, ensembleAccuracy));
+
+		start = System.nanoTime();
+		BayesTextClassifier[] members = new BayesTextClassifier[numMembers];
+		for (int m = 0; m < numMembers; m++) {
+			members[m] = new BayesTextClassifier(vocabularySize);
+			members[m].learnBayesText(ensemble.replicate(trainingSet, m));
+		}
+		trainTime = System.nanoTime()-start;
+		start = System.nanoTime();
+		List<String> values = ensemble.targetValues();
+		int[] votes = new int[testSet.numInstances()*values.size()];
+		for (BayesTextClassifier member : members) {
+			int[] predictions = member.predictBayesText(testSet);
+			for (int i = 0; i < predictions.length; i++) {
+				votes[i*values.size() + values.indexOf(member.targetValues().get(predictions[i]))]++;
+			}
+		}
+		int correct = 0;
+		for (int i = 0; i < testSet.numInstances(); i++) {
+			int best = 0;
+			for (int v = 1; v < values.size(); v++) {
+				if (votes[i*values.size()+v] > votes[i*values.size()+best])
+					best = v;
+			}
+			if (values.get(best).equals(testSet.instanceAt(i).label()))
+				correct++;
+		}
+		System.out.println(String.format("%-24s %12d %14d %10.4f", "ensemble (from scratch)", trainTime/1000000,
+				(System.nanoTime()-start)/1000000, (double) correct/testSet.numInstances()));
+		System.out.println(String.format("Members: %d, training speedup: %.1f, model: %d bytes", numMembers,
+				(double) trainTime/ensembleTrainTime, ensemble.modelBytes()));
+		return ensembleAccuracy >= singleAccuracy - 0.01;
+	}
+
+	/**
+	 * Adds exact and near-duplicates of random instances to a copy of the training set and removes the duplicates again:
+	 * reports the numbers of removed instances, the recall of the added duplicates, the time and the accuracy
+	 * of classifiers trained with and without deduplication.
+	 * @param fraction The number of added exact and of added near-duplicates relative to the size of the training set.
+	 */
+	static boolean compareDeduplication(TextDataset trainingSet, TextDataset testSet, int vocabularySize, double fraction, 
+			int numThreads) {
+		Deduplicator deduplicator = new Deduplicator();
+		deduplicator.setNumThreads(numThreads);
+		TextDatasetView original = deduplicator.deduplicate(trainingSet);
+		System.out.println("Duplicates in the training set: " + deduplicator.numExactDuplicates() + " exact, " 
+				+ deduplicator.numNearDuplicates() + " near");
+		
+		// the original instances, followed by exact duplicates and near-duplicates (a single word replaced)
+		TextDataset dataset = new TextDataset();
+		for (TextInstance instance : original.instances()) {
+			dataset.addInstance(instance);
+		}
+		int numOriginal = dataset.numInstances();
+		int numAdded = (int) (fraction*numOriginal);
+		Random random = new Random(42);
+		for (int j = 0; j < numAdded; j++) {
+			TextInstance instance = original.instanceAt(random.nextInt(numOriginal));
+			dataset.addInstance(new TextInstance(instance.label(), new ArrayList<>(instance.words())));
+		}
+		for (int j = 0; j < numAdded; j++) {
+			TextInstance instance = original.instanceAt(random.nextInt(numOriginal));
+			List<String> words = new ArrayList<>(instance.words());
+			words.set(words.size()/2, "x" + random.nextInt(1000000));
+			dataset.addInstance(new TextInstance(instance.label(), words));
+		}
+		
+		long start = System.nanoTime();
+		TextDatasetView deduplicated = deduplicator.deduplicate(dataset);
+		long time = (System.nanoTime()-start)/1000000;
+		// count the kept instances of each part (originals, exact and near-duplicates)
+		Map<TextInstance, Integer> indices = new IdentityHashMap<>();
+		for (int i = 0; i < dataset.numInstances(); i++) {
+			indices.put(dataset.instanceAt(i), i);
+		}
+		int[] numKept = new int[3];
+		for (TextInstance instance : deduplicated.instances()) {
+			int i = indices.get(instance);
+			numKept[i < numOriginal? 0 : i < numOriginal+numAdded? 1 : 2]++;
+		}
+		System.out.println("Instances: " + dataset.numInstances() + " (" + numAdded + " exact and " + numAdded + " near-duplicates added)");
+		System.out.println("Removed: " + deduplicator.numExactDuplicates() + " exact, " + deduplicator.numNearDuplicates() 
+				+ " near-duplicates in " + time + " ms with " + numThreads + " threads");
+		double exactRecall = 1 - (double) numKept[1]/numAdded;
+		double nearRecall = 1 - (double) numKept[2]/numAdded;
+		System.out.println(String.format("Recall: exact %.4f, near %.4f, original instances kept: %d of %d", 
+				exactRecall, nearRecall, numKept[0], numOriginal));
+		
+		BayesTextClassifier c = new BayesTextClassifier(vocabularySize);
+		c.learnBayesText(dataset);
+		double accuracy = accuracy(c, testSet);
+		c.learnBayesText(deduplicated);
+		System.out.println(String.format("Accuracy: with duplicates %.4f, deduplicated %.4f", accuracy, accuracy(c, testSet)));
+		return exactRecall == 1 && nearRecall >= 0.9 && numKept[0] == numOriginal;
+	}
+	
+	/**
+	 * Writes lines to a file, repeating them a number of times.
+	 * @param compressed Compresses the file with gzip.
+	 * @param memberSize The number of uncompressed bytes after which a new gzip member begins, 0 for a single member.
+	 */
+	static void writeLines(List<String> lines, int copies, File file, boolean compressed, int memberSize) throws IOException {
+		try (OutputStream out = new FileOutputStream(file)) {
+			OutputStream member = compressed? new GZIPOutputStream(out, 1 << 16) : out;
+			long memberBytes = 0;
+			for (int copy = 0; copy < copies; copy++) {
+				for (String line : lines) {
+					byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+					member.write(bytes);
+					memberBytes += bytes.length;
+					if (compressed && memberSize > 0 && memberBytes >= memberSize) {
+						((GZIPOutputStream) member).finish();
+						member = new GZIPOutputStream(out, 1 << 16);
+						memberBytes = 0;
+					}
+				}
+			}
+			if (compressed)
+				((GZIPOutputStream) member).finish();
+		}
+	}
+	
+	/**
+	 * Reads a file line by line.
+	 * @return A hash of all lines in order.
+	 */
+	static long hashLines(File file, int numThreads) throws IOException {
+		long hash = 0;
+		try (BufferedReader r = new BufferedReader(new InputStreamReader(CompressedFiles.open(file, numThreads), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = r.readLine()) != null) {
+				hash = 31*hash + line.hashCode();
+			}
+		}
+		return hash;
+	}
+	
+	/**
+	 * Compares reading and loading a plain text file with a single-member gzip file (decompressed sequentially)
+	 * and a multi-member gzip file (decompressed in parallel): reports the throughput of reading lines
+	 * and the time of loading a dataset with tokenization and checks that the contents are the same.
+	 * @param copies The number of times the lines are repeated in the files.
+	 * @param memberSize The uncompressed size of the members of the multi-member file.
+	 * @param numThreads The number of threads decompressing in parallel.
+	 */
+	static boolean compareCompression(List<String> lines, int copies, int memberSize, int numThreads, 
+			Function<String, String> filter) throws IOException {
+		File plain = File.createTempFile("dataset", ".txt");
+		File single = File.createTempFile("dataset", ".txt.gz");
+		File multi = File.createTempFile("dataset", ".txt.gz");
+		File[] files = {plain, single, multi};
+		String[] names = {"plain", "gzip", "gzip members"};
+		try {
+			writeLines(lines, copies, plain, false, 0);
+			writeLines(lines, copies, single, true, 0);
+			writeLines(lines, copies, multi, true, memberSize);
+			try (ParallelGzipInputStream in = new ParallelGzipInputStream(FileChannel.open(multi.toPath()), 
+					numThreads, ParallelGzipInputStream.DEFAULT_CHUNK_SIZE)) {
+				System.out.println("Threads: " + numThreads + ", chunks of the multi-member file: " + in.numChunks());
+			}
+			System.out.println(String.format("%-14s %12s %10s %14s %12s", "input", "size [bytes]", "threads", "read [MB/s]", "load [ms]"));
+			long expectedHash = hashLines(plain, 1);
+			int expectedInstances = -1;
+			int expectedWords = -1;
+			boolean equal = true;
+			for (int f = 0; f < files.length; f++) {
+				int[] threadCounts = f == 0 || numThreads == 1? new int[] {1} : new int[] {1, numThreads};
+				for (int threads : threadCounts) {
+					// best of several rounds to warm up
+					double best = 0;
+					for (int round = 0; round < 5; round++) {
+						long start = System.nanoTime();
+						equal &= hashLines(files[f], threads) == expectedHash;
+						best = Math.max(best, plain.length()/1e6/((System.nanoTime()-start)/1e9));
+					}
+					String loadTime = "";
+					if (threads == threadCounts[threadCounts.length-1]) {
+						long start = System.nanoTime();
+						TextDataset dataset = new TextDataset();
+						dataset.loadFromFile(files[f], filter);
+						loadTime = Long.toString((System.nanoTime()-start)/1000000); // decompressed with all cores
+						if (expectedInstances < 0) {
+							expectedInstances = dataset.numInstances();
+							expectedWords = dataset.numWords();
+						}
+						equal &= dataset.numInstances() == expectedInstances && dataset.numWords() == expectedWords;
+					}
+					System.out.println(String.format("%-14s %12d %10d %14.1f %12s", names[f], files[f].length(), threads, best, loadTime));
+				}
+			}
+			return report("contents", equal);
+		} finally {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+	}
+	
+	/**
+	 * Checks that two classifiers have the same target values, vocabulary, probabilities and predictions.
+	 */
+	static boolean compareModels(BayesTextClassifier c, BayesTextClassifier o, TextDataset testSet) {
+		boolean equal = true;
+		equal &= report("target values", c.targetValues().equals(o.targetValues()));
+		equal &= report("vocabulary", c.vocabulary().equals(o.vocabulary()));
+		equal &= report("class probabilities", c.classProbabilities().equals(o.classProbabilities()));
+		equal &= report("conditional word probabilities", c.conditionalWordProbabilities().equals(o.conditionalWordProbabilities()));
+		equal &= report("predictions", Arrays.equals(c.predictBayesText(testSet), o.predictBayesText(testSet)));
+		return equal;
+	}
+	
+	private static boolean report(String name, boolean equal) {
+		System.out.println(String.format("%-32s %s", name, equal? "equal" : "DIFFERENT"));
+		return equal;
+	}
+	
+	public static void main(String[] args) {
+		Exercise05Task01.Options options = new Exercise05Task01.Options(args);
+		if (options.numPositional() >= 3) {
+			try {
+				String mode = options.positional(0);
+				Function<String, String> filter = keepLettersOnly().andThen(filterStopwords());
+				TextDataset trainingSet = new TextDataset();
+				trainingSet.loadFromFile(new File(options.positional(1)), filter);
+				File testPath = new File(options.positional(2));
+				TextDataset testSet = new TextDataset();
+				testSet.loadFromFile(testPath, filter);
+
+				int vocabularySize = options.numPositional() >= 4? Integer.parseInt(options.positional(3)) : Exercise05Task01.DEFAULT_VOCABULARY_SIZE;
+				List<String> lines = readLines(testPath);
+
+				boolean passed;
+				BayesTextClassifier c;
+				switch (mode) {
+				case "allocation":
+					c = new BayesTextClassifier(vocabularySize);
+					c.setNGramOrder(options.intValue("ngram-order", 1));
+					c.learnBayesText(trainingSet);
+					passed = checkAllocation(c, lines, testSet);
+					break;
+				case "offheap":
+					c = options.has("hash-bits")? BayesTextClassifier.withFeatureHashing(options.intValue("hash-bits", 0)) 
+							: new BayesTextClassifier(vocabularySize);
+					c.setNGramOrder(options.intValue("ngram-order", 1));
+					c.learnBayesText(trainingSet);
+					passed = compareOffHeap(c, testSet, lines);
+					break;
+				case "quantization":
+					c = options.has("hash-bits")? BayesTextClassifier.withFeatureHashing(options.intValue("hash-bits", 0)) 
+							: new BayesTextClassifier(vocabularySize);
+					c.setNGramOrder(options.intValue("ngram-order", 1));
+					c.learnBayesText(trainingSet);
+					passed = compareQuantization(c, testSet, lines, options.intValue("min-agreement", 99)/100.0);
+					break;
+				case "outofcore":
+					passed = compareOutOfCore(trainingSet, new File(options.positional(1)), testSet, vocabularySize, 
+							(long) options.intValue("memory-budget", 256) << 10, filter);
+					break;
+				case "mapreduce":
+					passed = compareMapReduce(trainingSet, new File(options.positional(1)), testSet, vocabularySize, 
+							options.intValue("processes", 4), filter);
+					break;
+				case "index":
+					passed = compareInvertedIndex(trainingSet, vocabularySize);
+					break;
+				case "gzip":
+					passed = compareCompression(readLines(new File(options.positional(1))), options.intValue("copies", 8), 
+							options.intValue("member-size", 256) << 10, options.intValue("threads", Runtime.getRuntime().availableProcessors()), filter);
+					break;
+				case "dedup":
+					passed = compareDeduplication(trainingSet, testSet, vocabularySize, options.intValue("duplicates", 10)/100.0, 
+							options.intValue("threads", Runtime.getRuntime().availableProcessors()));
+					break;
+				case "evaluation":
+					c = new BayesTextClassifier(vocabularySize);
+					c.learnBayesText(trainingSet);
+					passed = compareEvaluation(c, testSet, options.intValue("threads", Runtime.getRuntime().availableProcessors()));
+					break;
+				case "stopwords":
+					passed = compareStopwords(readLines(new File(options.positional(1))));
+					break;
+				case "dictionary":
+					c = new BayesTextClassifier(vocabularySize);
+					c.learnBayesText(trainingSet);
+					passed = compareDictionaries(c, lines);
+					break;
+				case "lazy":
+					passed = compareLazyDataset(new File(options.positional(1)), testSet, vocabularySize, 
+							options.intValue("sample", 10)/100.0, options.intValue("cache", 65536), filter);
+					break;
+				case "sampling":
+					passed = compareSampling(new File(options.positional(1)), testSet, vocabularySize, options.intValue("sample", 500), filter);
+					break;
+				case "bagging":
+					passed = compareBagging(trainingSet, testSet, vocabularySize, options.intValue("members", 10));
+					break;
+				case "selection":
+					passed = compareFeatureSelection(trainingSet, testSet, lines, vocabularySize, options.intValue("ngram-order", 1));
+					break;
+				case "pruning":
+					c = options.has("hash-bits")? BayesTextClassifier.withFeatureHashing(options.intValue("hash-bits", 0)) 
+							: new BayesTextClassifier(vocabularySize);
+					c.setNGramOrder(options.intValue("ngram-order", 1));
+					c.learnBayesText(trainingSet);
+					passed = comparePruning(c, testSet, lines);
+					break;
+				case "anytime":
+					c = new BayesTextClassifier(vocabularySize);
+					c.learnBayesText(trainingSet);
+					passed = compareEarlyStopping(c, lines);
+					passed &= checkCachedEarlyStopping(c, testSet);
+					passed &= checkSharedCache(trainingSet, testSet, vocabularySize);
+					break;
+				case "vector":
+					c = new BayesTextClassifier(vocabularySize);
+					c.learnBayesText(trainingSet);
+					passed = compareScoringKernels(c, testSet, lines);
+					break;
+				case "ngrams":
+					passed = compareNGrams(trainingSet, testSet, lines, vocabularySize, options.intValue("ngram-order", 2));
+					break;
+				default:
+					System.out.println("Unknown mode: " + mode);
+					return;
+				}
+				System.out.println(passed? "PASSED" : "FAILED");
+				if (!passed)
+					System.exit(1);
+			} catch (IOException | InterruptedException e) {
+				System.out.println(e.getMessage());
+			}
+		} else {
+			System.out.println("Invalid number of arguments, run with: ");
+			System.out.println("[mode] [path_to_training_file] [path_to_test_file] [vocabulary_size (optional)] [options]");
+			System.out.println("modes:");
+			System.out.println("  allocation                 check that classifying raw lines allocates no objects");
+			System.out.println("  ngrams                     compare memory, throughput and accuracy of n-gram features (--ngram-order=N) with single words");
+			System.out.println("  outofcore                  check that out-of-core training (--memory-budget=KB) yields the same model as learnBayesText");
+			System.out.println("  mapreduce                  check that counting shards in local processes (--processes=N) and merging yields the same model");
+			System.out.println("  index                      check count and leave-one-out probability queries of an inverted index of the training set");
+			System.out.println("  gzip                       compare reading plain text with sequential and parallel gzip decompression (--copies=N, --member-size=KB, --threads=N)");
+			System.out.println("  dedup                      check that added exact and near-duplicates (--duplicates=PERCENT) are removed");
+			System.out.println("  evaluation                 check the confusion matrix of the parallel evaluation (--threads=N) and report its metrics");
+			System.out.println("  stopwords                  compare the stopword check by stemming and set lookups with the precompiled stopword index");
+			System.out.println("  dictionary                 compare token lookups in an open addressing hash table and the frozen perfect hash dictionary");
+			System.out.println("  lazy                       compare loading the training file with mapping it lazily and training on a sample (--sample=PERCENT, --cache=N)");
+			System.out.println("  sampling                   check the uniform, weighted and stratified stream samplers and train on samples (--sample=N, default 500)");
+			System.out.println("  bagging                    compare a bagged ensemble (--members=N) trained from shared counts with a single classifier and bagging from scratch");
+			System.out.println("  selection                  compare feature selection strategies (frequency, mutual information, chi-square) for smaller vocabularies");
+			System.out.println("  pruning                    compare exhaustive scoring with exact branch-and-bound pruning");
+			System.out.println("  anytime                    compare accuracy and latency of anytime classification with early stopping and exhaustive scoring, check the (shared) cache");
+			System.out.println("  vector                     compare the scalar and the Vector API scoring kernel (Java 17+, --add-modules jdk.incubator.vector)");
+			System.out.println("  quantization               compare accuracy and throughput of 32 and 16 bit models with the double model (--min-agreement=PERCENT)");
+			System.out.println("  offheap                    compare heap usage and throughput of a model on the heap, in direct memory and memory-mapped");
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package uni.ml.exercise;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import uni.ml.text.BayesTextClassifier;
+import uni.ml.text.OutOfCoreTrainer;
+
+import static uni.ml.text.TextUtil.keepLettersOnly;
+import static uni.ml.text.TextUtil.filterStopwords;
+
+
+/**
+ * The steps of distributed training, each run as a separate process:
+ * counting a shard of the training file (map), combining count snapshots and training a model from snapshots (reduce).
+ */
+public class Exercise05MapReduce {
+
+	static final int DEFAULT_MEMORY_BUDGET = 64; // MB
+
+	/**
+	 * @return The snapshot files given by the positional arguments from index 'from' on.
+	 */
+	private static List<File> files(Exercise05Task01.Options options, int from) {
+		List<File> files = new ArrayList<>();
+		for (int i = from; i < options.numPositional(); i++) {
+			files.add(new File(options.positional(i)));
+		}
+		return files;
+	}
+
+	public static void main(String[] args) {
+		Exercise05Task01.Options options = new Exercise05Task01.Options(args);
+		String command = options.numPositional() > 0? options.positional(0) : "";
+		try {
+			int vocabularySize = command.equals("train") && options.numPositional() >= 2?
+					Integer.parseInt(options.positional(1)) : Exercise05Task01.DEFAULT_VOCABULARY_SIZE;
+			OutOfCoreTrainer trainer = new OutOfCoreTrainer(vocabularySize, keepLettersOnly().andThen(filterStopwords()));
+			trainer.setMemoryBudget((long) options.intValue("memory-budget", DEFAULT_MEMORY_BUDGET) << 20);
+			if (command.equals("count") && options.numPositional() == 5) {
+				trainer.countShard(new File(options.positional(1)), Integer.parseInt(options.positional(2)),
+						Integer.parseInt(options.positional(3)), new File(options.positional(4)));
+				System.out.println("Instances: " + trainer.numInstances() + ", distinct words: " + trainer.numDistinctWords());
+				return;
+			} else if (command.equals("combine") && options.numPositional() >= 3) {
+				trainer.mergeSnapshots(files(options, 2), new File(options.positional(1)));
+				System.out.println("Instances: " + trainer.numInstances() + ", distinct words: " + trainer.numDistinctWords());
+				return;
+			} else if (command.equals("train") && options.numPositional() >= 4) {
+				BayesTextClassifier c = trainer.train(files(options, 3));
+				c.saveModel(new File(options.positional(2)));
+				System.out.println("Instances: " + trainer.numInstances() + ", vocabulary size: " + c.numFeatures());
+				return;
+			}
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+		}
+		System.out.println("Invalid arguments, run with one of: ");
+		System.out.println("count [path_to_training_file] [shard] [number_of_shards] [snapshot_file] [options]");
+		System.out.println("combine [output_snapshot_file] [snapshot_files...] [options]");
+		System.out.println("train [vocabulary_size] [model_file] [snapshot_files...] [options]");
+		System.out.println("The snapshot files must be given in the order of their shards.");
+		System.out.println("options:");
+		System.out.println("  --memory-budget=MB         spill word counts to disk above MB megabytes (default 64)");
+		System.exit(1);
+	}
+}
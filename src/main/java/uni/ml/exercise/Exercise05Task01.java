@@ -8,10 +8,25 @@ package uni.ml.exercise;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 
+import uni.ml.text.BaggedBayesClassifier;
 import uni.ml.text.BayesTextClassifier;
+import uni.ml.text.ClassificationPipeline;
+import uni.ml.text.ClassificationWriter;
+import uni.ml.text.Deduplicator;
+import uni.ml.text.EarlyStopping;
+import uni.ml.text.FeatureSelection;
+import uni.ml.text.OutOfCoreTrainer;
+import uni.ml.text.PredictionCache;
 //import uni.ml.text.TextDatasetSplit;
 import uni.ml.text.TextDataset;
+import uni.ml.text.TextDatasetView;
+import uni.ml.util.StreamSampler;
 
 import static uni.ml.text.TextUtil.keepLettersOnly;
 import static uni.ml.text.TextUtil.filterStopwords;
@@ -60,40 +75,307 @@ public class Exercise05Task01 {
 */	
 	static final int DEFAULT_VOCABULARY_SIZE = 5000;
 	
+	/**
+	 * Command line options of the form --name or --name=value.
+	 */
+	static class Options {
+		private List<String> positional = new ArrayList<>();
+		private Map<String, String> named = new HashMap<>();
+		
+		Options(String[] args) {
+			for (String arg : args) {
+				if (arg.startsWith("--")) {
+					int split = arg.indexOf('=');
+					if (split < 0)
+						named.put(arg.substring(2), "");
+					else
+						named.put(arg.substring(2, split), arg.substring(split+1));
+				} else {
+					positional.add(arg);
+				}
+			}
+		}
+		
+		int numPositional() {
+			return positional.size();
+		}
+		
+		String positional(int index) {
+			return positional.get(index);
+		}
+		
+		boolean has(String name) {
+			return named.containsKey(name);
+		}
+		
+		String value(String name) {
+			return named.get(name);
+		}
+		
+		int intValue(String name, int defaultValue) {
+			String value = named.get(name);
+			return value == null || value.isEmpty()? defaultValue : Integer.parseInt(value);
+		}
+		
+		/**
+		 * Rejects an option combined with any of the other options.
+		 * @throws IllegalArgumentException if the option and one of the others are given.
+		 */
+		void rejectCombination(String name, String... others) {
+			if (!has(name))
+				return;
+			for (String other : others) {
+				if (has(other))
+					throw new IllegalArgumentException("--" + name + " cannot be combined with --" + other);
+			}
+		}
+	}
+	
+	/**
+	 * Creates the sampler of the training lines selected by the options: --sample=N lines drawn uniformly,
+	 * N lines per label with --stratified or N lines weighted by their labels with --label-weights=L:W,...
+	 * @throws IllegalArgumentException if N is not positive or both --stratified and --label-weights are given.
+	 */
+	static StreamSampler<String> sampler(Options options) {
+		options.rejectCombination("stratified", "label-weights");
+		int size = options.intValue("sample", 0);
+		if (size <= 0)
+			throw new IllegalArgumentException("--sample requires a positive number of lines: --sample=" + options.value("sample"));
+		long seed = options.has("seed")? Long.parseLong(options.value("seed")) : 0;
+		if (options.has("stratified"))
+			return StreamSampler.stratified(size, TextDataset::labelOf, seed);
+		if (options.has("label-weights")) {
+			Map<String, Double> weights = new HashMap<>();
+			for (String entry : options.value("label-weights").split(",")) {
+				int colon = entry.indexOf(':');
+				if (colon < 0)
+					throw new IllegalArgumentException("label weight must be given as LABEL:WEIGHT: " + entry);
+				weights.put(entry.substring(0, colon), Double.parseDouble(entry.substring(colon+1)));
+			}
+			return StreamSampler.weighted(size, line -> weights.getOrDefault(TextDataset.labelOf(line), 1.0), seed);
+		}
+		return StreamSampler.uniform(size, seed);
+	}
+	
+	/**
+	 * Creates the bagged ensemble of --bag=N[,SEED]: N members with bootstrap weights drawn from the seed (default 0).
+	 */
+	static BaggedBayesClassifier ensemble(Options options, int vocabularySize) {
+		String[] values = options.value("bag").split(",");
+		if (values[0].isEmpty() || values.length > 2)
+			throw new IllegalArgumentException("--bag must be given as --bag=N[,SEED]: " + options.value("bag"));
+		return new BaggedBayesClassifier(vocabularySize, Integer.parseInt(values[0]), 
+				values.length > 1? Long.parseLong(values[1]) : 0);
+	}
+	
+	/**
+	 * Creates the prediction cache of --cache=N for N texts.
+	 */
+	static PredictionCache predictionCache(Options options) {
+		int capacity = options.intValue("cache", 0);
+		if (capacity <= 0)
+			throw new IllegalArgumentException("--cache requires a positive number of texts: --cache=" + options.value("cache"));
+		return new PredictionCache(capacity);
+	}
+	
+	/**
+	 * @return The output file, classification.txt in case of a directory.
+	 */
+	static File outputFile(File path) {
+		return path.isDirectory()? new File(path, "classification.txt") : path;
+	}
+	
+	/**
+	 * Trains a bagged ensemble, classifies the test file with it and writes out the predictions.
+	 */
+	static void classifyBagged(BaggedBayesClassifier ensemble, String trainingSetName, TextDatasetView examples, File testPath, 
+			File outputPath, Function<String, String> filter) throws IOException {
+		ensemble.learnBayesText(examples);
+		System.out.println("TrainingSet: " + trainingSetName);
+		System.out.println("Bagged Members: " + ensemble.numMembers());
+		System.out.println("Vocabulary Size: " + ensemble.numFeatures());
+		System.out.println("Target Values: " + ensemble.targetValues());
+		System.out.println("Size TrainingSet: " + examples.numInstances());
+		
+		TextDataset testSet = new TextDataset();
+		testSet.loadFromFile(testPath, filter);
+		System.out.println("TestSet: " + testSet.name());
+		System.out.println("Size TestSet: " + testSet.numInstances());
+		try (ClassificationWriter writer = new ClassificationWriter(outputPath, ensemble.targetValues())) {
+			writer.write(ensemble.predictBayesText(testSet));
+		}
+	}
+	
 	public static void main(String[] args) {
+		Options options = new Options(args);
 		TextDataset trainingSet = new TextDataset();
 		TextDataset testSet = new TextDataset();
-		if (args.length >= 3) {
+		if (options.numPositional() >= 3) {
 			try {
-				// load and process training- and test-dataset
-				trainingSet.loadFromFile(new File(args[0]), keepLettersOnly().andThen(filterStopwords()));
-				testSet.loadFromFile(new File(args[1]), keepLettersOnly().andThen(filterStopwords()));
-				
-				// train
-				int vocabularySize = args.length >= 4? Integer.parseInt(args[3]) : DEFAULT_VOCABULARY_SIZE;
-				BayesTextClassifier c = new BayesTextClassifier(vocabularySize);
-				c.learnBayesText(trainingSet);
+				options.rejectCombination("quantize", "off-heap");
+				// out-of-core training supports a vocabulary of single words chosen by frequency only
+				options.rejectCombination("out-of-core", "hash-bits", "ngram-order", "feature-selection", "dedup", "sample");
+				// the pipeline writes the predicted labels only, without keeping the test set for an evaluation
+				options.rejectCombination("pipeline", "scores", "posteriors", "top-k", "evaluate");
+				// the cache holds predicted labels, which do not depend on the timing
+				options.rejectCombination("cache", "scores", "posteriors", "top-k", "time-budget");
+				// the ensemble predicts by votes of single word models
+				options.rejectCombination("bag", "out-of-core", "hash-bits", "ngram-order", "feature-selection", "save-model", 
+						"prune", "early-stop", "max-tokens", "time-budget", "quantize", "off-heap", "evaluate", "scores", 
+						"posteriors", "top-k", "pipeline", "cache");
+				Function<String, String> filter = keepLettersOnly().andThen(filterStopwords());
+				File trainingPath = new File(options.positional(0));
+				int vocabularySize = options.numPositional() >= 4? Integer.parseInt(options.positional(3)) : DEFAULT_VOCABULARY_SIZE;
+				BayesTextClassifier c;
+				int trainingSetSize;
+				if (options.has("out-of-core")) {
+					// stream the training file, spilling counts to disk
+					OutOfCoreTrainer trainer = new OutOfCoreTrainer(vocabularySize, filter);
+					trainer.setMemoryBudget((long) options.intValue("out-of-core", 64) << 20);
+					c = trainer.train(trainingPath);
+					trainingSet.setName(trainingPath.getName());
+					trainingSetSize = trainer.numInstances();
+				} else {
+					// load and process training-dataset (or a sample of it)
+					if (options.has("sample"))
+						trainingSet.loadSampleFromFile(trainingPath, filter, sampler(options));
+					else
+						trainingSet.loadFromFile(trainingPath, filter);
+					
+					TextDatasetView examples = trainingSet;
+					if (options.has("dedup")) {
+						Deduplicator deduplicator = new Deduplicator();
+						deduplicator.setThreshold(options.intValue("dedup", 80)/100.0);
+						examples = deduplicator.deduplicate(trainingSet);
+						System.out.println("Removed Duplicates: " + deduplicator.numExactDuplicates() + " exact, " 
+								+ deduplicator.numNearDuplicates() + " near");
+					}
+					if (options.has("bag")) {
+						classifyBagged(ensemble(options, vocabularySize), trainingSet.name(), examples, 
+								new File(options.positional(1)), outputFile(new File(options.positional(2))), filter);
+						return;
+					}
+					
+					// train
+					c = options.has("hash-bits")? BayesTextClassifier.withFeatureHashing(options.intValue("hash-bits", 0)) 
+							: new BayesTextClassifier(vocabularySize);
+					c.setNGramOrder(options.intValue("ngram-order", 1));
+					if (options.has("feature-selection"))
+						c.setFeatureSelection(FeatureSelection.valueOf(options.value("feature-selection").toUpperCase().replace('-', '_')));
+					c.learnBayesText(examples);
+					trainingSetSize = examples.numInstances();
+				}
+				if (options.has("save-model"))
+					c.saveModel(new File(options.value("save-model")));
+				c.setPruning(options.has("prune"));
+				if (options.has("early-stop") || options.has("max-tokens") || options.has("time-budget")) {
+					EarlyStopping earlyStopping = new EarlyStopping();
+					if (options.has("early-stop") && !options.value("early-stop").isEmpty())
+						earlyStopping.setMargin(Double.parseDouble(options.value("early-stop")));
+					if (options.has("max-tokens"))
+						earlyStopping.setMaxTokens(options.intValue("max-tokens", 0));
+					if (options.has("time-budget"))
+						earlyStopping.setTimeBudget(options.intValue("time-budget", 0)*1000L);
+					c.setEarlyStopping(earlyStopping);
+				}
+				if (options.has("cache"))
+					c.setPredictionCache(predictionCache(options));
+				if (options.has("quantize"))
+					c.quantizeModel(options.intValue("quantize", 16));
+				if (options.has("off-heap"))
+					c.moveModelOffHeap(options.value("off-heap").isEmpty()? null : new File(options.value("off-heap")));
 				
 				System.out.println("TrainingSet: " + trainingSet.name());
-				System.out.println("Vocabulary Size: " + c.vocabulary().size());
+				System.out.println((c.hashBits() > 0? "Hash Buckets: " : "Vocabulary Size: ") + c.numFeatures());
 				System.out.println("Target Values: " + c.targetValues());
-				System.out.println("TestSet: " + testSet.name());
-
-				System.out.println("Size TrainingSet: " + trainingSet.numInstances());
-				System.out.println("Size TestSet: " + testSet.numInstances());
+				System.out.println("Size TrainingSet: " + trainingSetSize);
 				
-				// write out predictions
-				File outputPath = new File(args[2]);
-				outputPath = outputPath.isDirectory()? new File(outputPath, "classification.txt") : outputPath;
-				c.classifyBayesText(testSet).saveToFile(outputPath, false);
+				File testPath = new File(options.positional(1));
+				File outputPath = outputFile(new File(options.positional(2)));
 				
+				if (options.has("pipeline")) {
+					// stream the test set through concurrent read/tokenize/classify/write stages
+					ClassificationPipeline pipeline = new ClassificationPipeline(c, filter);
+					pipeline.setTokenizerThreads(options.intValue("tokenizer-threads", pipeline.tokenizerThreads()));
+					pipeline.setClassifierThreads(options.intValue("classifier-threads", pipeline.classifierThreads()));
+					pipeline.setQueueCapacity(options.intValue("queue-capacity", pipeline.queueCapacity()));
+					long numInstances = pipeline.run(testPath, outputPath);
+					
+					System.out.println("TestSet: " + testPath.getName());
+					System.out.println("Size TestSet: " + numInstances);
+				} else {
+					// load and process test-dataset
+					testSet.loadFromFile(testPath, filter);
+					System.out.println("TestSet: " + testSet.name());
+					System.out.println("Size TestSet: " + testSet.numInstances());
+					if (options.has("evaluate"))
+						System.out.println(c.evaluateBayesText(testSet, options.intValue("evaluate", Runtime.getRuntime().availableProcessors())));
+					
+					// write out predictions
+					int[] predictions = new int[testSet.numInstances()];
+					double[] scores = options.has("scores")? new double[predictions.length] : null;
+					double[] probabilities = null;
+					int k = options.intValue("top-k", 0);
+					int[] topLabels = null;
+					c.predictBayesText(testSet, predictions, scores);
+					if (options.has("posteriors") || k > 0) {
+						// posteriors of all target values and their ranks
+						int numClasses = c.targetValues().size();
+						int rankSize = Math.max(k, 1);
+						double[] posteriors = new double[predictions.length*numClasses];
+						int[] ranks = new int[predictions.length*rankSize];
+						c.posteriorsBayesText(testSet, posteriors, ranks, rankSize);
+						if (options.has("posteriors")) {
+							probabilities = new double[predictions.length];
+							for (int i = 0; i < predictions.length; i++) {
+								probabilities[i] = predictions[i] < 0? 0 : posteriors[i*numClasses+predictions[i]];
+							}
+						}
+						topLabels = k > 0? ranks : null;
+					}
+					try (ClassificationWriter writer = new ClassificationWriter(outputPath, c.targetValues())) {
+						writer.write(predictions, scores, probabilities, topLabels, k, 0, predictions.length);
+					}
+				}
+				if (c.predictionCache() != null)
+					System.out.println("Prediction Cache: " + c.predictionCache());
 
 			} catch (IOException e) {
 				System.out.println(e.getMessage());				
+			} catch (IllegalArgumentException e) {
+				System.out.println(e.getMessage());
+				System.exit(1);
 			}
 		} else {
 			System.out.println("Invalid number of arguments, run with: ");
-			System.out.println("[path_to_training_file] [path_to_test_file] [path_to_output_file] [vocabulary_size (optional)]");
+			System.out.println("[path_to_training_file] [path_to_test_file] [path_to_output_file] [vocabulary_size (optional)] [options]");
+			System.out.println("options:");
+			System.out.println("  --hash-bits=K              hash words into 2^K buckets (feature hashing) instead of building a vocabulary");
+			System.out.println("  --ngram-order=N            use all n-grams of up to N consecutive words as features (N <= 3)");
+			System.out.println("  --feature-selection=S      choose the vocabulary by frequency (default), mutual-information or chi-square");
+			System.out.println("  --out-of-core[=MB]         stream the training file, spilling word counts to disk above MB megabytes (default 64), single words only");
+			System.out.println("  --sample=N                 train on N training lines sampled uniformly in one pass over the file");
+			System.out.println("  --stratified               sample N lines of each label instead (not with --label-weights)");
+			System.out.println("  --label-weights=L:W,...    sample lines with probabilities proportional to the weights of their labels (default 1)");
+			System.out.println("  --seed=S                   seed of the sample (default 0)");
+			System.out.println("  --dedup[=THRESHOLD]        remove duplicate and near-duplicate training instances (similarity >= THRESHOLD percent)");
+			System.out.println("  --bag=N[,SEED]             classify by the votes of N bagged classifiers trained from shared counts (seed of the bootstrap weights, default 0)");
+			System.out.println("  --save-model=FILE          save the trained model to FILE");
+			System.out.println("  --prune                    skip target values that cannot be predicted anymore (exact, same predictions)");
+			System.out.println("  --early-stop[=MARGIN]      stop scoring a text once the prediction cannot change (or leads by MARGIN in log space)");
+			System.out.println("  --max-tokens=N             classify each text by its first N tokens (enables early stopping)");
+			System.out.println("  --time-budget=MICROS       stop reading the tokens of a text after MICROS microseconds (enables early stopping)");
+			System.out.println("  --cache=N                  classify repeated texts once, caching the labels of the N most recent texts (not with --scores, --posteriors, --top-k or --time-budget)");
+			System.out.println("  --quantize[=BITS]          store the log probabilities with 32 (float) or 16 (default) bits");
+			System.out.println("  --off-heap[=FILE]          store the trained model in direct memory or a memory-mapped FILE instead of the heap (not with --quantize)");
+			System.out.println("  --evaluate[=THREADS]       print the confusion matrix, per-class precision, recall and F1 for a labeled test file");
+			System.out.println("  --scores                   append the logarithmic posterior of each prediction to the output");
+			System.out.println("  --posteriors               append the posterior probability of each prediction to the output (after the --scores column)");
+			System.out.println("  --top-k=K                  append the K most probable labels of each instance to the output");
+			System.out.println("  --pipeline                 classify the test file in concurrent read/tokenize/classify/write stages (labels only, not with --scores, --posteriors, --top-k or --evaluate)");
+			System.out.println("  --tokenizer-threads=N      number of tokenizer threads in pipeline mode");
+			System.out.println("  --classifier-threads=N     number of classifier threads in pipeline mode");
+			System.out.println("  --queue-capacity=N         maximum number of lines queued between two pipeline stages (at most 4*N in flight)");
 		}
 	}
 }
@@ -0,0 +1,96 @@
+package uni.ml.text;
+
+/**
+ * Anytime search for the target value with maximum posterior (see {@link EarlyStopping}).
+ * The features are scored for all target values in blocks, in the order in which they occur in the text.
+ * After each block the lead of the best partial score over the second best is compared with the criteria:
+ * the exact bound is the sum of the spreads (max over v minus min over v of ln(P(wk|v))) of the remaining features,
+ * which limits how much any difference of two scores can still change.
+ * <p>
+ * Like the bound of {@link PruningScorer}, it includes the worst case rounding error of the remaining additions.
+ */
+class AnytimeScorer {
+
+	private static final int BLOCK_SIZE = 8;
+	private static final double EPSILON = Math.ulp(1.0);
+
+	final LogProbabilityTable table;
+	private final double[] spreads; // max over v minus min over v of ln(P(wk|v)) per feature
+
+	AnytimeScorer(LogProbabilityTable table) {
+		this.table = table;
+		spreads = new double[table.numFeatures()];
+		for (int k = 0; k < spreads.length; k++) {
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			for (int v = 0; v < table.numClasses(); v++) {
+				min = Math.min(min, table.logWordProbability(k, v));
+				max = Math.max(max, table.logWordProbability(k, v));
+			}
+			spreads[k] = max-min;
+		}
+	}
+
+	/**
+	 * Computes the target value with maximum score, stopping early.
+	 * @param context The distinct feature indices in the order of the text. Counts the (skipped) operations and early stops.
+	 * @param scores Receives the partial score of the v-th target value at index offset+v.
+	 * @return The index of the maximum partial score (the first one in case of ties) or -1, if no score exceeds negative infinity.
+	 */
+	int argMax(ClassificationContext context, EarlyStopping stopping, double[] scores, int offset) {
+		int[] features = context.features;
+		int numFeatures = context.numFeatures;
+		int numClasses = table.numClasses();
+		// bounds[i]: sum of the spreads of the features at [i, numFeatures)
+		double[] bounds = context.bounds(numFeatures+1);
+		bounds[numFeatures] = 0;
+		for (int i = numFeatures-1; i >= 0; i--) {
+			bounds[i] = bounds[i+1] + spreads[features[i]];
+		}
+		for (int v = 0; v < numClasses; v++) {
+			scores[offset+v] = table.logClassProbability(v);
+		}
+
+		int i = 0;
+		while (i < numFeatures) {
+			int best = -1;
+			int second = -1;
+			for (int v = 0; v < numClasses; v++) {
+				double score = scores[offset+v];
+				if (best < 0 || score > scores[offset+best]) {
+					second = best;
+					best = v;
+				} else if (second < 0 || score > scores[offset+second]) {
+					second = v;
+				}
+			}
+			double lead = second < 0? Double.POSITIVE_INFINITY : scores[offset+best] - scores[offset+second];
+			double tolerance = 2*(numFeatures-i+2)*EPSILON*(Math.abs(scores[offset+best]) + Math.abs(scores[offset+Math.max(second, 0)]) + bounds[i]);
+			if (lead > bounds[i] + tolerance || lead > stopping.margin())
+				break;
+			int to = Math.min(i+BLOCK_SIZE, numFeatures);
+			for (int v = 0; v < numClasses; v++) {
+				double score = scores[offset+v];
+				for (int j = i; j < to; j++) {
+					score += table.logWordProbability(features[j], v);
+				}
+				scores[offset+v] = score;
+			}
+			i = to;
+		}
+		context.numOperations += (long) numFeatures*numClasses;
+		context.numPrunedOperations += (long) (numFeatures-i)*numClasses;
+		if (i < numFeatures)
+			context.numEarlyStops++;
+
+		int best = -1;
+		double bestScore = Double.NEGATIVE_INFINITY;
+		for (int v = 0; v < numClasses; v++) {
+			if (scores[offset+v] > bestScore) {
+				best = v;
+				bestScore = scores[offset+v];
+			}
+		}
+		return best;
+	}
+}
@@ -0,0 +1,320 @@
+package uni.ml.text;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import uni.ml.util.Hashing;
+import uni.ml.util.PerfectHashIndex;
+import uni.ml.util.WordIndex;
+
+/**
+ * A bagged ensemble of Bayes text classifiers (see {@link BayesTextClassifier}), trained from a shared count table.
+ * <p>
+ * Instead of drawing each bootstrap replicate and training a member on it, every instance is counted once and
+ * weighted for each member by a Poisson(1) distributed number of copies (the limit of drawing |examples| times with
+ * replacement). The members share the vocabulary of the most frequent words of the whole training set, which is
+ * chosen in a first pass, and the weighted counts of its words are accumulated for all members in a second pass.
+ * Their log probabilities are stored in one table with a row of |members|*|targetValues| entries per word: a text is
+ * tokenized and looked up once and all members are scored in a single sweep over its features. The ensemble predicts
+ * the target value with the most votes of the members, ties are broken by the sum of the members' normalized posteriors.
+ * <p>
+ * The weights are derived from the seed and the index of an instance, so the members do not depend on the order
+ * of the counting. Training needs |distinct words| + |vocabulary|*|targetValues|*|members| counts.
+ */
+public class BaggedBayesClassifier {
+
+	private final int vocabularySize;
+	private final int numMembers;
+	private final long seed;
+	private List<String> targetValues;
+	private PerfectHashIndex dictionary; // word -> index in the vocabulary
+	private LogProbabilityTable table;  // member m, target value v at column m*|targetValues|+v
+	private final ThreadLocal<ClassificationContext> contexts = ThreadLocal.withInitial(ClassificationContext::new);
+
+	/**
+	 * @param vocabularySize The number of words of the shared vocabulary.
+	 * @param numMembers The number of bagged classifiers.
+	 * @param seed The seed of the bootstrap weights.
+	 */
+	public BaggedBayesClassifier(int vocabularySize, int numMembers, long seed) {
+		if (vocabularySize <= 0)
+			throw new IllegalArgumentException("vocabulary size must be positive: " + vocabularySize);
+		if (numMembers <= 0)
+			throw new IllegalArgumentException("number of members must be positive: " + numMembers);
+		this.vocabularySize = vocabularySize;
+		this.numMembers = numMembers;
+		this.seed = seed;
+	}
+
+	/**
+	 * Draws the number of copies of an instance in the bootstrap replicate of each member.
+	 * @param weights Receives the Poisson(1) distributed weight of the m-th member at index m.
+	 */
+	private void weights(int instance, int[] weights) {
+		SplittableRandom random = new SplittableRandom(Hashing.mix64(seed + instance*Hashing.SEED));
+		double limit = Math.exp(-1);
+		for (int m = 0; m < weights.length; m++) {
+			int k = 0;
+			for (double p = random.nextDouble(); p > limit; p *= random.nextDouble()) {
+				k++;
+			}
+			weights[m] = k;
+		}
+	}
+
+	/**
+	 * Trains all members in two passes over the examples: the first chooses the shared vocabulary, the second counts
+	 * the weighted occurrences of its words for all members at once.
+	 * @param examples The training set.
+	 * @throws IllegalArgumentException if the weighted counts of all members do not fit into an array.
+	 */
+	public void learnBayesText(TextDatasetView examples) {
+		WordIndex words = new WordIndex();
+		List<String> values = new ArrayList<>();
+		int[] totals = new int[1024];       // occurrences of word i in all examples
+		for (int i = 0; i < examples.numInstances(); i++) {
+			TextInstance instance = examples.instanceAt(i);
+			if (!values.contains(instance.label()))
+				values.add(instance.label());
+			for (String word : instance.words()) {
+				int k = words.add(word);
+				if (k == totals.length)
+					totals = Arrays.copyOf(totals, 2*k);
+				totals[k]++;
+			}
+		}
+		if (values.isEmpty())
+			throw new IllegalArgumentException("no training examples");
+
+		// the shared vocabulary: the most frequent words, ties in order of first occurrence
+		int[] totalCounts = totals;
+		Integer[] order = new Integer[words.size()];
+		for (int k = 0; k < order.length; k++) {
+			order[k] = k;
+		}
+		Arrays.sort(order, (k1, k2) -> totalCounts[k2] - totalCounts[k1]);
+		int size = Math.min(vocabularySize, order.length);
+		WordIndex vocabulary = new WordIndex(size);
+		for (int k = 0; k < size; k++) {
+			vocabulary.add(words.word(order[k]));
+		}
+		dictionary = new PerfectHashIndex(vocabulary);
+
+		// count the words of the vocabulary only, so the table has |vocabulary|*|members|*|targetValues| counts
+		int numClasses = values.size();
+		int numColumns;
+		int[] counts;                       // weighted occurrences of word k, member m, value v at k*numColumns+m*numClasses+v
+		try {
+			numColumns = Math.multiplyExact(numMembers, numClasses);
+			counts = new int[Math.multiplyExact(size, numColumns)];
+		} catch (ArithmeticException e) {
+			throw new IllegalArgumentException("the counts of " + size + " words, " + numMembers + " members and " 
+					+ numClasses + " target values exceed the maximum array size");
+		}
+		long[] numInstances = new long[numColumns];  // weighted instances of member m, value v at m*numClasses+v
+		long[] numWords = new long[numColumns];      // weighted words of member m, value v at m*numClasses+v
+		int[] frequencies = new int[size];
+		int[] instanceWords = new int[64];
+		int[] weights = new int[numMembers];
+		int[] members = new int[numMembers]; // members with a positive weight
+		for (int i = 0; i < examples.numInstances(); i++) {
+			TextInstance instance = examples.instanceAt(i);
+			int v = values.indexOf(instance.label());
+			weights(i, weights);
+			int numWeighted = 0;
+			for (int m = 0; m < numMembers; m++) {
+				if (weights[m] > 0)
+					members[numWeighted++] = m;
+				numInstances[m*numClasses+v] += weights[m];
+				numWords[m*numClasses+v] += (long) weights[m]*instance.numWords();
+			}
+
+			// count the occurrences of the distinct vocabulary words of the instance
+			int numDistinct = 0;
+			for (String word : instance.words()) {
+				int k = dictionary.get(word);
+				if (k >= 0 && frequencies[k]++ == 0) {
+					if (numDistinct == instanceWords.length)
+						instanceWords = Arrays.copyOf(instanceWords, 2*numDistinct);
+					instanceWords[numDistinct++] = k;
+				}
+			}
+
+			// add them to the counts of each member with its weight
+			for (int j = 0; j < numDistinct; j++) {
+				int k = instanceWords[j];
+				for (int n = 0; n < numWeighted; n++) {
+					int m = members[n];
+					counts[k*numColumns+m*numClasses+v] += weights[m]*frequencies[k];
+				}
+				frequencies[k] = 0;
+			}
+		}
+
+		// P(v) = Nv/N and P(wk|v) = (nk+1)/(n+|Vocabulary|) per member
+		double[] logClassProbabilities = new double[numColumns];
+		double[] logWordProbabilities = new double[counts.length];
+		for (int m = 0; m < numMembers; m++) {
+			long numExamples = 0;
+			for (int v = 0; v < numClasses; v++) {
+				numExamples += numInstances[m*numClasses+v];
+			}
+			for (int v = 0; v < numClasses; v++) {
+				int column = m*numClasses+v;
+				logClassProbabilities[column] = Math.log((double) numInstances[column]/numExamples);
+				for (int k = 0; k < size; k++) {
+					logWordProbabilities[k*numColumns+column] = Math.log((double) (counts[k*numColumns+column]+1)/(numWords[column]+vocabularySize));
+				}
+			}
+		}
+		targetValues = values;
+		table = new DoubleLogProbabilityTable(logClassProbabilities, logWordProbabilities);
+	}
+
+	/**
+	 * Looks up the vocabulary indices of the words in an instance.
+	 * @param context Receives the distinct indices in ascending order.
+	 */
+	private void extractFeatures(TextInstance instance, ClassificationContext context) {
+		context.clearFeatures(dictionary.size());
+		List<String> words = instance.words();
+		for (int i = 0; i < words.size(); i++) {
+			int k = dictionary.get(words.get(i));
+			if (k >= 0)
+				context.addFeature(k);
+		}
+		context.sortFeatures();
+	}
+
+	/**
+	 * Scores all members in one sweep and lets them vote.
+	 * @return The index of the target value with the most votes.
+	 */
+	private int vote(ClassificationContext context) {
+		int numClasses = targetValues.size();
+		double[] scores = context.scores(numMembers*numClasses + 2*numClasses);
+		table.score(context.features, context.numFeatures, scores, 0);
+		int votes = numMembers*numClasses;         // votes of value v at votes+v
+		int posteriors = votes + numClasses;       // summed posteriors of value v at posteriors+v
+		Arrays.fill(scores, votes, scores.length, 0);
+		for (int m = 0; m < numMembers; m++) {
+			int offset = m*numClasses;
+			int best = offset;
+			for (int column = offset+1; column < offset+numClasses; column++) {
+				if (scores[column] > scores[best])
+					best = column;
+			}
+			if (scores[best] == Double.NEGATIVE_INFINITY)
+				continue;
+			scores[votes + best-offset]++;
+			double sum = 0;
+			for (int column = offset; column < offset+numClasses; column++) {
+				sum += Math.exp(scores[column]-scores[best]);
+			}
+			for (int v = 0; v < numClasses; v++) {
+				scores[posteriors+v] += Math.exp(scores[offset+v]-scores[best])/sum;
+			}
+		}
+		int best = 0;
+		for (int v = 1; v < numClasses; v++) {
+			double difference = scores[votes+v] - scores[votes+best];
+			if (difference > 0 || difference == 0 && scores[posteriors+v] > scores[posteriors+best])
+				best = v;
+		}
+		return best;
+	}
+
+	/**
+	 * Classifies a text instance without creating any objects (once the context has grown to the instance size).
+	 * @param context Reusable scratch space of the calling thread. Its scores() contain the logarithmic posterior of the
+	 * m-th member and the v-th target value at m*|targetValues|+v, followed by the votes and the summed posteriors of each value.
+	 * @return The predicted class as index into targetValues().
+	 */
+	public int predictBayesText(TextInstance instance, ClassificationContext context) {
+		if (table == null)
+			throw new IllegalStateException("the ensemble is not trained");
+		extractFeatures(instance, context);
+		return vote(context);
+	}
+
+	/**
+	 * Classifies a full dataset.
+	 * @return The predicted class of each instance as index into targetValues().
+	 */
+	public int[] predictBayesText(TextDatasetView dataset) {
+		ClassificationContext context = contexts.get();
+		int[] predictions = new int[dataset.numInstances()];
+		for (int i = 0; i < predictions.length; i++) {
+			predictions[i] = predictBayesText(dataset.instanceAt(i), context);
+		}
+		return predictions;
+	}
+
+	/**
+	 * @return The class label of the text instance.
+	 */
+	public String classifyBayesText(TextInstance instance) {
+		return targetValues.get(predictBayesText(instance, contexts.get()));
+	}
+
+	/**
+	 * Tests the ensemble using a dataset with known class labels.
+	 * @return The accuracy of the ensemble.
+	 */
+	public float testBayesText(TextDatasetView testSet) {
+		int[] predictions = predictBayesText(testSet);
+		int correctlyClassified = 0;
+		for (int i = 0; i < predictions.length; i++) {
+			if (targetValues.get(predictions[i]).equals(testSet.instanceAt(i).label()))
+				correctlyClassified++;
+		}
+		return (float) correctlyClassified/testSet.numInstances();
+	}
+
+	/**
+	 * Builds the bootstrap replicate of a member explicitly, e.g. to train the member from scratch for comparison.
+	 * @param examples The training set of learnBayesText().
+	 * @return A view of the examples, containing each instance as often as its weight for the member.
+	 */
+	public TextDatasetView replicate(TextDatasetView examples, int member) {
+		if (member < 0 || member >= numMembers)
+			throw new IllegalArgumentException("invalid member: " + member);
+		List<Integer> indices = new ArrayList<>();
+		int[] weights = new int[numMembers];
+		for (int i = 0; i < examples.numInstances(); i++) {
+			weights(i, weights);
+			for (int copy = 0; copy < weights[member]; copy++) {
+				indices.add(i);
+			}
+		}
+		return new TextDatasetIndexedView(examples, indices);
+	}
+
+	public int numMembers() {
+		return numMembers;
+	}
+
+	/**
+	 * @return The number of words of the shared vocabulary.
+	 */
+	public int numFeatures() {
+		return dictionary == null? 0 : dictionary.size();
+	}
+
+	/**
+	 * @return The target values in order of their first occurrence in the training set.
+	 */
+	public List<String> targetValues() {
+		return Collections.unmodifiableList(targetValues);
+	}
+
+	/**
+	 * @return The approximate memory used by the vocabulary and the log probabilities of all members in bytes.
+	 */
+	public long modelBytes() {
+		return table == null? 0 : dictionary.memoryBytes() + table.memoryBytes();
+	}
+}
@@ -1,33 +1,68 @@
 package uni.ml.text;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uni.ml.util.Hashing;
+import uni.ml.util.LongIntMap;
+import uni.ml.util.WordIndex;
 
 /**
  * A Bayes classifier for texts.
  *
  */
 public class BayesTextClassifier {
+	private static final int MODEL_MAGIC = 0x42544332; // "BTC2"
+	private static final AtomicLong VERSIONS = new AtomicLong(); // the last model version of any classifier
+	public static final int MAX_HASH_BITS = 26;
+	
 	private TextDatasetView examples;
 	private int vocabularySize;
+	private int hashBits = 0; // > 0: feature hashing into 2^hashBits buckets instead of a vocabulary
+	private int ngramOrder = 1; // features are all n-grams with 1 <= n <= ngramOrder
+	private FeatureSelection featureSelection = FeatureSelection.FREQUENCY;
 	
 	private List<Entry<String, Integer>> vocabulary;
 	private List<String> targetValues;
 	private Map<String, Double> classProbabilities = new HashMap<>();
 	private Map<String, Map<String, Double>> conditionalWordProbabilities = new HashMap<>();
+	private long modelVersion = nextVersion();
+	private PredictionCache predictionCache;
+	private boolean pruning = false;
+	private PruningScorer pruningScorer;
+	private EarlyStopping earlyStopping;
+	private AnytimeScorer anytimeScorer;
+	
+	// compiled model used for classification
+	private FeatureDictionary dictionary;       // word/n-gram -> index in vocabulary (null for feature hashing)
+	private LogProbabilityTable table;          // ln(P(v)) and ln(P(wk|v))
+	private final ThreadLocal<ClassificationContext> contexts = ThreadLocal.withInitial(ClassificationContext::new);
 	
 	/**
 	 * Builds a vocabulary, containing the most frequently used words in examples.
 	 * @param size The size (number of words) of the vocabulary
-	 * @return The vocabulary: A list of pairs (word, count), sorted by count in descending order.
+	 * @return The vocabulary: A list of pairs (word, count), sorted by count in descending order,
+	 * words of equal count in the order of their first occurrence. It contains all words, if there are fewer than size.
 	 */
 	private List<Entry<String, Integer>> buildVocabulary(int size) {
-		Map<String, Integer> wordCount = new HashMap<>();
+		Map<String, Integer> wordCount = new LinkedHashMap<>(); // in order of first occurrence, the sort is stable
 		for (TextInstance instance : examples.instances()) {
 			for (String word : instance.words()) {
 				wordCount.compute(word, (k, v) -> v == null? 1 : v+1);
@@ -35,7 +70,7 @@ public class BayesTextClassifier {
 		}
 		List<Entry<String, Integer>> wordCounts = new ArrayList<>(wordCount.entrySet());
 		wordCounts.sort((w1, w2) -> w2.getValue() - w1.getValue());
-		return wordCounts.subList(0, size);
+		return wordCounts.subList(0, Math.min(size, wordCounts.size()));
 	}
 	
 	/**
@@ -43,8 +78,8 @@ public class BayesTextClassifier {
 	 */
 	private List<String> extractTargetValues() {
 		Set<String> values = new HashSet<>();
-		for (TextInstance instance : examples.instances()) {
-			values.add(instance.label());
+		for (int i = 0; i < examples.numInstances(); i++) {
+			values.add(examples.labelAt(i));
 		}
 		return new ArrayList<>(values);
 	}
@@ -92,53 +127,619 @@ public class BayesTextClassifier {
 	    }
 	}
 	
+	/**
+	 * Builds a vocabulary, containing the most frequent n-grams (1 &lt;= n &lt;= ngramOrder) in examples.
+	 * N-grams are counted by packed keys (see {@link NGramWindow}), only the selected n-grams are converted to Strings.
+	 * Initializes the feature dictionary (word and n-gram index) of the vocabulary.
+	 * @param size The size (number of n-grams) of the vocabulary
+	 * @return The vocabulary: A list of pairs (n-gram, count), sorted by count in descending order. 
+	 * The words of an n-gram are separated by single spaces.
+	 */
+	private List<Entry<String, Integer>> buildNGramVocabulary(int size) {
+		WordIndex words = new WordIndex();
+		LongIntMap ngramCount = new LongIntMap();
+		NGramWindow window = new NGramWindow(ngramOrder);
+		for (TextInstance instance : examples.instances()) {
+			window.clear();
+			List<String> instanceWords = instance.words();
+			for (int i = 0; i < instanceWords.size(); i++) {
+				int id = words.add(instanceWords.get(i));
+				if (id > NGramWindow.MAX_WORD_ID)
+					throw new IllegalStateException("too many distinct words for n-grams, use feature hashing");
+				window.addWord(id);
+				for (int n = 1; n <= window.numKeys(); n++) {
+					ngramCount.add(window.key(n), 1);
+				}
+			}
+		}
+		
+		// sort by count in descending order, ties by key, packing (count, position of key) into a long
+		long[] keys = ngramCount.keys();
+		Arrays.sort(keys);
+		long[] ranking = new long[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			ranking[i] = ((long) ngramCount.get(keys[i], 0) << 32) | (Integer.MAX_VALUE - i);
+		}
+		Arrays.sort(ranking);
+		
+		long[] selectedKeys = new long[Math.min(size, keys.length)];
+		int[] selectedCounts = new int[selectedKeys.length];
+		for (int k = 0; k < selectedKeys.length; k++) {
+			long rank = ranking[ranking.length-1-k];
+			selectedKeys[k] = keys[Integer.MAX_VALUE - (int) rank];
+			selectedCounts[k] = (int) (rank >>> 32);
+		}
+		return createVocabulary(selectedKeys, selectedCounts, words);
+	}
+	
+	/**
+	 * Converts selected n-grams into the vocabulary and, for n-grams with n &gt; 1, initializes the feature dictionary.
+	 * @param keys The packed keys (see {@link NGramWindow}) of the selected n-grams in the order of the vocabulary.
+	 * @param counts The number of occurrences of each selected n-gram.
+	 * @param words The word index used to pack the keys.
+	 */
+	private List<Entry<String, Integer>> createVocabulary(long[] keys, int[] counts, WordIndex words) {
+		List<Entry<String, Integer>> vocabulary = new ArrayList<>(keys.length);
+		for (int k = 0; k < keys.length; k++) {
+			vocabulary.add(new SimpleEntry<>(NGramWindow.toString(keys[k], words), counts[k]));
+		}
+		if (ngramOrder > 1) {
+			WordIndex wordIndex = new WordIndex(keys.length);
+			LongIntMap ngramIndex = new LongIntMap(keys.length);
+			for (int k = 0; k < keys.length; k++) {
+				ngramIndex.put(NGramWindow.key(vocabulary.get(k).getKey(), wordIndex), k);
+			}
+			dictionary = new HeapFeatureDictionary(wordIndex, ngramIndex);
+		}
+		return vocabulary;
+	}
+	
+	/**
+	 * Builds a vocabulary, containing the n-grams (1 &lt;= n &lt;= ngramOrder) of examples, which separate the classes best
+	 * according to featureSelection. The scores are computed in a single pass over examples, which counts the documents
+	 * of each class containing an n-gram. Initializes the feature dictionary for n-grams with n &gt; 1.
+	 * @param size The size (number of n-grams) of the vocabulary
+	 * @return The vocabulary: A list of pairs (n-gram, count), sorted by score in descending order 
+	 * (ties by count in descending order).
+	 */
+	private List<Entry<String, Integer>> selectVocabulary(int size) {
+		int numClasses = targetValues.size();
+		WordIndex words = new WordIndex();
+		LongIntMap keyIndex = new LongIntMap();    // packed key -> index i of the following arrays
+		long[] keys = new long[1024];
+		int[] counts = new int[keys.length];       // occurrences
+		int[] lastDocument = new int[keys.length]; // number of the last document containing the key
+		int[] documentCounts = new int[keys.length*numClasses]; // documents per class containing the key, key-major
+		int[] classCounts = new int[numClasses];
+		NGramWindow window = new NGramWindow(ngramOrder);
+		int document = 0;
+		for (TextInstance instance : examples.instances()) {
+			int v = targetValues.indexOf(instance.label());
+			classCounts[v]++;
+			document++;
+			window.clear();
+			List<String> instanceWords = instance.words();
+			for (int j = 0; j < instanceWords.size(); j++) {
+				int id = words.add(instanceWords.get(j));
+				if (id > NGramWindow.MAX_WORD_ID)
+					throw new IllegalStateException("too many distinct words for n-grams, use feature hashing");
+				window.addWord(id);
+				for (int n = 1; n <= window.numKeys(); n++) {
+					long key = window.key(n);
+					int i = keyIndex.get(key, -1);
+					if (i < 0) {
+						i = keyIndex.size();
+						keyIndex.put(key, i);
+						if (i == keys.length) {
+							keys = Arrays.copyOf(keys, 2*i);
+							counts = Arrays.copyOf(counts, 2*i);
+							lastDocument = Arrays.copyOf(lastDocument, 2*i);
+							documentCounts = Arrays.copyOf(documentCounts, 2*i*numClasses);
+						}
+						keys[i] = key;
+					}
+					counts[i]++;
+					if (lastDocument[i] != document) {
+						lastDocument[i] = document;
+						documentCounts[i*numClasses+v]++;
+					}
+				}
+			}
+		}
+		
+		int numKeys = keyIndex.size();
+		double[] scores = new double[numKeys];
+		int[] keyCounts = new int[numClasses];
+		for (int i = 0; i < numKeys; i++) {
+			System.arraycopy(documentCounts, i*numClasses, keyCounts, 0, numClasses);
+			scores[i] = featureSelection.score(keyCounts, classCounts, examples.numInstances());
+		}
+		final long[] allKeys = keys;
+		final int[] allCounts = counts;
+		Integer[] ranking = new Integer[numKeys];
+		for (int i = 0; i < numKeys; i++) {
+			ranking[i] = i;
+		}
+		Arrays.sort(ranking, (i, j) -> scores[i] != scores[j]? Double.compare(scores[j], scores[i]) 
+				: allCounts[i] != allCounts[j]? allCounts[j] - allCounts[i] : Long.compare(allKeys[i], allKeys[j]));
+		
+		long[] selectedKeys = new long[Math.min(size, numKeys)];
+		int[] selectedCounts = new int[selectedKeys.length];
+		for (int k = 0; k < selectedKeys.length; k++) {
+			selectedKeys[k] = keys[ranking[k]];
+			selectedCounts[k] = counts[ranking[k]];
+		}
+		return createVocabulary(selectedKeys, selectedCounts, words);
+	}
+	
+	/**
+	 * Computes class and conditional probabilities of the n-grams in the vocabulary in a single pass over examples.
+	 * The conditional probabilities P(wk|v) = (nk+1)/(n+|Vocabulary|) are computed like for single words,
+	 * where n is the total number of n-grams in all examples with class value v.
+	 */
+	private void estimateNGramProbabilities() {
+		int numClasses = targetValues.size();
+		int[] numInstances = new int[numClasses];
+		long[] numNGrams = new long[numClasses];   // n
+		int[] numOccurrences = new int[vocabulary.size()*numClasses]; // nk, feature-major
+		NGramWindow window = new NGramWindow(ngramOrder);
+		for (TextInstance instance : examples.instances()) {
+			int v = targetValues.indexOf(instance.label());
+			numInstances[v]++;
+			window.clear();
+			List<String> words = instance.words();
+			for (int i = 0; i < words.size(); i++) {
+				window.addWord(dictionary.wordId(words.get(i)));
+				numNGrams[v] += window.numKeys();
+				for (int n = 1; n <= window.numKeys(); n++) {
+					int k = window.key(n) == 0? -1 : dictionary.ngramFeature(window.key(n));
+					if (k >= 0)
+						numOccurrences[k*numClasses+v]++;
+				}
+			}
+		}
+		
+		for (int v = 0; v < numClasses; v++) {
+			String value = targetValues.get(v);
+			classProbabilities.put(value, (double) numInstances[v]/examples.numInstances());
+			Map<String, Double> probs = new HashMap<>();
+			for (int k = 0; k < vocabulary.size(); k++) {
+				probs.put(vocabulary.get(k).getKey(), (double) (numOccurrences[k*numClasses+v] + 1)/(numNGrams[v]+vocabularySize));
+			}
+			conditionalWordProbabilities.put(value, probs);
+		}
+	}
+	
+	/**
+	 * Computes class and conditional probabilities of hashed words in a single pass over examples, without a vocabulary.
+	 * Each word wk is mapped to the bucket hash(wk) mod 2^hashBits, all words in a bucket are treated as the same word.
+	 * The conditional probabilities P(bk|v) = (nk+1)/(n+2^hashBits) are computed like for a vocabulary of 2^hashBits words.
+	 * N-grams are hashed into the same buckets as single words.
+	 */
+	private void estimateHashedProbabilities() {
+		int numClasses = targetValues.size();
+		int numBuckets = 1 << hashBits;
+		int[] numInstances = new int[numClasses];
+		long[] numWords = new long[numClasses];   // n
+		int[] numOccurrences = new int[numBuckets*numClasses]; // nk, bucket-major
+		NGramWindow window = new NGramWindow(ngramOrder);
+		for (TextInstance instance : examples.instances()) {
+			int v = targetValues.indexOf(instance.label());
+			numInstances[v]++;
+			window.clear();
+			List<String> words = instance.words();
+			for (int i = 0; i < words.size(); i++) {
+				window.addHash(Hashing.hash64(words.get(i)));
+				numWords[v] += window.numKeys();
+				for (int n = 1; n <= window.numKeys(); n++) {
+					numOccurrences[bucket(window.key(n))*numClasses+v]++;
+				}
+			}
+		}
+		
+		double[] logClassProbabilities = new double[numClasses];
+		double[] logWordProbabilities = new double[numBuckets*numClasses];
+		for (int v = 0; v < numClasses; v++) {
+			double classProbability = (double) numInstances[v]/examples.numInstances();
+			classProbabilities.put(targetValues.get(v), classProbability);
+			logClassProbabilities[v] = Math.log(classProbability);
+			for (int k = 0; k < numBuckets; k++) {
+				logWordProbabilities[k*numClasses+v] = Math.log((double) (numOccurrences[k*numClasses+v] + 1)/(numWords[v]+numBuckets));
+			}
+		}
+		table = new DoubleLogProbabilityTable(logClassProbabilities, logWordProbabilities);
+	}
+	
+	/**
+	 * Maps the hash of a word to its bucket (feature hashing).
+	 */
+	private int bucket(long hash) {
+		return (int) hash & ((1 << hashBits)-1);
+	}
+	
 	
 	public BayesTextClassifier(int vocabularySize) {
 		this.vocabularySize = vocabularySize;
 	}
 	
+	/**
+	 * Creates a Bayes classifier that does not build a vocabulary, but hashes words into a fixed number of buckets 
+	 * (feature hashing). The memory of the model is fixed (2^hashBits * |targetValues| probabilities) and
+	 * no words are stored, neither during training nor in the model. Distinct words may share a bucket.
+	 * @param hashBits The number of buckets is 2^hashBits. Must be between 1 and {@value #MAX_HASH_BITS}.
+	 */
+	public static BayesTextClassifier withFeatureHashing(int hashBits) {
+		if (hashBits < 1 || hashBits > MAX_HASH_BITS)
+			throw new IllegalArgumentException("hash bits must be between 1 and " + MAX_HASH_BITS + ": " + hashBits);
+		BayesTextClassifier classifier = new BayesTextClassifier(1 << hashBits);
+		classifier.hashBits = hashBits;
+		return classifier;
+	}
+	
+	/**
+	 * Extends the features from single words to all n-grams with 1 &lt;= n &lt;= ngramOrder of consecutive (filtered) words.
+	 * Takes effect the next time the classifier is trained. With a vocabulary, the most frequent n-grams 
+	 * of all orders compete for the vocabulary; with feature hashing, n-grams are hashed into the same buckets as words.
+	 * @param ngramOrder The maximum n (between 1 and {@value NGramWindow#MAX_ORDER}), 1 for single words only (default).
+	 */
+	public void setNGramOrder(int ngramOrder) {
+		if (ngramOrder < 1 || ngramOrder > NGramWindow.MAX_ORDER)
+			throw new IllegalArgumentException("n-gram order must be between 1 and " + NGramWindow.MAX_ORDER + ": " + ngramOrder);
+		this.ngramOrder = ngramOrder;
+	}
+	
+	/**
+	 * Sets the strategy for choosing the words (or n-grams) of the vocabulary, e.g. to reduce the vocabulary size 
+	 * (and thus the model size and classification cost) while keeping the accuracy.
+	 * Takes effect the next time the classifier is trained. Has no effect with feature hashing.
+	 */
+	public void setFeatureSelection(FeatureSelection featureSelection) {
+		this.featureSelection = featureSelection;
+	}
+	
+	public FeatureSelection featureSelection() {
+		return featureSelection;
+	}
+	
 	/**
 	 * Trains the Bayes classifier with examples.
 	 * @param examples The training set.
 	 */
 	public void learnBayesText(TextDatasetView examples) {
 		this.examples = examples;
-		vocabulary = buildVocabulary(vocabularySize);
 		targetValues = extractTargetValues();
-		estimateProbabilities();
+		classProbabilities = new HashMap<>();
+		conditionalWordProbabilities = new HashMap<>();
+		dictionary = null;
+		table = null;
+		if (hashBits > 0) {
+			vocabulary = new ArrayList<>(); // no dictionary
+			estimateHashedProbabilities();
+		} else if (ngramOrder > 1) {
+			vocabulary = featureSelection == FeatureSelection.FREQUENCY? buildNGramVocabulary(vocabularySize) 
+					: selectVocabulary(vocabularySize);
+			estimateNGramProbabilities();
+			compileModel();
+		} else {
+			vocabulary = featureSelection == FeatureSelection.FREQUENCY? buildVocabulary(vocabularySize) 
+					: selectVocabulary(vocabularySize);
+			estimateProbabilities();
+			compileModel();
+		}
+		modelVersion = nextVersion();
+	}
+	
+	/**
+	 * Trains the classifier (vocabulary of single words chosen by frequency) from counts collected without 
+	 * a dataset in memory, e.g. by the {@link OutOfCoreTrainer}. Yields the same model as learnBayesText() 
+	 * for a dataset with these counts.
+	 * @param targetValues The target values in the order of extractTargetValues().
+	 * @param numInstances The number of instances of each target value.
+	 * @param numWords The total number of words in the instances of each target value.
+	 * @param vocabulary The vocabulary in the order of buildVocabulary().
+	 * @param wordCounts The number of occurrences nk of the k-th word of the vocabulary in the instances 
+	 * of the v-th target value at index k*|targetValues|+v.
+	 */
+	void learnFromCounts(List<String> targetValues, int[] numInstances, long[] numWords, 
+			List<Entry<String, Integer>> vocabulary, int[] wordCounts) {
+		if (hashBits > 0 || ngramOrder > 1 || featureSelection != FeatureSelection.FREQUENCY)
+			throw new IllegalStateException("counts can only be used for a vocabulary of single words chosen by frequency");
+		examples = null;
+		this.targetValues = targetValues;
+		this.vocabulary = vocabulary;
+		classProbabilities = new HashMap<>();
+		conditionalWordProbabilities = new HashMap<>();
+		dictionary = null;
+		table = null;
+		int numClasses = targetValues.size();
+		int numExamples = 0;
+		for (int count : numInstances) {
+			numExamples += count;
+		}
+		for (int v = 0; v < numClasses; v++) {
+			String value = targetValues.get(v);
+			classProbabilities.put(value, (double) numInstances[v]/numExamples);
+			Map<String, Double> probs = new HashMap<>();
+			for (int k = 0; k < vocabulary.size(); k++) {
+				probs.put(vocabulary.get(k).getKey(), (double) (wordCounts[k*numClasses+v] + 1)/(numWords[v]+vocabularySize));
+			}
+			conditionalWordProbabilities.put(value, probs);
+		}
+		compileModel();
+		modelVersion = nextVersion();
+	}
+	
+	/**
+	 * Converts the estimated probabilities into primitive tables of log probabilities for fast classification.
+	 */
+	private void compileModel() {
+		int numClasses = targetValues.size();
+		if (ngramOrder == 1) {
+			WordIndex featureIndex = new WordIndex(vocabulary.size());
+			for (Entry<String, Integer> word : vocabulary) {
+				featureIndex.add(word.getKey());
+			}
+			dictionary = new HeapFeatureDictionary(featureIndex, null);
+		}
+		double[] logClassProbabilities = new double[numClasses];
+		double[] logWordProbabilities = new double[vocabulary.size()*numClasses];
+		for (int v = 0; v < numClasses; v++) {
+			String value = targetValues.get(v);
+			logClassProbabilities[v] = Math.log(classProbabilities.get(value));
+			Map<String, Double> probs = conditionalWordProbabilities.get(value);
+			for (int k = 0; k < vocabulary.size(); k++) {
+				logWordProbabilities[k*numClasses+v] = Math.log(probs.get(vocabulary.get(k).getKey()));
+			}
+		}
+		table = new DoubleLogProbabilityTable(logClassProbabilities, logWordProbabilities);
+	}
+	
+	/**
+	 * @return true, if the features are single words, whose ids are their indices in the vocabulary.
+	 */
+	private boolean isUnigramModel() {
+		return hashBits == 0 && ngramOrder == 1;
+	}
+	
+	/**
+	 * Looks up the vocabulary indices of the words in an instance.
+	 * @param context Receives the distinct indices in ascending order (in the order of the text with early stopping).
+	 */
+	private void extractFeatures(TextInstance instance, ClassificationContext context) {
+		context.clearFeatures(numFeatures());
+		List<String> words = instance.words();
+		int numTokens = startTokens(words.size(), context);
+		if (isUnigramModel()) {
+			for (int i = 0; i < numTokens && !outOfTime(i, context); i++) {
+				int k = dictionary.wordId(words.get(i));
+				if (k >= 0)
+					context.addFeature(k);
+			}
+		} else {
+			NGramWindow window = context.window(ngramOrder);
+			for (int i = 0; i < numTokens && !outOfTime(i, context); i++) {
+				String word = words.get(i);
+				if (hashBits > 0)
+					window.addHash(Hashing.hash64(word));
+				else
+					window.addWord(dictionary.wordId(word));
+				addFeatures(window, context);
+			}
+		}
+		if (earlyStopping == null)
+			context.sortFeatures();
+	}
+	
+	/**
+	 * Tokenizes a line of a dataset file and looks up the vocabulary indices of the words.
+	 * @param context Receives the distinct indices in ascending order (in the order of the text with early stopping).
+	 */
+	private void extractFeatures(CharSequence line, ClassificationContext context) {
+		context.clearFeatures(numFeatures());
+		Tokenizer tokenizer = context.tokenizer;
+		tokenizer.reset(line);
+		NGramWindow window = isUnigramModel()? null : context.window(ngramOrder);
+		int maxTokens = startTokens(Integer.MAX_VALUE, context);
+		for (int i = 0; i < maxTokens && !outOfTime(i, context) && tokenizer.next(); i++) {
+			if (window == null) {
+				int k = dictionary.wordId(tokenizer.word(), 0, tokenizer.length());
+				if (k >= 0)
+					context.addFeature(k);
+			} else {
+				if (hashBits > 0)
+					window.addHash(Hashing.hash64(tokenizer.word(), 0, tokenizer.length()));
+				else
+					window.addWord(dictionary.wordId(tokenizer.word(), 0, tokenizer.length()));
+				addFeatures(window, context);
+			}
+		}
+		if (earlyStopping == null)
+			context.sortFeatures();
+	}
+	
+	/**
+	 * Starts the budgets of early stopping for the next text, if enabled.
+	 * @param numTokens The number of tokens of the text.
+	 * @return The number of tokens to read.
+	 */
+	private int startTokens(int numTokens, ClassificationContext context) {
+		if (earlyStopping == null)
+			return numTokens;
+		context.deadline = earlyStopping.deadline();
+		return Math.min(numTokens, earlyStopping.maxTokens());
+	}
+	
+	/**
+	 * @return true, if the time budget of early stopping is spent (checked every 16 tokens).
+	 */
+	private boolean outOfTime(int token, ClassificationContext context) {
+		return earlyStopping != null && (token & 15) == 15 && context.deadline != Long.MAX_VALUE 
+				&& System.nanoTime() > context.deadline;
+	}
+	
+	/**
+	 * Adds the features of all n-grams ending with the latest word in the window.
+	 */
+	private void addFeatures(NGramWindow window, ClassificationContext context) {
+		for (int n = 1; n <= window.numKeys(); n++) {
+			long key = window.key(n);
+			if (hashBits > 0) {
+				context.addFeature(bucket(key));
+			} else if (key != 0) {
+				int k = dictionary.ngramFeature(key);
+				if (k >= 0)
+					context.addFeature(k);
+			}
+		}
+	}
+	
+	/**
+	 * Computes the logarithmic (unnormalized) posterior ln(P(v)) + sum ln(P(wk|v)) of each target value v,
+	 * summing over the distinct words wk of the vocabulary that are present in the instance.
+	 * @param context The distinct vocabulary indices of the words in ascending order.
+	 * @param scores Receives the posterior of the i-th target value at index offset+i.
+	 * @param offset The index of the first score.
+	 */
+	private void score(ClassificationContext context, double[] scores, int offset) {
+		// use logarithm of probabilities for numerical stability
+		table.score(context.features, context.numFeatures, scores, offset);
+	}
+	
+	/**
+	 * Computes the logarithmic (unnormalized) posterior of each target value.
+	 * @return The posteriors, stored in the scores of the calling thread's context.
+	 */
+	private double[] score(TextInstance instance) {
+		ClassificationContext context = contexts.get();
+		extractFeatures(instance, context);
+		double[] scores = context.scores(targetValues.size());
+		score(context, scores, 0);
+		return scores;
+	}
+	
+	/**
+	 * Computes the target value with maximum posterior, exhaustively, by pruning (see setPruning()) or anytime
+	 * (see setEarlyStopping()).
+	 * @param context The distinct vocabulary indices of the words in ascending order.
+	 * @return The index of the target value. Its posterior is stored in the scores of the context.
+	 */
+	private int argMax(ClassificationContext context) {
+		double[] scores = context.scores(targetValues.size());
+		if (earlyStopping != null) {
+			AnytimeScorer scorer = anytimeScorer;
+			if (scorer == null || scorer.table != table) {
+				scorer = new AnytimeScorer(table);
+				anytimeScorer = scorer;
+			}
+			return scorer.argMax(context, earlyStopping, scores, 0);
+		}
+		if (pruning) {
+			PruningScorer scorer = pruningScorer;
+			if (scorer == null || scorer.table != table) {
+				scorer = new PruningScorer(table);
+				pruningScorer = scorer;
+			}
+			return scorer.argMax(context, scores, 0);
+		}
+		score(context, scores, 0);
+		return argMax(scores);
+	}
+	
+	/**
+	 * Normalizes logarithmic posteriors into probabilities summing up to 1.
+	 * Uses ln(sum exp(s)) = max + ln(sum exp(s-max)) to avoid underflow.
+	 */
+	private static void normalize(double[] scores, int offset, int length) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = offset; i < offset+length; i++) {
+			max = Math.max(max, scores[i]);
+		}
+		double sum = 0;
+		for (int i = offset; i < offset+length; i++) {
+			sum += Math.exp(scores[i]-max);
+		}
+		double logSum = max + Math.log(sum);
+		for (int i = offset; i < offset+length; i++) {
+			scores[i] = Math.exp(scores[i]-logSum);
+		}
+	}
+	
+	/**
+	 * Selects the indices of the k largest scores in descending order (lower indices first in case of ties).
+	 * @param topIndices Receives the indices at [topOffset, topOffset+k).
+	 */
+	private static void selectTop(double[] scores, int offset, int length, int[] topIndices, int topOffset, int k) {
+		for (int j = 0; j < k; j++) {
+			int best = -1;
+			for (int i = 0; i < length; i++) {
+				if (isSelected(i, topIndices, topOffset, j))
+					continue;
+				if (best < 0 || scores[offset+i] > scores[offset+best])
+					best = i;
+			}
+			topIndices[topOffset+j] = best;
+		}
+	}
+	
+	private static boolean isSelected(int index, int[] topIndices, int topOffset, int numSelected) {
+		for (int j = 0; j < numSelected; j++) {
+			if (topIndices[topOffset+j] == index)
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * @return The index of the maximum score (the first one in case of ties) or -1, if no score exceeds negative infinity.
+	 */
+	private static int argMax(double[] scores) {
+		double maxScore = Double.NEGATIVE_INFINITY;
+		int maxIndex = -1;
+		for (int i = 0; i < scores.length; i++) {
+			if (scores[i] > maxScore) {
+				maxScore = scores[i];
+				maxIndex = i;
+			}
+		}
+		return maxIndex;
+	}
+	
+	/**
+	 * Computes the class label with maximum posterior probability.
+	 */
+	private String predict(TextInstance instance) {
+		ClassificationContext context = contexts.get();
+		extractFeatures(instance, context);
+		int predicted = argMax(context);
+		return predicted < 0? null : targetValues.get(predicted);
+	}
+	
+	/**
+	 * @return true, if predictions are cached (there is a cache and no time budget, whose predictions depend on the timing).
+	 */
+	private boolean isCaching() {
+		return predictionCache != null && (earlyStopping == null || earlyStopping.timeBudget() == Long.MAX_VALUE);
 	}
 	
 	/**
 	 * Classifies a text instance with this bayes classifier.
 	 * Make sure to train it first using learnBayesText().
+	 * If a prediction cache is set, instances with the same words are classified only once (except with a time budget
+	 * of early stopping, whose predictions depend on the timing and are not cached).
 	 * @param instance The text instance to classifiy.
 	 * @return The predicted class label.
 	 */
 	public String classifyBayesText(TextInstance instance) {
-		double maxPosterior = Double.NEGATIVE_INFINITY;
-		String predictedValue = null;
-		// iterate over each possible target value v, to find maximum
-		// use logarithm of probabilities for numerical stability
-		for (String value : targetValues) {
-			// ln(P(v))
-			double posterior = Math.log(classProbabilities.get(value));
-			// for each word wk in vocabulary
-			for (Entry<String,Integer> word : vocabulary) {
-				String w = word.getKey();
-				int numOccurrences = instance.countWord(w);
-				if (numOccurrences > 0) { // if word is present in instance
-					// sum ln(P(wk|v))
-					posterior += Math.log(conditionalWordProbabilities.get(value).get(w));
-				}
-			}
-			// find max
-			if (posterior > maxPosterior) {
-				maxPosterior = posterior;
-				predictedValue = value;
-			}
-		}
+		if (!isCaching())
+			return predict(instance);
 		
-		return predictedValue;
+		long key = Hashing.hash64(instance.words());
+		String label = predictionCache.get(key, modelVersion);
+		if (label == null) {
+			label = predict(instance);
+			predictionCache.put(key, label, modelVersion);
+		}
+		return label;
 	}
 	
 	/**
@@ -154,6 +755,107 @@ public class BayesTextClassifier {
 		return classifiedDataset;
 	}
 	
+	/**
+	 * Classifies a full dataset without creating new text instances.
+	 * @param dataset The test set.
+	 * @return The predicted class of each instance as index into targetValues().
+	 */
+	public int[] predictBayesText(TextDatasetView dataset) {
+		int[] predictions = new int[dataset.numInstances()];
+		predictBayesText(dataset, predictions, null);
+		return predictions;
+	}
+	
+	/**
+	 * Classifies a full dataset without creating new text instances.
+	 * @param dataset The test set.
+	 * @param predictions Receives the predicted class of the i-th instance as index into targetValues().
+	 * @param scores Receives the logarithmic (unnormalized) posterior of the i-th prediction or null, if not needed.
+	 * Without scores the prediction cache is used, if one is set.
+	 */
+	public void predictBayesText(TextDatasetView dataset, int[] predictions, double[] scores) {
+		ClassificationContext context = contexts.get();
+		for (int i = 0; i < dataset.numInstances(); i++) {
+			if (scores == null && isCaching()) {
+				String label = classifyBayesText(dataset.instanceAt(i));
+				predictions[i] = label == null? -1 : targetValues.indexOf(label);
+				continue;
+			}
+			extractFeatures(dataset.instanceAt(i), context);
+			predictions[i] = argMax(context);
+			if (scores != null)
+				scores[i] = predictions[i] < 0? Double.NEGATIVE_INFINITY : context.scores()[predictions[i]];
+		}
+	}
+	
+	/**
+	 * Classifies a line of a dataset file without creating any objects (once the context has grown to the text size).
+	 * The line is tokenized like a dataset loaded with the filter keepLettersOnly().andThen(filterStopwords()), see {@link Tokenizer}.
+	 * @param line A line 'L "text"', where the label L is optional.
+	 * @param context Reusable scratch space of the calling thread. Receives the logarithmic posteriors in context.scores().
+	 * @return The predicted class as index into targetValues().
+	 */
+	public int predictBayesText(CharSequence line, ClassificationContext context) {
+		extractFeatures(line, context);
+		return argMax(context);
+	}
+	
+	/**
+	 * Classifies a text instance without creating any objects (once the context has grown to the instance size).
+	 * @param context Reusable scratch space of the calling thread. Receives the logarithmic posteriors in context.scores().
+	 * @return The predicted class as index into targetValues().
+	 */
+	public int predictBayesText(TextInstance instance, ClassificationContext context) {
+		extractFeatures(instance, context);
+		return argMax(context);
+	}
+	
+	/**
+	 * Computes the posterior probability P(v|instance) of each target value v.
+	 * @return The posteriors in the order of targetValues(), summing up to 1.
+	 */
+	public double[] posteriorsBayesText(TextInstance instance) {
+		double[] posteriors = score(instance).clone();
+		normalize(posteriors, 0, posteriors.length);
+		return posteriors;
+	}
+	
+	/**
+	 * Ranks the target values by their posterior probability.
+	 * @param k The number of target values to return (at most |targetValues|).
+	 * @return The indices (into targetValues()) of the k most probable target values in descending order.
+	 */
+	public int[] topBayesText(TextInstance instance, int k) {
+		double[] scores = score(instance);
+		int[] top = new int[Math.min(k, scores.length)];
+		selectTop(scores, 0, scores.length, top, 0, top.length);
+		return top;
+	}
+	
+	/**
+	 * Computes the posterior probabilities and the k most probable target values of each instance in a dataset.
+	 * All results are written to the provided arrays, nothing is allocated.
+	 * @param dataset The test set.
+	 * @param posteriors Receives the posteriors P(v|instance), row by row: 
+	 * P(v|i) of the i-th instance and the v-th target value is stored at i*|targetValues|+v.
+	 * @param topLabels Receives the target value indices of the k most probable values (descending) per instance
+	 * at [i*k, i*k+k) or null, if not needed.
+	 * @param k The number of top target values per instance (at most |targetValues|).
+	 */
+	public void posteriorsBayesText(TextDatasetView dataset, double[] posteriors, int[] topLabels, int k) {
+		int numClasses = targetValues.size();
+		if (topLabels != null && k > numClasses)
+			throw new IllegalArgumentException("k must not exceed the number of target values: " + k);
+		ClassificationContext context = contexts.get();
+		for (int i = 0; i < dataset.numInstances(); i++) {
+			extractFeatures(dataset.instanceAt(i), context);
+			score(context, posteriors, i*numClasses);
+			normalize(posteriors, i*numClasses, numClasses);
+			if (topLabels != null)
+				selectTop(posteriors, i*numClasses, numClasses, topLabels, i*k, k);
+		}
+	}
+	
 	/**
 	 * Test bayes classifier using a dataset with known class labels.
 	 * @return The accuracy of the classifier.
@@ -167,6 +869,281 @@ public class BayesTextClassifier {
 		return (float) correctlyClassified/testSet.numInstances();
 	}
 	
+	/**
+	 * Tests the classifier in parallel using a dataset with known class labels.
+	 * @param numThreads The number of classifying threads.
+	 * @return The confusion matrix with per-class precision, recall and F1 and the throughput.
+	 */
+	public Evaluation evaluateBayesText(TextDatasetView testSet, int numThreads) {
+		return Evaluation.evaluate(this, testSet, numThreads);
+	}
+	
+	/**
+	 * Puts a cache in front of classifyBayesText() and predictBayesText(dataset, predictions, null), so that repeated
+	 * texts are classified only once. Scores, posteriors and the other predictions are always computed.
+	 * Cached predictions are invalidated automatically when the classifier is retrained, quantized or its early stopping
+	 * is changed. A cache should be used by one classifier only, it is cleared whenever another classifier accesses it.
+	 * @param predictionCache The cache to use or null to disable caching.
+	 */
+	public void setPredictionCache(PredictionCache predictionCache) {
+		this.predictionCache = predictionCache;
+	}
+	
+	public PredictionCache predictionCache() {
+		return predictionCache;
+	}
+	
+	/**
+	 * Enables exact branch-and-bound pruning for predictions (classifyBayesText(), predictBayesText()): target values
+	 * are abandoned as soon as they cannot exceed the best score anymore. Predictions and their scores are exactly 
+	 * the same as with exhaustive scoring (for 16 bit quantized models up to rounding of the quantized scores), but the
+	 * scores of pruned target values in ClassificationContext.scores() are negative infinity. The numbers of (pruned)
+	 * operations are counted in the context. Posteriors are always computed exhaustively.
+	 */
+	public void setPruning(boolean pruning) {
+		this.pruning = pruning;
+	}
+	
+	public boolean isPruning() {
+		return pruning;
+	}
+	
+	/**
+	 * Enables anytime classification for predictions (classifyBayesText(), predictBayesText()): the scores are
+	 * accumulated in the order of the text and the prediction is made as soon as one of the criteria of early stopping
+	 * holds, see {@link EarlyStopping}. The scores in ClassificationContext.scores() are the partial scores at that point.
+	 * The token and time budgets also limit the tokens read for posteriors. Early stopping takes precedence over pruning.
+	 * The settings are copied, so later changes of them apply only when they are set again (which invalidates
+	 * the cached predictions).
+	 * @param earlyStopping The criteria or null to classify with all tokens.
+	 */
+	public void setEarlyStopping(EarlyStopping earlyStopping) {
+		this.earlyStopping = earlyStopping == null? null : new EarlyStopping(earlyStopping);
+		modelVersion = nextVersion();
+	}
+	
+	/**
+	 * @return A copy of the early stopping settings or null, if early stopping is disabled.
+	 */
+	public EarlyStopping earlyStopping() {
+		return earlyStopping == null? null : new EarlyStopping(earlyStopping);
+	}
+	
+	/**
+	 * @return A model version, which is unique among all classifiers of the process.
+	 */
+	private static long nextVersion() {
+		return VERSIONS.incrementAndGet();
+	}
+	
+	/**
+	 * @return The version of the model, which changes each time the classifier is trained, quantized or its
+	 * early stopping is set. Versions are unique among all classifiers, so a prediction cache shared by two
+	 * classifiers never returns the predictions of the other one (but is cleared whenever they alternate).
+	 */
+	public long modelVersion() {
+		return modelVersion;
+	}
+	
+	/**
+	 * Saves the trained model to a binary file, which can be loaded with loadModel().
+	 * A model using feature hashing is stored without any words, a quantized model with its rounded log probabilities.
+	 */
+	public void saveModel(File file) throws IOException {
+		if (hashBits == 0 && vocabulary.size() != numFeatures())
+			throw new IllegalStateException("the vocabulary has been released, use moveModelOffHeap(File)");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(MODEL_MAGIC);
+			out.writeInt(hashBits);
+			out.writeInt(ngramOrder);
+			out.writeInt(vocabularySize);
+			out.writeInt(targetValues.size());
+			for (String value : targetValues) {
+				out.writeUTF(value);
+			}
+			out.writeInt(numFeatures());
+			if (hashBits == 0) {
+				for (Entry<String, Integer> word : vocabulary) {
+					out.writeUTF(word.getKey());
+					out.writeInt(word.getValue());
+				}
+			}
+			for (int v = 0; v < table.numClasses(); v++) {
+				out.writeDouble(table.logClassProbability(v));
+			}
+			for (int k = 0; k < table.numFeatures(); k++) {
+				for (int v = 0; v < table.numClasses(); v++) {
+					out.writeDouble(table.logWordProbability(k, v));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Loads a model saved with saveModel(). The loaded classifier predicts exactly like the saved one.
+	 * The probability maps (classProbabilities(), conditionalWordProbabilities()) are restored from the log probabilities.
+	 */
+	public static BayesTextClassifier loadModel(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MODEL_MAGIC)
+				throw new IOException("not a model file: " + file);
+			int hashBits = in.readInt();
+			int ngramOrder = in.readInt();
+			BayesTextClassifier c = new BayesTextClassifier(in.readInt());
+			c.hashBits = hashBits;
+			c.ngramOrder = ngramOrder;
+			int numClasses = in.readInt();
+			c.targetValues = new ArrayList<>(numClasses);
+			for (int v = 0; v < numClasses; v++) {
+				c.targetValues.add(in.readUTF());
+			}
+			int numFeatures = in.readInt();
+			c.vocabulary = new ArrayList<>(hashBits == 0? numFeatures : 0);
+			if (hashBits == 0) {
+				WordIndex wordIndex = new WordIndex(numFeatures);
+				LongIntMap ngramIndex = ngramOrder == 1? null : new LongIntMap(numFeatures);
+				for (int k = 0; k < numFeatures; k++) {
+					String word = in.readUTF();
+					c.vocabulary.add(new SimpleEntry<>(word, in.readInt()));
+					if (ngramOrder == 1)
+						wordIndex.add(word);
+					else
+						ngramIndex.put(NGramWindow.key(word, wordIndex), k);
+				}
+				c.dictionary = new HeapFeatureDictionary(wordIndex, ngramIndex);
+			}
+			double[] logClassProbabilities = new double[numClasses];
+			for (int v = 0; v < numClasses; v++) {
+				logClassProbabilities[v] = in.readDouble();
+			}
+			double[] logWordProbabilities = new double[numFeatures*numClasses];
+			for (int i = 0; i < logWordProbabilities.length; i++) {
+				logWordProbabilities[i] = in.readDouble();
+			}
+			c.table = new DoubleLogProbabilityTable(logClassProbabilities, logWordProbabilities);
+			
+			for (int v = 0; v < numClasses; v++) {
+				String value = c.targetValues.get(v);
+				c.classProbabilities.put(value, Math.exp(logClassProbabilities[v]));
+				if (hashBits == 0) {
+					Map<String, Double> probs = new HashMap<>();
+					for (int k = 0; k < numFeatures; k++) {
+						probs.put(c.vocabulary.get(k).getKey(), Math.exp(logWordProbabilities[k*numClasses+v]));
+					}
+					c.conditionalWordProbabilities.put(value, probs);
+				}
+			}
+			c.modelVersion = nextVersion();
+			return c;
+		}
+	}
+	
+	/**
+	 * Replaces the log probabilities of the compiled model by quantized ones to reduce the memory of the table,
+	 * e.g. to fit a vocabulary of 5000 words and 4 target values into 40 KB (L2 cache) with 16 bit.
+	 * Scores are still accumulated in double precision. Predictions may differ slightly from the double precision model,
+	 * cached predictions are invalidated. Training the classifier again restores double precision.
+	 * @param bits 32 to store single precision floats, 16 to store 16 bit integers scaled per target value.
+	 */
+	public void quantizeModel(int bits) {
+		if (isOffHeap())
+			throw new IllegalStateException("the model is stored off the heap");
+		if (bits == 32)
+			table = new FloatLogProbabilityTable(table);
+		else if (bits == 16)
+			table = new ShortLogProbabilityTable(table);
+		else
+			throw new IllegalArgumentException("bits must be 32 or 16: " + bits);
+		modelVersion = nextVersion();
+	}
+	
+	/**
+	 * Moves the compiled model (feature dictionary and log probabilities) into direct memory outside of the Java heap.
+	 * The heap copies, the vocabulary and the conditional word probabilities are released, so the heap 
+	 * and the garbage collection cost no longer grow with the model size. Predictions do not change.
+	 */
+	public void moveModelOffHeap() throws IOException {
+		moveModelOffHeap(null);
+	}
+	
+	/**
+	 * Moves the compiled model into a memory-mapped file, like moveModelOffHeap(). 
+	 * The file can be mapped again later (and by other processes) with mapModel().
+	 * Off-heap models are stored in double precision, so quantized models (see quantizeModel()) cannot be moved.
+	 * @param file The model file or null to use direct memory.
+	 */
+	public void moveModelOffHeap(File file) throws IOException {
+		if (isOffHeap())
+			throw new IllegalStateException("the model is already stored off the heap");
+		if (!(table instanceof DoubleLogProbabilityTable))
+			throw new IllegalStateException("a quantized model cannot be moved off the heap, it would be stored in double precision again");
+		OffHeapModel model = OffHeapModel.build(targetValues, hashBits, ngramOrder, vocabularySize, 
+				(HeapFeatureDictionary) dictionary, table, file);
+		dictionary = hashBits == 0? model : null;
+		table = model;
+		vocabulary = new ArrayList<>();
+		conditionalWordProbabilities = new HashMap<>();
+	}
+	
+	/**
+	 * Maps a model file created by moveModelOffHeap(File) into memory. The model is loaded lazily by the operating system
+	 * and only the target values and class probabilities are stored on the heap.
+	 * The vocabulary and the conditional word probabilities of the returned classifier are empty.
+	 */
+	public static BayesTextClassifier mapModel(File file) throws IOException {
+		OffHeapModel model = OffHeapModel.map(file);
+		BayesTextClassifier c = new BayesTextClassifier(model.vocabularySize());
+		c.hashBits = model.hashBits();
+		c.ngramOrder = model.ngramOrder();
+		c.targetValues = new ArrayList<>(model.targetValues());
+		c.vocabulary = new ArrayList<>();
+		c.dictionary = c.hashBits == 0? model : null;
+		c.table = model;
+		for (int v = 0; v < model.numClasses(); v++) {
+			c.classProbabilities.put(c.targetValues.get(v), Math.exp(model.logClassProbability(v)));
+		}
+		c.modelVersion = nextVersion();
+		return c;
+	}
+	
+	/**
+	 * @return true, if the compiled model is stored off the heap (see moveModelOffHeap(), mapModel()).
+	 */
+	public boolean isOffHeap() {
+		return table instanceof OffHeapModel;
+	}
+	
+	/**
+	 * @return The number of features of the model: the vocabulary size or the number of hash buckets.
+	 */
+	public int numFeatures() {
+		return table.numFeatures();
+	}
+	
+	/**
+	 * @return The approximate memory used by the compiled model (probability tables and feature dictionaries) in bytes.
+	 * For a model stored off the heap, this is the off-heap (direct or mapped) memory.
+	 */
+	public long modelBytes() {
+		if (isOffHeap()) // dictionary and table share one block
+			return table.memoryBytes();
+		return table.memoryBytes() + (dictionary == null? 0 : dictionary.memoryBytes());
+	}
+	
+	public int ngramOrder() {
+		return ngramOrder;
+	}
+	
+	/**
+	 * @return The number of hash bits, if the classifier uses feature hashing, or 0 if it uses a vocabulary.
+	 */
+	public int hashBits() {
+		return hashBits;
+	}
+	
+	/**
+	 * @return The vocabulary (empty for feature hashing and after the model has been moved off the heap).
+	 */
 	public List<Entry<String, Integer>> vocabulary() {
 		return vocabulary;
 	}
@@ -0,0 +1,134 @@
+package uni.ml.text;
+
+import java.util.Arrays;
+
+/**
+ * Reusable scratch space for classifying texts without creating objects:
+ * a tokenizer with its word buffer, the set of distinct vocabulary indices present in the current text and the class scores.
+ * A context must not be shared between threads, use one context per thread instead.
+ */
+public class ClassificationContext {
+
+	final Tokenizer tokenizer = new Tokenizer();
+	int[] features = new int[64];
+	int numFeatures = 0;
+	private int[] marks = new int[0];  // marks[k] == generation <=> feature k is in the set
+	private int generation = 0;
+	private double[] scores = new double[0];
+	private double[] bounds = new double[0];
+	private NGramWindow window;
+	long numOperations = 0;        // log probabilities of (feature, target value) pairs to be added
+	long numPrunedOperations = 0;  // log probabilities skipped by pruning or early stopping
+	long numEarlyStops = 0;        // classifications stopped before all features were scored
+	long deadline = Long.MAX_VALUE; // time (System.nanoTime()) at which the current classification has to stop
+
+	/**
+	 * Empties the feature set.
+	 * @param vocabularySize The number of distinct features.
+	 */
+	void clearFeatures(int vocabularySize) {
+		numFeatures = 0;
+		if (marks.length < vocabularySize) {
+			marks = new int[vocabularySize];
+			generation = 0;
+		}
+		if (++generation == 0) { // overflow: reset all marks
+			Arrays.fill(marks, 0);
+			generation = 1;
+		}
+	}
+
+	/**
+	 * Adds a feature to the set, unless it is already present.
+	 */
+	void addFeature(int k) {
+		if (marks[k] == generation)
+			return;
+		marks[k] = generation;
+		if (numFeatures == features.length)
+			features = Arrays.copyOf(features, 2*features.length);
+		features[numFeatures++] = k;
+	}
+
+	/**
+	 * Sorts the features in ascending order.
+	 */
+	void sortFeatures() {
+		Arrays.sort(features, 0, numFeatures);
+	}
+
+	/**
+	 * @return An empty n-gram window of the given order.
+	 */
+	NGramWindow window(int order) {
+		if (window == null || window.order() != order)
+			window = new NGramWindow(order);
+		window.clear();
+		return window;
+	}
+
+	/**
+	 * @return The score buffer, resized to numClasses if necessary.
+	 */
+	double[] scores(int numClasses) {
+		if (scores.length != numClasses)
+			scores = new double[numClasses];
+		return scores;
+	}
+
+	/**
+	 * @return A buffer of at least the given size for the bounds of pruning.
+	 */
+	double[] bounds(int size) {
+		if (bounds.length < size)
+			bounds = new double[Math.max(size, 2*bounds.length)];
+		return bounds;
+	}
+
+	/**
+	 * @return The logarithmic (unnormalized) posteriors of the last classified text, in the order of the target values.
+	 * The array is overwritten by the next classification.
+	 */
+	public double[] scores() {
+		return scores;
+	}
+
+	/**
+	 * @return The number of distinct vocabulary words in the last classified text.
+	 */
+	public int numFeatures() {
+		return numFeatures;
+	}
+
+	/**
+	 * @return The number of log probabilities to be added by the classifications with this context (features * target values),
+	 * counted only if pruning or early stopping is enabled (see BayesTextClassifier.setPruning(), setEarlyStopping()).
+	 */
+	public long numOperations() {
+		return numOperations;
+	}
+
+	/**
+	 * @return The number of log probabilities skipped by pruning or early stopping in the classifications with this context.
+	 */
+	public long numPrunedOperations() {
+		return numPrunedOperations;
+	}
+
+	/**
+	 * @return The number of classifications with this context that stopped before all features were scored
+	 * (see BayesTextClassifier.setEarlyStopping()).
+	 */
+	public long numEarlyStops() {
+		return numEarlyStops;
+	}
+
+	/**
+	 * Resets the numbers of operations.
+	 */
+	public void resetOperations() {
+		numOperations = 0;
+		numPrunedOperations = 0;
+		numEarlyStops = 0;
+	}
+}
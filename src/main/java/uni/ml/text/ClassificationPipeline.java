@@ -0,0 +1,237 @@
+package uni.ml.text;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import uni.ml.util.CompressedFiles;
+
+/**
+ * Classifies a text file with a trained classifier in four concurrent stages: read, tokenize, classify and write.
+ * The stages are connected by bounded queues, so a fast stage blocks (backpressure) instead of buffering the whole file,
+ * and reading/writing overlaps with tokenizing/classifying. The number of lines in flight (read but not yet written,
+ * including lines held back to restore the input order) is bounded by 4 * queue capacity, so a line that stalls
+ * in one worker blocks the reader instead of letting the others overtake it without limit.
+ * Reading and writing a file is sequential by nature and runs on one thread each,
+ * the number of tokenizer and classifier threads is configurable.
+ * The output contains one predicted label per line, in the order of the input (same format as
+ * {@link TextDataset#saveToFile(File, boolean)} without words).
+ */
+public class ClassificationPipeline {
+
+	/**
+	 * A line of the input file travelling through the stages.
+	 */
+	private static class Item {
+		static final Item END = new Item(-1, null);
+
+		final long index;
+		final String line;
+		TextInstance instance;
+		String label;
+
+		Item(long index, String line) {
+			this.index = index;
+			this.line = line;
+		}
+	}
+
+	/**
+	 * A stage with multiple workers, that takes items from an input queue, processes them and passes them to the output queue.
+	 * The last worker to see the end of the input forwards the end marker to the output queue.
+	 */
+	private abstract class Stage implements Callable<Long> {
+		private final BlockingQueue<Item> input;
+		private final BlockingQueue<Item> output;
+		private final AtomicInteger activeWorkers;
+
+		Stage(BlockingQueue<Item> input, BlockingQueue<Item> output, int numWorkers) {
+			this.input = input;
+			this.output = output;
+			this.activeWorkers = new AtomicInteger(numWorkers);
+		}
+
+		abstract void process(Item item);
+
+		@Override
+		public Long call() throws InterruptedException {
+			long numProcessed = 0;
+			Item item;
+			while ((item = input.take()) != Item.END) {
+				process(item);
+				output.put(item);
+				numProcessed++;
+			}
+			input.put(Item.END); // let the other workers of this stage terminate
+			if (activeWorkers.decrementAndGet() == 0)
+				output.put(Item.END);
+			return numProcessed;
+		}
+	}
+
+
+	private final BayesTextClassifier classifier;
+	private final Function<String, String> filter;
+	private int tokenizerThreads = 1;
+	private int classifierThreads = Math.max(1, Runtime.getRuntime().availableProcessors()-1);
+	private int queueCapacity = 1024;
+
+	/**
+	 * @param classifier A trained classifier.
+	 * @param filter The word filter to apply to each input line (see {@link TextDataset#loadFromFile(File, Function)}).
+	 * Must be thread-safe if more than one tokenizer thread is used.
+	 */
+	public ClassificationPipeline(BayesTextClassifier classifier, Function<String, String> filter) {
+		this.classifier = classifier;
+		this.filter = filter;
+	}
+
+	public void setTokenizerThreads(int tokenizerThreads) {
+		if (tokenizerThreads <= 0)
+			throw new IllegalArgumentException("number of tokenizer threads must be positive: " + tokenizerThreads);
+		this.tokenizerThreads = tokenizerThreads;
+	}
+
+	public void setClassifierThreads(int classifierThreads) {
+		if (classifierThreads <= 0)
+			throw new IllegalArgumentException("number of classifier threads must be positive: " + classifierThreads);
+		this.classifierThreads = classifierThreads;
+	}
+
+	/**
+	 * @param queueCapacity The maximum number of lines waiting between two stages (at most 4 * queueCapacity lines are in flight).
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		if (queueCapacity <= 0)
+			throw new IllegalArgumentException("queue capacity must be positive: " + queueCapacity);
+		this.queueCapacity = queueCapacity;
+	}
+
+	public int tokenizerThreads() {
+		return tokenizerThreads;
+	}
+
+	public int classifierThreads() {
+		return classifierThreads;
+	}
+
+	public int queueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * Reads all non-empty lines of the (plain or gzip compressed) file into the queue.
+	 * @param inFlight Acquired for each line, released when it has been written.
+	 */
+	private long read(File file, BlockingQueue<Item> output, Semaphore inFlight) throws IOException, InterruptedException {
+		long numLines = 0;
+		try (BufferedReader r = CompressedFiles.openReader(file)) {
+			String line;
+			while ((line = r.readLine()) != null) {
+			    line = line.trim();
+			    if (!line.isEmpty()) {
+			    	inFlight.acquire();
+			    	output.put(new Item(numLines++, line));
+			    }
+			}
+		}
+		output.put(Item.END);
+		return numLines;
+	}
+
+	/**
+	 * Writes the labels of the classified items in input order.
+	 * Items that overtook a predecessor in a parallel stage are held back until the predecessor arrives.
+	 * @param inFlight Released for each written line.
+	 */
+	private long write(BlockingQueue<Item> input, File file, Semaphore inFlight) throws IOException, InterruptedException {
+		Map<Long, Item> pending = new HashMap<>();
+		long next = 0;
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+	              new FileOutputStream(file), "utf-8"))) {
+			Item item;
+			while ((item = input.take()) != Item.END) {
+				pending.put(item.index, item);
+				while ((item = pending.remove(next)) != null) {
+					writer.write(item.label);
+					writer.write("\n");
+					next++;
+					inFlight.release();
+				}
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Classifies each line of the input file and writes the predicted labels to the output file.
+	 * @return The number of classified instances.
+	 * @throws IOException If reading or writing fails.
+	 */
+	public long run(File input, File output) throws IOException {
+		BlockingQueue<Item> lines = new ArrayBlockingQueue<>(queueCapacity);
+		BlockingQueue<Item> instances = new ArrayBlockingQueue<>(queueCapacity);
+		BlockingQueue<Item> labels = new ArrayBlockingQueue<>(queueCapacity);
+		Semaphore inFlight = new Semaphore((int) Math.min(Integer.MAX_VALUE, 4L*queueCapacity));
+
+		Stage tokenizer = new Stage(lines, instances, tokenizerThreads) {
+			@Override
+			void process(Item item) {
+				item.instance = TextDataset.createTextInstance(item.line, filter);
+			}
+		};
+		Stage classify = new Stage(instances, labels, classifierThreads) {
+			@Override
+			void process(Item item) {
+				item.label = classifier.classifyBayesText(item.instance);
+				item.instance = null;
+			}
+		};
+
+		int numThreads = 2 + tokenizerThreads + classifierThreads;
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		CompletionService<Long> completion = new ExecutorCompletionService<>(executor);
+		try {
+			completion.submit(() -> read(input, lines, inFlight));
+			for (int i = 0; i < tokenizerThreads; i++)
+				completion.submit(tokenizer);
+			for (int i = 0; i < classifierThreads; i++)
+				completion.submit(classify);
+			Future<Long> numWritten = completion.submit(() -> write(labels, output, inFlight));
+
+			// wait for all stages, fail fast if any of them fails
+			for (int i = 0; i < numThreads; i++) {
+				completion.take().get();
+			}
+			return numWritten.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException("classification pipeline failed", cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("classification pipeline interrupted", e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
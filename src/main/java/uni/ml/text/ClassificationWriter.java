@@ -0,0 +1,199 @@
+package uni.ml.text;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Writes classification results straight from primitive arrays of predicted class indices to a file.
+ * Rows are encoded into a large direct buffer, which is flushed through a file channel, so no objects are created per row.
+ * Each row starts with the predicted label, optionally followed by a tab separated logarithmic score, a tab separated
+ * probability and a tab separated, comma delimited list of the top-k labels. Without optional columns the output has the same format as
+ * {@link TextDataset#saveToFile(File, boolean)} without words.
+ */
+public class ClassificationWriter implements Closeable {
+
+	public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+	private static final int SCORE_DECIMALS = 6;
+	private static final long SCORE_SCALE = 1000000L;
+	private static final int MAX_NUMBER_LENGTH = 32;
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+	private final byte[][] labelCodes;
+	private final int maxLabelLength;
+	private final byte[] digits = new byte[20];
+	private long numRows = 0;
+
+	/**
+	 * Opens a writer with the default buffer size. An existing file is overwritten.
+	 * @param file The destination file.
+	 * @param labels The class labels, the predicted class indices refer to.
+	 */
+	public ClassificationWriter(File file, List<String> labels) throws IOException {
+		this(file, labels, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Opens a writer. An existing file is overwritten.
+	 * @param file The destination file.
+	 * @param labels The class labels, the predicted class indices refer to.
+	 * @param bufferSize The size of the direct output buffer in bytes.
+	 */
+	public ClassificationWriter(File file, List<String> labels, int bufferSize) throws IOException {
+		labelCodes = new byte[labels.size()][];
+		int maxLength = 0;
+		for (int i = 0; i < labelCodes.length; i++) {
+			labelCodes[i] = labels.get(i).getBytes(StandardCharsets.UTF_8);
+			maxLength = Math.max(maxLength, labelCodes[i].length);
+		}
+		maxLabelLength = maxLength;
+		buffer = ByteBuffer.allocateDirect(Math.max(bufferSize, 4096));
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/**
+	 * Writes the buffered bytes to the file channel.
+	 */
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private void ensureRemaining(int numBytes) throws IOException {
+		if (buffer.remaining() < numBytes)
+			flush();
+		if (buffer.remaining() < numBytes)
+			throw new IOException("row of " + numBytes + " bytes exceeds the buffer size " + buffer.capacity());
+	}
+
+	private void putLabel(int classIndex) {
+		buffer.put(labelCodes[classIndex]);
+	}
+
+	/**
+	 * Encodes a non-negative number in decimal notation.
+	 */
+	private void putDigits(long value, int minDigits) {
+		int n = 0;
+		do {
+			digits[n++] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value > 0 || n < minDigits);
+		while (n > 0) {
+			buffer.put(digits[--n]);
+		}
+	}
+
+	/**
+	 * Encodes a score in fixed point notation with {@value #SCORE_DECIMALS} decimals.
+	 */
+	private void putScore(double score) {
+		if (Double.isNaN(score) || Double.isInfinite(score) || Math.abs(score) >= Long.MAX_VALUE/SCORE_SCALE) {
+			// rare: fall back to the regular (allocating) string conversion
+			buffer.put(Double.toString(score).getBytes(StandardCharsets.US_ASCII));
+			return;
+		}
+		long scaled = Math.round(Math.abs(score)*SCORE_SCALE);
+		if (score < 0 && scaled != 0)
+			buffer.put((byte) '-');
+		putDigits(scaled/SCORE_SCALE, 1);
+		buffer.put((byte) '.');
+		putDigits(scaled%SCORE_SCALE, SCORE_DECIMALS);
+	}
+
+	/**
+	 * Writes one row per prediction (only the label column).
+	 * @param predictions The predicted class indices.
+	 */
+	public void write(int[] predictions) throws IOException {
+		write(predictions, null, null, 0, 0, predictions.length);
+	}
+
+	/**
+	 * Writes one row per prediction in the range [from, to).
+	 * @param predictions The predicted class indices.
+	 * @param scores The scores of the predictions (same indexing as predictions) or null to omit the score column.
+	 * @param topLabels The class indices of the k best labels per prediction, stored row by row
+	 * (the labels of prediction i start at i*k), or null to omit the top-k column.
+	 * @param k The number of labels per prediction in topLabels.
+	 * @param from The index of the first prediction (inclusive).
+	 * @param to The index of the last prediction (exclusive).
+	 */
+	public void write(int[] predictions, double[] scores, int[] topLabels, int k, int from, int to) throws IOException {
+		write(predictions, scores, null, topLabels, k, from, to);
+	}
+
+	/**
+	 * Writes one row per prediction in the range [from, to), with separate columns for logarithmic scores and probabilities.
+	 * @param predictions The predicted class indices.
+	 * @param scores The logarithmic scores of the predictions (same indexing as predictions) or null to omit the column.
+	 * @param probabilities The probabilities of the predictions (same indexing as predictions) or null to omit the column.
+	 * @param topLabels The class indices of the k best labels per prediction, stored row by row
+	 * (the labels of prediction i start at i*k), or null to omit the top-k column.
+	 * @param k The number of labels per prediction in topLabels.
+	 * @param from The index of the first prediction (inclusive).
+	 * @param to The index of the last prediction (exclusive).
+	 */
+	public void write(int[] predictions, double[] scores, double[] probabilities, int[] topLabels, int k, int from, int to)
+			throws IOException {
+		int maxRowLength = maxLabelLength + 1;
+		if (scores != null)
+			maxRowLength += 1 + MAX_NUMBER_LENGTH;
+		if (probabilities != null)
+			maxRowLength += 1 + MAX_NUMBER_LENGTH;
+		if (topLabels != null)
+			maxRowLength += 1 + k*(maxLabelLength+1);
+
+		for (int i = from; i < to; i++) {
+			ensureRemaining(maxRowLength);
+			putLabel(predictions[i]);
+			if (scores != null) {
+				buffer.put((byte) '\t');
+				putScore(scores[i]);
+			}
+			if (probabilities != null) {
+				buffer.put((byte) '\t');
+				putScore(probabilities[i]);
+			}
+			if (topLabels != null) {
+				buffer.put((byte) '\t');
+				for (int j = 0; j < k; j++) {
+					if (j > 0)
+						buffer.put((byte) ',');
+					putLabel(topLabels[i*k+j]);
+				}
+			}
+			buffer.put((byte) '\n');
+			numRows++;
+		}
+	}
+
+	/**
+	 * @return The number of rows written so far.
+	 */
+	public long numRows() {
+		return numRows;
+	}
+
+	/**
+	 * Flushes the buffer and closes the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
+	}
+}
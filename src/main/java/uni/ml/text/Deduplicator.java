@@ -0,0 +1,263 @@
+package uni.ml.text;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import uni.ml.util.Hashing;
+import uni.ml.util.LongIntMap;
+
+/**
+ * Removes duplicate and near-duplicate instances from a text dataset, e.g. before training.
+ * <p>
+ * Exact duplicates (same words in the same order) are found by hashing the word sequences.
+ * Near-duplicates are found by MinHash with locality sensitive hashing (LSH): each instance is represented by
+ * the set of its shingles (sequences of shingleSize consecutive words) and its signature, the minimum hashes of the shingles
+ * for numBands*rowsPerBand hash functions. Instances whose signatures agree in all rows of at least one band are candidates,
+ * a candidate is a near-duplicate if the fraction of agreeing hashes (an estimate of the Jaccard similarity
+ * of the shingle sets) is at least the threshold.
+ * <p>
+ * The first instance of a group of duplicates is kept, regardless of the labels. The signatures are computed in parallel
+ * in blocks of instances. The memory is independent of the length of the texts: primitive open addressing tables
+ * (no objects per entry) with one long key and int value per distinct word sequence and per band of a kept instance,
+ * two ints per band of a kept instance for the bucket lists and its signature of numBands*rowsPerBand ints.
+ */
+public class Deduplicator {
+
+	private static final int BLOCK_SIZE = 4096;
+
+	private int shingleSize = 3;
+	private int numBands = 16;
+	private int rowsPerBand = 4;
+	private double threshold = 0.8;
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+	private int numExactDuplicates = 0;
+	private int numNearDuplicates = 0;
+
+	/**
+	 * @param shingleSize The number of consecutive words of a shingle (default 3).
+	 */
+	public void setShingleSize(int shingleSize) {
+		if (shingleSize <= 0)
+			throw new IllegalArgumentException("shingle size must be positive: " + shingleSize);
+		this.shingleSize = shingleSize;
+	}
+
+	/**
+	 * Sets the number of bands and rows per band of the LSH (default 16 bands of 4 rows).
+	 * More rows per band find fewer candidates of low similarity, more bands find more candidates.
+	 */
+	public void setBands(int numBands, int rowsPerBand) {
+		if (numBands <= 0 || rowsPerBand <= 0)
+			throw new IllegalArgumentException("number of bands and rows must be positive: " + numBands + ", " + rowsPerBand);
+		this.numBands = numBands;
+		this.rowsPerBand = rowsPerBand;
+	}
+
+	/**
+	 * @param threshold The minimum estimated Jaccard similarity of near-duplicates (default 0.8).
+	 */
+	public void setThreshold(double threshold) {
+		if (threshold <= 0 || threshold > 1)
+			throw new IllegalArgumentException("threshold must be in (0, 1]: " + threshold);
+		this.threshold = threshold;
+	}
+
+	public void setNumThreads(int numThreads) {
+		if (numThreads <= 0)
+			throw new IllegalArgumentException("number of threads must be positive: " + numThreads);
+		this.numThreads = numThreads;
+	}
+
+	public int shingleSize() {
+		return shingleSize;
+	}
+
+	public double threshold() {
+		return threshold;
+	}
+
+	public int numThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * @return The number of exact duplicates removed by the last deduplication.
+	 */
+	public int numExactDuplicates() {
+		return numExactDuplicates;
+	}
+
+	/**
+	 * @return The number of near-duplicates (but not exact duplicates) removed by the last deduplication.
+	 */
+	public int numNearDuplicates() {
+		return numNearDuplicates;
+	}
+
+	/**
+	 * @return The number of instances removed by the last deduplication.
+	 */
+	public int numRemoved() {
+		return numExactDuplicates + numNearDuplicates;
+	}
+
+	/**
+	 * Computes the hash of the word sequence and the MinHash signature of an instance.
+	 * @param signatures Receives the signature at [offset, offset+numBands*rowsPerBand).
+	 */
+	private void sign(TextInstance instance, long[] hashes, int index, int[] signatures, int offset) {
+		List<String> words = instance.words();
+		hashes[index] = Hashing.hash64(words);
+		int numHashes = numBands*rowsPerBand;
+		for (int i = 0; i < numHashes; i++) {
+			signatures[offset+i] = Integer.MAX_VALUE;
+		}
+		long[] wordHashes = new long[words.size()];
+		for (int j = 0; j < words.size(); j++) {
+			wordHashes[j] = Hashing.hash64(words.get(j));
+		}
+		int numShingles = Math.max(1, words.size()-shingleSize+1);
+		for (int j = 0; j < numShingles; j++) {
+			long shingle = Hashing.SEED;
+			for (int n = j; n < Math.min(j+shingleSize, words.size()); n++) {
+				shingle = Hashing.combine(shingle, wordHashes[n]);
+			}
+			for (int i = 0; i < numHashes; i++) {
+				int h = (int) (Hashing.mix64(shingle + i*Hashing.SEED) >>> 32);
+				if (h < signatures[offset+i])
+					signatures[offset+i] = h;
+			}
+		}
+	}
+
+	/**
+	 * Computes the hashes and signatures of a block of instances in parallel.
+	 */
+	private void sign(TextDatasetView dataset, int from, int to, long[] hashes, int[] signatures, ExecutorService executor)
+			throws InterruptedException {
+		int numHashes = numBands*rowsPerBand;
+		int numTasks = Math.min(numThreads, to-from);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int t = 0; t < numTasks; t++) {
+			int taskFrom = from + (int) ((long) (to-from)*t/numTasks);
+			int taskTo = from + (int) ((long) (to-from)*(t+1)/numTasks);
+			futures.add(executor.submit(() -> {
+				for (int i = taskFrom; i < taskTo; i++) {
+					sign(dataset.instanceAt(i), hashes, i-from, signatures, (i-from)*numHashes);
+				}
+			}));
+		}
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * @return The key as key of a {@link LongIntMap}, which reserves 0 (merging 0 with 1 only adds a candidate).
+	 */
+	private static long mapKey(long key) {
+		return key == 0? 1 : key;
+	}
+
+	/**
+	 * Removes the duplicates and near-duplicates of instances from a dataset.
+	 * @return A view of the dataset without them, in the original order.
+	 */
+	public TextDatasetView deduplicate(TextDatasetView dataset) {
+		numExactDuplicates = 0;
+		numNearDuplicates = 0;
+		int numHashes = numBands*rowsPerBand;
+		LongIntMap sequences = new LongIntMap();     // hash of the words -> first instance
+		LongIntMap buckets = new LongIntMap();       // (band, hash of its rows) -> last posting of the bucket + 1
+		int[] postings = new int[1024];              // kept instance (index into kept) of a posting
+		int[] nextPostings = new int[postings.length]; // previous posting of the same bucket + 1, 0 at the end
+		int numPostings = 0;
+		int[] keptSignatures = new int[64*numHashes];
+		int[] kept = new int[64];
+		int numKept = 0;
+		long[] hashes = new long[BLOCK_SIZE];
+		int[] signatures = new int[BLOCK_SIZE*numHashes];
+		long[] bandKeys = new long[numBands];
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			for (int from = 0; from < dataset.numInstances(); from += BLOCK_SIZE) {
+				int to = Math.min(from+BLOCK_SIZE, dataset.numInstances());
+				sign(dataset, from, to, hashes, signatures, executor);
+				for (int i = from; i < to; i++) {
+					int offset = (i-from)*numHashes;
+					long sequence = mapKey(hashes[i-from]);
+					int first = sequences.get(sequence, -1);
+					if (first < 0)
+						sequences.put(sequence, i);
+					else if (dataset.instanceAt(first).words().equals(dataset.instanceAt(i).words())) {
+						numExactDuplicates++;
+						continue;
+					}
+					for (int b = 0; b < numBands; b++) {
+						long key = b;
+						for (int r = 0; r < rowsPerBand; r++) {
+							key = Hashing.combine(key, signatures[offset+b*rowsPerBand+r]);
+						}
+						bandKeys[b] = mapKey(key);
+					}
+					if (isNearDuplicate(signatures, offset, bandKeys, buckets, postings, nextPostings, keptSignatures)) {
+						numNearDuplicates++;
+						continue;
+					}
+					if (numKept == kept.length) {
+						kept = Arrays.copyOf(kept, 2*numKept);
+						keptSignatures = Arrays.copyOf(keptSignatures, 2*numKept*numHashes);
+					}
+					System.arraycopy(signatures, offset, keptSignatures, numKept*numHashes, numHashes);
+					int k = numKept;
+					kept[numKept++] = i;
+					for (long key : bandKeys) {
+						if (numPostings == postings.length) {
+							postings = Arrays.copyOf(postings, 2*numPostings);
+							nextPostings = Arrays.copyOf(nextPostings, 2*numPostings);
+						}
+						postings[numPostings] = k;
+						nextPostings[numPostings] = buckets.get(key, 0);
+						buckets.put(key, ++numPostings);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while deduplicating", e);
+		} finally {
+			executor.shutdown();
+		}
+		return new TextDatasetIndexedView(dataset, Arrays.copyOf(kept, numKept));
+	}
+
+	/**
+	 * @return true, if a kept instance sharing a band with the signature is at least as similar as the threshold.
+	 */
+	private boolean isNearDuplicate(int[] signatures, int offset, long[] bandKeys, LongIntMap buckets, int[] postings,
+			int[] nextPostings, int[] keptSignatures) {
+		int numHashes = numBands*rowsPerBand;
+		for (long key : bandKeys) {
+			for (int p = buckets.get(key, 0); p > 0; p = nextPostings[p-1]) {
+				int candidate = postings[p-1]*numHashes;
+				int numEqual = 0;
+				for (int i = 0; i < numHashes; i++) {
+					if (keptSignatures[candidate+i] == signatures[offset+i])
+						numEqual++;
+				}
+				if (numEqual >= threshold*numHashes)
+					return true;
+			}
+		}
+		return false;
+	}
+}
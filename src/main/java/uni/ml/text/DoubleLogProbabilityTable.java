@@ -0,0 +1,62 @@
+package uni.ml.text;
+
+/**
+ * A table of log probabilities in double precision on the Java heap.
+ */
+public class DoubleLogProbabilityTable implements LogProbabilityTable {
+
+	private final double[] logClassProbabilities;  // ln(P(v)) per target value
+	private final double[] logWordProbabilities;   // ln(P(wk|v)), feature-major: index k*numClasses+v
+
+	/**
+	 * @param logClassProbabilities ln(P(v)) per target value.
+	 * @param logWordProbabilities ln(P(wk|v)) in feature-major order: ln(P(wk|v)) at index k*numClasses+v.
+	 */
+	public DoubleLogProbabilityTable(double[] logClassProbabilities, double[] logWordProbabilities) {
+		this.logClassProbabilities = logClassProbabilities;
+		this.logWordProbabilities = logWordProbabilities;
+	}
+
+	@Override
+	public int numClasses() {
+		return logClassProbabilities.length;
+	}
+
+	@Override
+	public int numFeatures() {
+		return logWordProbabilities.length/logClassProbabilities.length;
+	}
+
+	@Override
+	public double logClassProbability(int v) {
+		return logClassProbabilities[v];
+	}
+
+	@Override
+	public double logWordProbability(int k, int v) {
+		return logWordProbabilities[k*logClassProbabilities.length+v];
+	}
+
+	@Override
+	public void score(int[] features, int numFeatures, double[] scores, int offset) {
+		int numClasses = logClassProbabilities.length;
+		for (int v = 0; v < numClasses; v++) {
+			scores[offset+v] = logClassProbabilities[v];
+		}
+		ScoringKernel.addRows(logWordProbabilities, numClasses, features, numFeatures, scores, offset);
+	}
+
+	@Override
+	public double addColumn(int[] features, int from, int to, int v, double score) {
+		int numClasses = logClassProbabilities.length;
+		for (int i = from; i < to; i++) {
+			score += logWordProbabilities[features[i]*numClasses+v];
+		}
+		return score;
+	}
+
+	@Override
+	public long memoryBytes() {
+		return 8L*(logClassProbabilities.length + logWordProbabilities.length);
+	}
+}
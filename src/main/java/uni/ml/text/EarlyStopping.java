@@ -0,0 +1,94 @@
+package uni.ml.text;
+
+/**
+ * Settings of anytime classification (see {@link BayesTextClassifier#setEarlyStopping(EarlyStopping)}): the scores of
+ * all target values are accumulated feature by feature in the order of the text, and the prediction is made as soon as
+ * one of the criteria holds:
+ * <ul>
+ * <li>the lead of the best partial score over the second best exceeds the largest change the remaining features can
+ * make to the difference of two scores (exact: the prediction is the same as with all features, up to rounding),</li>
+ * <li>the lead exceeds the margin (approximate),</li>
+ * <li>the text has more tokens than the token budget (the remaining tokens are not even read) or</li>
+ * <li>the time budget for reading the tokens of the text is spent (approximate).</li>
+ * </ul>
+ * By default only the exact criterion is used.
+ */
+public class EarlyStopping {
+
+	private double margin = Double.POSITIVE_INFINITY;
+	private int maxTokens = Integer.MAX_VALUE;
+	private long timeBudget = Long.MAX_VALUE;
+
+	/**
+	 * Creates settings with the exact criterion only.
+	 */
+	public EarlyStopping() {}
+
+	/**
+	 * Copies the settings.
+	 */
+	public EarlyStopping(EarlyStopping other) {
+		margin = other.margin;
+		maxTokens = other.maxTokens;
+		timeBudget = other.timeBudget;
+	}
+
+	/**
+	 * Stops as soon as the logarithmic posterior of the best target value exceeds the second best by the margin,
+	 * i.e. the best target value is at least e^margin times as probable given the features scored so far.
+	 * @param margin The positive margin, infinity to disable the criterion.
+	 */
+	public void setMargin(double margin) {
+		if (!(margin > 0))
+			throw new IllegalArgumentException("margin must be positive: " + margin);
+		this.margin = margin;
+	}
+
+	public double margin() {
+		return margin;
+	}
+
+	/**
+	 * Classifies a text by its first tokens only.
+	 * @param maxTokens The positive maximum number of tokens read from a text.
+	 */
+	public void setMaxTokens(int maxTokens) {
+		if (maxTokens <= 0)
+			throw new IllegalArgumentException("token budget must be positive: " + maxTokens);
+		this.maxTokens = maxTokens;
+	}
+
+	public int maxTokens() {
+		return maxTokens;
+	}
+
+	/**
+	 * Stops reading tokens once the classification of a text took longer than the budget. The tokens read so far
+	 * are scored (which takes little time compared to reading them). The time is checked every 16 tokens,
+	 * so the budget may be exceeded slightly.
+	 * @param nanos The positive time budget in nanoseconds.
+	 */
+	public void setTimeBudget(long nanos) {
+		if (nanos <= 0)
+			throw new IllegalArgumentException("time budget must be positive: " + nanos);
+		this.timeBudget = nanos;
+	}
+
+	public long timeBudget() {
+		return timeBudget;
+	}
+
+	/**
+	 * @return The time (System.nanoTime()) at which a classification starting now has to stop.
+	 */
+	long deadline() {
+		long now = System.nanoTime();
+		return timeBudget > Long.MAX_VALUE - now? Long.MAX_VALUE : now + timeBudget;
+	}
+
+	@Override
+	public String toString() {
+		return "margin: " + margin + ", max. tokens: " + (maxTokens == Integer.MAX_VALUE? "-" : maxTokens)
+				+ ", time budget: " + (timeBudget == Long.MAX_VALUE? "-" : timeBudget + " ns");
+	}
+}
@@ -0,0 +1,265 @@
+package uni.ml.text;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The evaluation of a classifier on a labeled test set: the confusion matrix with per-class precision, recall and F1,
+ * their macro and micro averages and the throughput.
+ * <p>
+ * The test set is classified in a single pass by several threads, each counting into its own primitive matrix
+ * with its own classification context. The matrices are added up at the end.
+ * Instances whose label is not a target value of the classifier (or that could not be classified) are counted
+ * in an additional row (column), which is not a class of its own: they lower the accuracy and micro averages
+ * but are not included in the per-class metrics.
+ */
+public class Evaluation {
+
+	private final List<String> labels;
+	private final int[] counts;   // instances with actual label i and predicted label j at i*(|labels|+1)+j
+	private final long nanos;
+
+	private Evaluation(List<String> labels, int[] counts, long nanos) {
+		this.labels = labels;
+		this.counts = counts;
+		this.nanos = nanos;
+	}
+
+	/**
+	 * Classifies a labeled test set in parallel.
+	 * @param numThreads The number of classifying threads.
+	 */
+	public static Evaluation evaluate(BayesTextClassifier classifier, TextDatasetView testSet, int numThreads) {
+		if (numThreads <= 0)
+			throw new IllegalArgumentException("number of threads must be positive: " + numThreads);
+		List<String> labels = classifier.targetValues();
+		int size = labels.size()+1;
+		Map<String, Integer> labelIndices = new HashMap<>();
+		for (int v = 0; v < labels.size(); v++) {
+			labelIndices.put(labels.get(v), v);
+		}
+
+		long start = System.nanoTime();
+		int numInstances = testSet.numInstances();
+		int numTasks = Math.max(1, Math.min(numThreads, numInstances));
+		ExecutorService executor = Executors.newFixedThreadPool(numTasks);
+		int[] counts = new int[size*size];
+		try {
+			List<Future<int[]>> futures = new ArrayList<>();
+			for (int t = 0; t < numTasks; t++) {
+				int from = (int) ((long) numInstances*t/numTasks);
+				int to = (int) ((long) numInstances*(t+1)/numTasks);
+				futures.add(executor.submit(() -> {
+					int[] taskCounts = new int[size*size];
+					ClassificationContext context = new ClassificationContext();
+					for (int i = from; i < to; i++) {
+						TextInstance instance = testSet.instanceAt(i);
+						int predicted = classifier.predictBayesText(instance, context);
+						int actual = labelIndices.getOrDefault(instance.label(), size-1);
+						taskCounts[actual*size + (predicted < 0? size-1 : predicted)]++;
+					}
+					return taskCounts;
+				}));
+			}
+			for (Future<int[]> future : futures) {
+				int[] taskCounts = future.get();
+				for (int i = 0; i < counts.length; i++) {
+					counts[i] += taskCounts[i];
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while evaluating", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+		return new Evaluation(labels, counts, System.nanoTime()-start);
+	}
+
+	/**
+	 * @return The target values (classes) in the order of the rows and columns of the confusion matrix.
+	 */
+	public List<String> labels() {
+		return Collections.unmodifiableList(labels);
+	}
+
+	/**
+	 * @param actual The index of the actual label or |labels| for labels, which are not target values.
+	 * @param predicted The index of the predicted label or |labels| for instances, which could not be classified.
+	 * @return The number of instances with the actual and predicted label.
+	 */
+	public int count(int actual, int predicted) {
+		return counts[actual*(labels.size()+1) + predicted];
+	}
+
+	public int numInstances() {
+		int total = 0;
+		for (int count : counts) {
+			total += count;
+		}
+		return total;
+	}
+
+	private int truePositives(int v) {
+		return count(v, v);
+	}
+
+	private int numActual(int v) {
+		int total = 0;
+		for (int j = 0; j <= labels.size(); j++) {
+			total += count(v, j);
+		}
+		return total;
+	}
+
+	private int numPredicted(int v) {
+		int total = 0;
+		for (int i = 0; i <= labels.size(); i++) {
+			total += count(i, v);
+		}
+		return total;
+	}
+
+	private static double ratio(long numerator, long denominator) {
+		return denominator == 0? 0 : (double) numerator/denominator;
+	}
+
+	private static double f1(double precision, double recall) {
+		return precision+recall == 0? 0 : 2*precision*recall/(precision+recall);
+	}
+
+	/**
+	 * @return The fraction of correctly classified instances.
+	 */
+	public double accuracy() {
+		long correct = 0;
+		for (int v = 0; v < labels.size(); v++) {
+			correct += truePositives(v);
+		}
+		return ratio(correct, numInstances());
+	}
+
+	/**
+	 * @return The fraction of the instances predicted as the v-th target value, which are labeled with it (0 if there are none).
+	 */
+	public double precision(int v) {
+		return ratio(truePositives(v), numPredicted(v));
+	}
+
+	/**
+	 * @return The fraction of the instances labeled with the v-th target value, which are predicted as it (0 if there are none).
+	 */
+	public double recall(int v) {
+		return ratio(truePositives(v), numActual(v));
+	}
+
+	public double f1(int v) {
+		return f1(precision(v), recall(v));
+	}
+
+	/**
+	 * @return The unweighted mean of the precisions of all classes.
+	 */
+	public double macroPrecision() {
+		double sum = 0;
+		for (int v = 0; v < labels.size(); v++) {
+			sum += precision(v);
+		}
+		return sum/labels.size();
+	}
+
+	/**
+	 * @return The unweighted mean of the recalls of all classes.
+	 */
+	public double macroRecall() {
+		double sum = 0;
+		for (int v = 0; v < labels.size(); v++) {
+			sum += recall(v);
+		}
+		return sum/labels.size();
+	}
+
+	/**
+	 * @return The unweighted mean of the F1 scores of all classes.
+	 */
+	public double macroF1() {
+		double sum = 0;
+		for (int v = 0; v < labels.size(); v++) {
+			sum += f1(v);
+		}
+		return sum/labels.size();
+	}
+
+	/**
+	 * @return The precision of all classes together (the accuracy, if all instances were classified).
+	 */
+	public double microPrecision() {
+		long truePositives = 0;
+		long predicted = 0;
+		for (int v = 0; v < labels.size(); v++) {
+			truePositives += truePositives(v);
+			predicted += numPredicted(v);
+		}
+		return ratio(truePositives, predicted);
+	}
+
+	/**
+	 * @return The recall of all classes together (the accuracy, if all labels are target values).
+	 */
+	public double microRecall() {
+		long truePositives = 0;
+		long actual = 0;
+		for (int v = 0; v < labels.size(); v++) {
+			truePositives += truePositives(v);
+			actual += numActual(v);
+		}
+		return ratio(truePositives, actual);
+	}
+
+	public double microF1() {
+		return f1(microPrecision(), microRecall());
+	}
+
+	/**
+	 * @return The number of classified instances per second.
+	 */
+	public double instancesPerSecond() {
+		return numInstances()*1e9/Math.max(1, nanos);
+	}
+
+	/**
+	 * @return The confusion matrix (rows: actual, columns: predicted labels), the per-class metrics,
+	 * their averages and the throughput as text.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder b = new StringBuilder();
+		b.append(String.format("%-8s", "actual"));
+		for (String label : labels) {
+			b.append(String.format(" %7s", label));
+		}
+		b.append(String.format(" %7s %10s %10s %10s%n", "other", "precision", "recall", "F1"));
+		for (int i = 0; i <= labels.size(); i++) {
+			b.append(String.format("%-8s", i < labels.size()? labels.get(i) : "other"));
+			for (int j = 0; j <= labels.size(); j++) {
+				b.append(String.format(" %7d", count(i, j)));
+			}
+			if (i < labels.size())
+				b.append(String.format(" %10.4f %10.4f %10.4f", precision(i), recall(i), f1(i)));
+			b.append(String.format("%n"));
+		}
+		b.append(String.format("macro avg: precision %.4f, recall %.4f, F1 %.4f%n", macroPrecision(), macroRecall(), macroF1()));
+		b.append(String.format("micro avg: precision %.4f, recall %.4f, F1 %.4f%n", microPrecision(), microRecall(), microF1()));
+		b.append(String.format("accuracy: %.4f, instances: %d, %.0f instances/s", accuracy(), numInstances(), instancesPerSecond()));
+		return b.toString();
+	}
+}
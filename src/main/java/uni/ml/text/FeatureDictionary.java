@@ -0,0 +1,33 @@
+package uni.ml.text;
+
+/**
+ * Maps the words (and n-grams) of a compiled model to feature indices.
+ * For a vocabulary of single words, the id of a word is its feature index.
+ * For a vocabulary of n-grams, word ids are packed into n-gram keys (see {@link NGramWindow}), 
+ * which are then mapped to feature indices.
+ * Implementations are thread-safe.
+ */
+public interface FeatureDictionary {
+
+	/**
+	 * @return The id of the word or -1, if it is unknown.
+	 */
+	int wordId(CharSequence word);
+
+	/**
+	 * Looks up a word given as range of a character array.
+	 * @return The id of the word or -1, if it is unknown.
+	 */
+	int wordId(char[] word, int offset, int length);
+
+	/**
+	 * @param key A packed n-gram key (not 0).
+	 * @return The feature index of the n-gram or -1, if it is not in the vocabulary (always -1 for single words).
+	 */
+	int ngramFeature(long key);
+
+	/**
+	 * @return The approximate memory used by the dictionary in bytes.
+	 */
+	long memoryBytes();
+}
@@ -0,0 +1,68 @@
+package uni.ml.text;
+
+/**
+ * Strategies for choosing the words (or n-grams) of the vocabulary.
+ * The scores are computed from the number of training documents of each class containing a word (document frequencies).
+ */
+public enum FeatureSelection {
+
+	/**
+	 * The most frequent words (default).
+	 */
+	FREQUENCY,
+
+	/**
+	 * The words with maximum mutual information I(W;V) between the presence of the word and the class:
+	 * sum over v and e in {0,1} of P(e,v) log P(e,v)/(P(e)P(v)).
+	 */
+	MUTUAL_INFORMATION,
+
+	/**
+	 * The words with maximum chi-square statistic of the 2x2 table (word present, class is v) over all classes v:
+	 * N (N11 N00 - N10 N01)^2 / ((N11+N01) (N11+N10) (N10+N00) (N01+N00)).
+	 */
+	CHI_SQUARE;
+
+	/**
+	 * Scores a word.
+	 * @param documentCounts The number of documents of each class containing the word.
+	 * @param classCounts The number of documents of each class.
+	 * @param numDocuments The total number of documents.
+	 * @return The score of the word, larger is better (not defined for FREQUENCY).
+	 */
+	double score(int[] documentCounts, int[] classCounts, int numDocuments) {
+		int numContaining = 0;
+		for (int count : documentCounts) {
+			numContaining += count;
+		}
+		double n = numDocuments;
+		double score = 0;
+		for (int v = 0; v < classCounts.length; v++) {
+			double n11 = documentCounts[v];                     // containing the word, class v
+			double n10 = numContaining - n11;                   // containing the word, other class
+			double n01 = classCounts[v] - n11;                  // not containing the word, class v
+			double n00 = n - numContaining - n01;               // not containing the word, other class
+			switch (this) {
+			case MUTUAL_INFORMATION:
+				// the cells of class v, the cells of the other classes are added by their own iteration
+				score += information(n11, numContaining, classCounts[v], n) + information(n01, n-numContaining, classCounts[v], n);
+				break;
+			case CHI_SQUARE:
+				double d = n11*n00 - n10*n01;
+				double denominator = (n11+n01)*(n11+n10)*(n10+n00)*(n01+n00);
+				score = Math.max(score, denominator == 0? 0 : n*d*d/denominator);
+				break;
+			default:
+				throw new UnsupportedOperationException("not a scored feature selection: " + this);
+			}
+		}
+		return score;
+	}
+
+	/**
+	 * @return P(e,v) log P(e,v)/(P(e)P(v)) of a cell with count nev, row count ne and column count nv.
+	 */
+	private static double information(double nev, double ne, double nv, double n) {
+		return nev == 0? 0 : nev/n*Math.log(n*nev/(ne*nv));
+	}
+}
@@ -0,0 +1,76 @@
+package uni.ml.text;
+
+/**
+ * A table of log probabilities ln(P(wk|v)) in single precision (half the memory of a double table).
+ * The class probabilities and the scores are kept in double precision.
+ */
+public class FloatLogProbabilityTable implements LogProbabilityTable {
+
+	private final double[] logClassProbabilities;  // ln(P(v)) per target value
+	private final float[] logWordProbabilities;    // ln(P(wk|v)), feature-major: index k*numClasses+v
+
+	/**
+	 * Rounds the log probabilities of a table to single precision.
+	 */
+	public FloatLogProbabilityTable(LogProbabilityTable table) {
+		int numClasses = table.numClasses();
+		logClassProbabilities = new double[numClasses];
+		for (int v = 0; v < numClasses; v++) {
+			logClassProbabilities[v] = table.logClassProbability(v);
+		}
+		logWordProbabilities = new float[table.numFeatures()*numClasses];
+		for (int k = 0; k < table.numFeatures(); k++) {
+			for (int v = 0; v < numClasses; v++) {
+				logWordProbabilities[k*numClasses+v] = (float) table.logWordProbability(k, v);
+			}
+		}
+	}
+
+	@Override
+	public int numClasses() {
+		return logClassProbabilities.length;
+	}
+
+	@Override
+	public int numFeatures() {
+		return logWordProbabilities.length/logClassProbabilities.length;
+	}
+
+	@Override
+	public double logClassProbability(int v) {
+		return logClassProbabilities[v];
+	}
+
+	@Override
+	public double logWordProbability(int k, int v) {
+		return logWordProbabilities[k*logClassProbabilities.length+v];
+	}
+
+	@Override
+	public void score(int[] features, int numFeatures, double[] scores, int offset) {
+		int numClasses = logClassProbabilities.length;
+		for (int v = 0; v < numClasses; v++) {
+			scores[offset+v] = logClassProbabilities[v];
+		}
+		for (int i = 0; i < numFeatures; i++) {
+			int row = features[i]*numClasses;
+			for (int v = 0; v < numClasses; v++) {
+				scores[offset+v] += logWordProbabilities[row+v];
+			}
+		}
+	}
+
+	@Override
+	public double addColumn(int[] features, int from, int to, int v, double score) {
+		int numClasses = logClassProbabilities.length;
+		for (int i = from; i < to; i++) {
+			score += logWordProbabilities[features[i]*numClasses+v];
+		}
+		return score;
+	}
+
+	@Override
+	public long memoryBytes() {
+		return 8L*logClassProbabilities.length + 4L*logWordProbabilities.length;
+	}
+}
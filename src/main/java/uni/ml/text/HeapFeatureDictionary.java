@@ -0,0 +1,60 @@
+package uni.ml.text;
+
+import uni.ml.util.LongIntMap;
+import uni.ml.util.PerfectHashIndex;
+import uni.ml.util.WordIndex;
+
+/**
+ * A feature dictionary on the Java heap. The words are frozen into a {@link PerfectHashIndex} when the dictionary
+ * is created, so that unknown words (most of the words of a text) are rejected after a single probe.
+ */
+public class HeapFeatureDictionary implements FeatureDictionary {
+
+	private final PerfectHashIndex words;
+	private final LongIntMap ngrams;
+
+	/**
+	 * @param words The word ids.
+	 * @param ngrams The feature indices of packed n-gram keys or null for a vocabulary of single words.
+	 */
+	public HeapFeatureDictionary(WordIndex words, LongIntMap ngrams) {
+		this.words = new PerfectHashIndex(words);
+		this.ngrams = ngrams;
+	}
+
+	@Override
+	public int wordId(CharSequence word) {
+		return words.get(word);
+	}
+
+	@Override
+	public int wordId(char[] word, int offset, int length) {
+		return words.get(word, offset, length);
+	}
+
+	/**
+	 * Looks up a word given as range of UTF-8 encoded bytes, e.g. of a memory-mapped file.
+	 * @return The id of the word or -1, if it is unknown.
+	 */
+	public int wordId(byte[] utf8, int offset, int length) {
+		return words.get(utf8, offset, length);
+	}
+
+	@Override
+	public int ngramFeature(long key) {
+		return ngrams == null? -1 : ngrams.get(key, -1);
+	}
+
+	@Override
+	public long memoryBytes() {
+		return words.memoryBytes() + (ngrams == null? 0 : ngrams.memoryBytes());
+	}
+
+	PerfectHashIndex words() {
+		return words;
+	}
+
+	LongIntMap ngrams() {
+		return ngrams;
+	}
+}
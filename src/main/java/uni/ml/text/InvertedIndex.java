@@ -0,0 +1,335 @@
+package uni.ml.text;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import uni.ml.util.WordIndex;
+
+/**
+ * An inverted index over a text dataset: maps each word to its postings, the ids (indices in the dataset)
+ * of the instances containing the word with the number of occurrences (term frequency) in each instance.
+ * The postings of a word are stored in ascending order of ids as variable-length encoded gaps and frequencies
+ * in a single byte array shared by all words. The occurrences of each word per label are stored, too.
+ * <p>
+ * The index answers count table and probability queries of the Bayes classifier without scanning the dataset,
+ * including leave-one-out estimates, i.e. the probabilities after removing one instance from the dataset
+ * (for the same vocabulary size). The index does not change if the dataset is modified.
+ */
+public class InvertedIndex {
+
+	private final WordIndex words = new WordIndex();
+	private final byte[] postings;         // gap and frequency of each posting, variable-length encoded
+	private final int[] offsets;           // start of the postings of word i, offsets[numWords] is the end
+	private final int[] documentFrequencies;
+	private final int[] counts;            // occurrences of word i in the instances of label v at index i*|labels|+v
+	private final List<String> labels = new ArrayList<>(); // in order of first occurrence
+	private final int[] instanceLabels;    // index of the label of each instance
+	private final int[] instanceLengths;   // number of words of each instance
+	private int[] labelInstances = new int[0];
+	private long[] labelWords = new long[0];
+
+	/**
+	 * Iterates over the postings of a word in ascending order of instance ids.
+	 */
+	public static class Postings {
+		private final byte[] data;
+		private int position;
+		private final int end;
+		private int instance = -1;
+		private int frequency = 0;
+
+		Postings(byte[] data, int start, int end) {
+			this.data = data;
+			this.position = start;
+			this.end = end;
+		}
+
+		/**
+		 * Moves to the next posting.
+		 * @return false, if there are no more postings.
+		 */
+		public boolean next() {
+			if (position >= end)
+				return false;
+			instance += readInt();
+			frequency = readInt();
+			return true;
+		}
+
+		private int readInt() {
+			int value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = data[position++];
+				value |= (b & 0x7f) << shift;
+				shift += 7;
+			} while (b < 0);
+			return value;
+		}
+
+		/**
+		 * @return The id of the instance of the current posting.
+		 */
+		public int instance() {
+			return instance;
+		}
+
+		/**
+		 * @return The number of occurrences of the word in the instance of the current posting.
+		 */
+		public int frequency() {
+			return frequency;
+		}
+	}
+
+	/**
+	 * Builds the index in a single pass over a dataset.
+	 */
+	public InvertedIndex(TextDatasetView dataset) {
+		int numInstances = dataset.numInstances();
+		instanceLabels = new int[numInstances];
+		instanceLengths = new int[numInstances];
+		byte[][] wordPostings = new byte[1024][];
+		int[] lengths = new int[wordPostings.length];
+		int[] lastInstances = new int[wordPostings.length]; // id of the last instance containing word i
+		int[] wordCounts = new int[wordPostings.length];    // occurrences per label, like counts
+		int[] frequencies = new int[wordPostings.length];   // occurrences in the current instance
+		int[] instanceWords = new int[64];                  // distinct words of the current instance
+		int numLabels = 0;
+		for (int i = 0; i < numInstances; i++) {
+			TextInstance instance = dataset.instanceAt(i);
+			int v = labels.indexOf(instance.label());
+			if (v < 0) {
+				v = numLabels++;
+				labels.add(instance.label());
+				labelInstances = Arrays.copyOf(labelInstances, numLabels);
+				labelWords = Arrays.copyOf(labelWords, numLabels);
+				int[] newCounts = new int[wordPostings.length*numLabels];
+				for (int k = 0; k < words.size(); k++) {
+					System.arraycopy(wordCounts, k*(numLabels-1), newCounts, k*numLabels, numLabels-1);
+				}
+				wordCounts = newCounts;
+			}
+			instanceLabels[i] = v;
+			instanceLengths[i] = instance.numWords();
+			labelInstances[v]++;
+			labelWords[v] += instance.numWords();
+
+			// count the occurrences of the distinct words of the instance
+			int numDistinct = 0;
+			for (String word : instance.words()) {
+				int k = words.add(word);
+				if (k == wordPostings.length) {
+					int capacity = 2*k;
+					wordPostings = Arrays.copyOf(wordPostings, capacity);
+					lengths = Arrays.copyOf(lengths, capacity);
+					lastInstances = Arrays.copyOf(lastInstances, capacity);
+					wordCounts = Arrays.copyOf(wordCounts, capacity*numLabels);
+					frequencies = Arrays.copyOf(frequencies, capacity);
+				}
+				if (frequencies[k]++ == 0) {
+					if (numDistinct == instanceWords.length)
+						instanceWords = Arrays.copyOf(instanceWords, 2*numDistinct);
+					instanceWords[numDistinct++] = k;
+				}
+				wordCounts[k*numLabels+v]++;
+			}
+
+			// append a posting to each of them
+			for (int j = 0; j < numDistinct; j++) {
+				int k = instanceWords[j];
+				byte[] data = wordPostings[k];
+				if (data == null) {
+					data = new byte[16];
+					lastInstances[k] = -1;
+				} else if (lengths[k]+10 > data.length) {
+					data = Arrays.copyOf(data, 2*data.length+10);
+				}
+				int length = writeInt(data, lengths[k], i-lastInstances[k]);
+				lengths[k] = writeInt(data, length, frequencies[k]);
+				wordPostings[k] = data;
+				lastInstances[k] = i;
+				frequencies[k] = 0;
+			}
+		}
+
+		// concatenate the postings of all words
+		int numWords = words.size();
+		offsets = new int[numWords+1];
+		for (int k = 0; k < numWords; k++) {
+			offsets[k+1] = offsets[k] + lengths[k];
+		}
+		postings = new byte[offsets[numWords]];
+		documentFrequencies = new int[numWords];
+		for (int k = 0; k < numWords; k++) {
+			System.arraycopy(wordPostings[k], 0, postings, offsets[k], lengths[k]);
+			Postings p = new Postings(postings, offsets[k], offsets[k+1]);
+			while (p.next()) {
+				documentFrequencies[k]++;
+			}
+		}
+		counts = Arrays.copyOf(wordCounts, numWords*numLabels);
+	}
+
+	/**
+	 * Writes a non-negative int with 7 bits per byte, the highest bit marks further bytes.
+	 * @return The position after the written bytes.
+	 */
+	private static int writeInt(byte[] data, int position, int value) {
+		while ((value & ~0x7f) != 0) {
+			data[position++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		data[position++] = (byte) value;
+		return position;
+	}
+
+	private int labelIndex(String label) {
+		int v = labels.indexOf(label);
+		if (v < 0)
+			throw new IllegalArgumentException("unknown label: " + label);
+		return v;
+	}
+
+	/**
+	 * @return The number of indexed instances.
+	 */
+	public int numInstances() {
+		return instanceLabels.length;
+	}
+
+	/**
+	 * @return The number of distinct words.
+	 */
+	public int numWords() {
+		return words.size();
+	}
+
+	/**
+	 * @return The labels of the instances in order of their first occurrence.
+	 */
+	public List<String> labels() {
+		return Collections.unmodifiableList(labels);
+	}
+
+	/**
+	 * @return The label of an instance.
+	 */
+	public String label(int instance) {
+		return labels.get(instanceLabels[instance]);
+	}
+
+	/**
+	 * @return The postings of a word (none, if the word does not occur).
+	 */
+	public Postings postings(String word) {
+		int k = words.get(word);
+		return k < 0? new Postings(postings, 0, 0) : new Postings(postings, offsets[k], offsets[k+1]);
+	}
+
+	/**
+	 * @return The ids of the instances with a label, which contain a word, in ascending order.
+	 * @param label The label or null for instances with any label.
+	 */
+	public int[] instances(String word, String label) {
+		int v = label == null? -1 : labelIndex(label);
+		int k = words.get(word);
+		int[] instances = new int[k < 0? 0 : documentFrequencies[k]];
+		int numInstances = 0;
+		Postings p = postings(word);
+		while (p.next()) {
+			if (v < 0 || instanceLabels[p.instance()] == v)
+				instances[numInstances++] = p.instance();
+		}
+		return Arrays.copyOf(instances, numInstances);
+	}
+
+	/**
+	 * @return The number of instances containing a word.
+	 */
+	public int documentFrequency(String word) {
+		int k = words.get(word);
+		return k < 0? 0 : documentFrequencies[k];
+	}
+
+	/**
+	 * @return The number of occurrences nk of a word in all instances with a label.
+	 */
+	public int count(String word, String label) {
+		int v = labelIndex(label);
+		int k = words.get(word);
+		return k < 0? 0 : counts[k*labels.size()+v];
+	}
+
+	/**
+	 * @return The number of occurrences of a word in an instance.
+	 */
+	public int count(String word, int instance) {
+		Postings p = postings(word);
+		while (p.next() && p.instance() <= instance) {
+			if (p.instance() == instance)
+				return p.frequency();
+		}
+		return 0;
+	}
+
+	/**
+	 * @return The number of instances with a label.
+	 */
+	public int numInstances(String label) {
+		return labelInstances[labelIndex(label)];
+	}
+
+	/**
+	 * @return The total number of words n in all instances with a label.
+	 */
+	public long numWords(String label) {
+		return labelWords[labelIndex(label)];
+	}
+
+	/**
+	 * @return The class probability P(v) = |instances with label v|/|instances|, see BayesTextClassifier.
+	 */
+	public double classProbability(String label) {
+		return (double) numInstances(label)/numInstances();
+	}
+
+	/**
+	 * @return The conditional probability P(wk|v) = (nk+1)/(n+|Vocabulary|), see BayesTextClassifier.
+	 */
+	public double conditionalProbability(String word, String label, int vocabularySize) {
+		return (double) (count(word, label) + 1)/(numWords(label)+vocabularySize);
+	}
+
+	/**
+	 * @return The class probability P(v) estimated without an instance.
+	 */
+	public double classProbabilityWithout(String label, int instance) {
+		int removed = instanceLabels[instance] == labelIndex(label)? 1 : 0;
+		return (double) (numInstances(label)-removed)/(numInstances()-1);
+	}
+
+	/**
+	 * @return The conditional probability P(wk|v) = (nk+1)/(n+|Vocabulary|) estimated without an instance.
+	 */
+	public double conditionalProbabilityWithout(String word, String label, int vocabularySize, int instance) {
+		int count = count(word, label);
+		long numWords = numWords(label);
+		if (instanceLabels[instance] == labelIndex(label)) {
+			count -= count(word, instance);
+			numWords -= instanceLengths[instance];
+		}
+		return (double) (count + 1)/(numWords+vocabularySize);
+	}
+
+	/**
+	 * @return The approximate memory used by the index in bytes.
+	 */
+	public long memoryBytes() {
+		return words.memoryBytes() + postings.length + 4L*(offsets.length + documentFrequencies.length + counts.length
+				+ instanceLabels.length + instanceLengths.length + labelInstances.length) + 8L*labelWords.length;
+	}
+}
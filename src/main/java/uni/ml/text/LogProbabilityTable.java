@@ -0,0 +1,46 @@
+package uni.ml.text;
+
+/**
+ * The log probabilities ln(P(v)) of the target values and ln(P(wk|v)) of the features of a compiled model.
+ * Implementations are thread-safe.
+ */
+public interface LogProbabilityTable {
+
+	int numClasses();
+
+	int numFeatures();
+
+	/**
+	 * @return ln(P(v)) of the v-th target value.
+	 */
+	double logClassProbability(int v);
+
+	/**
+	 * @return ln(P(wk|v)) of the k-th feature and the v-th target value.
+	 */
+	double logWordProbability(int k, int v);
+
+	/**
+	 * Computes the logarithmic (unnormalized) posterior ln(P(v)) + sum ln(P(wk|v)) of each target value v.
+	 * The sum is accumulated in the order of the features.
+	 * @param features The indices of the (distinct) features present in a text.
+	 * @param numFeatures The number of features.
+	 * @param scores Receives the posterior of the v-th target value at index offset+v.
+	 * @param offset The index of the first score.
+	 */
+	void score(int[] features, int numFeatures, double[] scores, int offset);
+
+	/**
+	 * Adds ln(P(wk|v)) of the features at [from, to) to a partial score of a single target value, in the order of the features.
+	 * Starting with ln(P(v)) and adding all features range by range yields the score computed by score(): exactly,
+	 * if the table adds the log probabilities one by one, up to rounding, if it sums quantized values (16 bit tables).
+	 * @param features The indices of the (distinct) features present in a text.
+	 * @return The new partial score.
+	 */
+	double addColumn(int[] features, int from, int to, int v, double score);
+
+	/**
+	 * @return The approximate memory used by the table in bytes.
+	 */
+	long memoryBytes();
+}
@@ -0,0 +1,173 @@
+package uni.ml.text;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import uni.ml.util.CompressedFiles;
+
+/**
+ * A text dataset backed by a memory-mapped file, whose instances are tokenized lazily.
+ * <p>
+ * Opening the dataset only indexes the start and length of each non-empty line (12 bytes per line).
+ * An instance is decoded and tokenized like {@link TextDataset#loadFromFile(File, Function)} when instanceAt()
+ * touches it, labels are read without tokenizing (see labelAt()). Tokenized instances are kept in a bounded
+ * cache of the most recently used instances, so runs touching only a sample of the instances (e.g. through
+ * randomSplit() or a predicate view) cost little more than that sample. The dataset is thread-safe.
+ * <p>
+ * Compressed files cannot be mapped, load them into a {@link TextDataset} instead.
+ */
+public class MappedTextDataset extends TextDatasetView {
+
+	private static final int SEGMENT_SIZE = 1 << 30; // bytes mapped per buffer
+
+	private final MappedByteBuffer[] segments;
+	private final long[] starts;   // start of the i-th non-empty line (trimmed)
+	private final int[] lengths;   // length of the i-th non-empty line in bytes (trimmed)
+	private final int numInstances;
+	private final Function<String, String> filter;
+	private final Charset charset = Charset.defaultCharset();
+	private final Map<Integer, TextInstance> cache;
+	private long numTokenized = 0;
+
+	/**
+	 * Maps a dataset file and indexes its lines.
+	 * @param filter Preprocesses each word of an instance when it is tokenized, see {@link TextDataset#loadFromFile(File, Function)}.
+	 * @param cacheSize The maximum number of cached tokenized instances, 0 to tokenize on every access.
+	 */
+	public MappedTextDataset(File file, Function<String, String> filter, int cacheSize) throws IOException {
+		super(file.getName());
+		if (cacheSize < 0)
+			throw new IllegalArgumentException("cache size must not be negative: " + cacheSize);
+		if (CompressedFiles.isGzip(file))
+			throw new IllegalArgumentException("compressed files cannot be mapped: " + file);
+		this.filter = filter;
+		this.cache = cacheSize == 0? null : new LinkedHashMap<Integer, TextInstance>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, TextInstance> eldest) {
+				return size() > cacheSize;
+			}
+		};
+		try (FileChannel channel = FileChannel.open(file.toPath())) {
+			long size = channel.size();
+			segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE-1)/SEGMENT_SIZE)];
+			for (int s = 0; s < segments.length; s++) {
+				long position = (long) s*SEGMENT_SIZE;
+				segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT_SIZE, size-position));
+			}
+
+			// index the non-empty lines, trimmed like String.trim() (bytes <= ' ' are ASCII in UTF-8, too)
+			long[] lineStarts = new long[1024];
+			int[] lineLengths = new int[lineStarts.length];
+			int numLines = 0;
+			long first = -1; // first non-blank byte of the current line
+			long last = -1;  // last non-blank byte of the current line
+			for (long position = 0; position <= size; position++) {
+				int b = position < size? byteAt(position) : '\n';
+				if (b == '\n') {
+					if (first >= 0) {
+						if (numLines == lineStarts.length) {
+							lineStarts = Arrays.copyOf(lineStarts, 2*numLines);
+							lineLengths = Arrays.copyOf(lineLengths, 2*numLines);
+						}
+						lineStarts[numLines] = first;
+						lineLengths[numLines++] = (int) (last-first+1);
+					}
+					first = -1;
+				} else if ((b & 0xff) > ' ') {
+					if (first < 0)
+						first = position;
+					last = position;
+				}
+			}
+			starts = Arrays.copyOf(lineStarts, numLines);
+			lengths = Arrays.copyOf(lineLengths, numLines);
+			numInstances = numLines;
+		}
+	}
+
+	private byte byteAt(long position) {
+		return segments[(int) (position/SEGMENT_SIZE)].get((int) (position%SEGMENT_SIZE));
+	}
+
+	/**
+	 * Decodes the first bytes of a line.
+	 */
+	private String decode(int index, int maxLength) {
+		byte[] bytes = new byte[Math.min(lengths[index], maxLength)];
+		long start = starts[index];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = byteAt(start+i);
+		}
+		return new String(bytes, charset);
+	}
+
+	@Override
+	public int numInstances() {
+		return numInstances;
+	}
+
+	/**
+	 * Returns an instance, tokenizing it if it is not cached.
+	 */
+	@Override
+	public TextInstance instanceAt(int index) {
+		if (index < 0 || index >= numInstances)
+			throw new IndexOutOfBoundsException("index: " + index + ", instances: " + numInstances);
+		if (cache != null) {
+			synchronized (cache) {
+				TextInstance instance = cache.get(index);
+				if (instance != null)
+					return instance;
+			}
+		}
+		TextInstance instance = TextDataset.createTextInstance(decode(index, Integer.MAX_VALUE), filter);
+		synchronized (this) {
+			numTokenized++;
+		}
+		if (cache != null) {
+			synchronized (cache) {
+				cache.put(index, instance);
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Reads the label of an instance without tokenizing it.
+	 */
+	@Override
+	public String labelAt(int index) {
+		if (index < 0 || index >= numInstances)
+			throw new IndexOutOfBoundsException("index: " + index + ", instances: " + numInstances);
+		if (byteAt(starts[index]) == '"')
+			return "";
+		return decode(index, 4).substring(0, 1);
+	}
+
+	/**
+	 * @return The number of times an instance was tokenized so far.
+	 */
+	public synchronized long numTokenized() {
+		return numTokenized;
+	}
+
+	/**
+	 * @return The number of currently cached instances.
+	 */
+	public int numCached() {
+		if (cache == null)
+			return 0;
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+}
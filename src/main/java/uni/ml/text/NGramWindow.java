@@ -0,0 +1,153 @@
+package uni.ml.text;
+
+import uni.ml.util.Hashing;
+import uni.ml.util.WordIndex;
+
+/**
+ * A sliding window over the last words of a text, which computes the keys of all n-grams (1 &lt;= n &lt;= order)
+ * ending with the latest word. No Strings are created for n-grams:
+ * <ul>
+ * <li>Words given as ids (see addWord(int)) produce exact, packed keys: The ids of the n words are stored
+ * as id+1 in consecutive {@value #ID_BITS} bit fields of a long, the first word in the highest field.
+ * Hence keys of different n never collide and each key can be decoded into its words.</li>
+ * <li>Words given as hashes (see addHash(long)) produce n-gram hashes, e.g. for feature hashing.
+ * The key of a unigram is the hash of the word itself.</li>
+ * </ul>
+ * A window must not be shared between threads.
+ */
+public class NGramWindow {
+
+	public static final int MAX_ORDER = 3;
+	public static final int ID_BITS = 21;
+	public static final int MAX_WORD_ID = (1 << ID_BITS)-2;
+
+	private final int order;
+	private final long[] words;  // words[0] is the latest word, words[1] its predecessor, ...
+	private int length = 0;
+	private final long[] keys;   // keys[n-1] is the key of the n-gram ending with the latest word
+	private int numKeys = 0;
+
+	/**
+	 * @param order The maximum n of the n-grams (between 1 and {@value #MAX_ORDER}).
+	 */
+	public NGramWindow(int order) {
+		if (order < 1 || order > MAX_ORDER)
+			throw new IllegalArgumentException("n-gram order must be between 1 and " + MAX_ORDER + ": " + order);
+		this.order = order;
+		this.words = new long[order];
+		this.keys = new long[order];
+	}
+
+	/**
+	 * Empties the window, e.g. at the start of a new text.
+	 */
+	public void clear() {
+		length = 0;
+		numKeys = 0;
+	}
+
+	private void push(long word) {
+		for (int i = Math.min(length, order-1); i > 0; i--) {
+			words[i] = words[i-1];
+		}
+		words[0] = word;
+		length = Math.min(length+1, order);
+	}
+
+	/**
+	 * Slides the window to the next word given by its id and computes the packed keys of the n-grams ending with it.
+	 * @param id The id of the word (at most {@value #MAX_WORD_ID}) or -1, if the word is unknown.
+	 * The keys of n-grams containing an unknown word are 0.
+	 */
+	public void addWord(int id) {
+		push(id);
+		long key = 0;
+		for (int n = 1; n <= length; n++) {
+			long wordId = words[n-1];
+			key = wordId < 0 || key < 0? -1 : key | (wordId+1) << (ID_BITS*(n-1));
+			keys[n-1] = key < 0? 0 : key;
+		}
+		numKeys = length;
+	}
+
+	/**
+	 * Slides the window to the next word given by its hash and computes the hashes of the n-grams ending with it.
+	 */
+	public void addHash(long hash) {
+		push(hash);
+		long key = hash;
+		keys[0] = key;
+		for (int n = 2; n <= length; n++) {
+			key = Hashing.combine(key, words[n-1]);
+			keys[n-1] = Hashing.mix64(key ^ n);
+		}
+		numKeys = length;
+	}
+
+	/**
+	 * @return The number of n-grams ending with the latest word: min(order, number of words added).
+	 */
+	public int numKeys() {
+		return numKeys;
+	}
+
+	/**
+	 * @return The key of the n-gram ending with the latest word (see numKeys()).
+	 */
+	public long key(int n) {
+		return keys[n-1];
+	}
+
+	public int order() {
+		return order;
+	}
+
+	/**
+	 * @return The n of a packed n-gram key.
+	 */
+	public static int order(long key) {
+		int n = 0;
+		while (key != 0) {
+			key >>>= ID_BITS;
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * @return The id of the i-th word (starting with 0) of a packed n-gram key.
+	 */
+	public static int wordId(long key, int i) {
+		int n = order(key);
+		return (int) ((key >>> (ID_BITS*(n-1-i))) & ((1L << ID_BITS)-1)) - 1;
+	}
+
+	/**
+	 * Packs the words of an n-gram into a key, adding unknown words to the index.
+	 * @param ngram The words of the n-gram, separated by single spaces.
+	 */
+	public static long key(String ngram, WordIndex wordIndex) {
+		long key = 0;
+		for (String word : ngram.split(" ")) {
+			int id = wordIndex.add(word);
+			if (id > MAX_WORD_ID)
+				throw new IllegalStateException("too many distinct words for n-grams: " + id);
+			key = (key << ID_BITS) | (id+1);
+		}
+		return key;
+	}
+
+	/**
+	 * Unpacks a key into the words of the n-gram, separated by single spaces.
+	 */
+	public static String toString(long key, WordIndex wordIndex) {
+		StringBuilder b = new StringBuilder();
+		int n = order(key);
+		for (int i = 0; i < n; i++) {
+			if (i > 0)
+				b.append(' ');
+			b.append(wordIndex.word(wordId(key, i)));
+		}
+		return b.toString();
+	}
+}
@@ -0,0 +1,360 @@
+package uni.ml.text;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import uni.ml.util.Hashing;
+import uni.ml.util.LongIntMap;
+import uni.ml.util.OffHeapBuffer;
+import uni.ml.util.PerfectHashIndex;
+import uni.ml.util.WordIndex;
+
+/**
+ * A compiled model (feature dictionary and log probability table) stored outside of the Java heap,
+ * either in direct memory or in a memory-mapped file. Even multi-GB models add only a few objects to the heap,
+ * so they neither grow the heap nor the garbage collection cost. A mapped model is loaded lazily by the operating system
+ * and can be shared by several processes.
+ * <p>
+ * The model is a single block of memory (little endian, all sections 8 byte aligned):
+ * header | target values | ln(P(v)) | ln(P(wk|v)) in feature-major order | word slots | word offsets | word chars | n-gram slots.
+ * The words are stored in an open addressing hash table (slot: 64 bit hash, word id+1), their characters in a shared section.
+ * The n-grams are stored in a second open addressing hash table (slot: packed key, feature index+1).
+ * <p>
+ * The model is read-only and can be used by many threads concurrently.
+ */
+public class OffHeapModel implements FeatureDictionary, LogProbabilityTable {
+
+	private static final int MAGIC = 0x484F5442; // "BTOH"
+	private static final int HEADER_SIZE = 128;
+	private static final int SLOT_SIZE = 16;
+
+	private final OffHeapBuffer buffer;
+	private final List<String> targetValues;
+	private final int hashBits;
+	private final int ngramOrder;
+	private final int vocabularySize;
+	private final int numClasses;
+	private final int numFeatures;
+	private final int numWords;
+	private final long wordSlotMask;
+	private final long ngramSlotMask;
+	private final long classOffset;
+	private final long matrixOffset;
+	private final long wordSlotsOffset;
+	private final long wordOffsetsOffset;
+	private final long wordCharsOffset;
+	private final long ngramSlotsOffset;
+
+	/**
+	 * Reads the header of a model.
+	 */
+	private OffHeapModel(OffHeapBuffer buffer) throws IOException {
+		if (buffer.size() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+			throw new IOException("not an off-heap model");
+		this.buffer = buffer;
+		hashBits = buffer.getInt(4);
+		ngramOrder = buffer.getInt(8);
+		vocabularySize = buffer.getInt(12);
+		numClasses = buffer.getInt(16);
+		numFeatures = buffer.getInt(20);
+		numWords = buffer.getInt(24);
+		wordSlotMask = buffer.getInt(28)-1L;
+		ngramSlotMask = buffer.getInt(32)-1L;
+		classOffset = buffer.getLong(40);
+		matrixOffset = buffer.getLong(48);
+		wordSlotsOffset = buffer.getLong(56);
+		wordOffsetsOffset = buffer.getLong(64);
+		wordCharsOffset = buffer.getLong(72);
+		ngramSlotsOffset = buffer.getLong(80);
+
+		List<String> values = new ArrayList<>(numClasses);
+		long position = HEADER_SIZE;
+		for (int v = 0; v < numClasses; v++) {
+			int length = buffer.getInt(position);
+			position += 4;
+			char[] chars = new char[length];
+			for (int i = 0; i < length; i++, position += 2) {
+				chars[i] = buffer.getChar(position);
+			}
+			values.add(new String(chars));
+		}
+		targetValues = Collections.unmodifiableList(values);
+	}
+
+	private static long align(long position) {
+		return (position + 7) & ~7L;
+	}
+
+	/**
+	 * @return The number of slots of an open addressing table for the given number of keys (load factor at most 0.5).
+	 */
+	private static int numSlots(int numKeys) {
+		return numKeys == 0? 0 : Integer.highestOneBit(Math.max(2, numKeys*2-1)) << 1;
+	}
+
+	/**
+	 * Copies a compiled model off the heap.
+	 * @param targetValues The target values (class labels).
+	 * @param hashBits The number of hash bits of a model using feature hashing, 0 otherwise.
+	 * @param ngramOrder The maximum n of the n-gram features.
+	 * @param vocabularySize The configured vocabulary size.
+	 * @param dictionary The feature dictionary or null for feature hashing.
+	 * @param table The log probabilities.
+	 * @param file The file to store the model in (memory-mapped) or null to store it in direct memory.
+	 */
+	static OffHeapModel build(List<String> targetValues, int hashBits, int ngramOrder, int vocabularySize,
+			HeapFeatureDictionary dictionary, LogProbabilityTable table, File file) throws IOException {
+		PerfectHashIndex words = dictionary == null? new PerfectHashIndex(new WordIndex()) : dictionary.words();
+		LongIntMap ngrams = dictionary == null || dictionary.ngrams() == null? new LongIntMap() : dictionary.ngrams();
+		int numClasses = table.numClasses();
+		int numFeatures = table.numFeatures();
+
+		// compute the layout
+		long labelsSize = 0;
+		for (String value : targetValues) {
+			labelsSize += 4 + 2L*value.length();
+		}
+		long numChars = 0;
+		for (int id = 0; id < words.size(); id++) {
+			numChars += words.word(id).length();
+		}
+		int numWordSlots = numSlots(words.size());
+		int numNGramSlots = numSlots(ngrams.size());
+		long classOffset = align(HEADER_SIZE + labelsSize);
+		long matrixOffset = classOffset + 8L*numClasses;
+		long wordSlotsOffset = matrixOffset + 8L*numFeatures*numClasses;
+		long wordOffsetsOffset = wordSlotsOffset + (long) SLOT_SIZE*numWordSlots;
+		long wordCharsOffset = wordOffsetsOffset + 8L*(words.size()+1);
+		long ngramSlotsOffset = align(wordCharsOffset + 2*numChars);
+		long size = ngramSlotsOffset + (long) SLOT_SIZE*numNGramSlots;
+
+		OffHeapBuffer buffer;
+		if (file == null) {
+			buffer = OffHeapBuffer.allocateDirect(size);
+		} else {
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				buffer = OffHeapBuffer.map(channel, FileChannel.MapMode.READ_WRITE, 0, size);
+			}
+		}
+
+		// header
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, hashBits);
+		buffer.putInt(8, ngramOrder);
+		buffer.putInt(12, vocabularySize);
+		buffer.putInt(16, numClasses);
+		buffer.putInt(20, numFeatures);
+		buffer.putInt(24, words.size());
+		buffer.putInt(28, numWordSlots);
+		buffer.putInt(32, numNGramSlots);
+		buffer.putLong(40, classOffset);
+		buffer.putLong(48, matrixOffset);
+		buffer.putLong(56, wordSlotsOffset);
+		buffer.putLong(64, wordOffsetsOffset);
+		buffer.putLong(72, wordCharsOffset);
+		buffer.putLong(80, ngramSlotsOffset);
+		buffer.putLong(88, size);
+
+		long position = HEADER_SIZE;
+		for (String value : targetValues) {
+			buffer.putInt(position, value.length());
+			position += 4;
+			for (int i = 0; i < value.length(); i++, position += 2) {
+				buffer.putChar(position, value.charAt(i));
+			}
+		}
+
+		// log probabilities
+		for (int v = 0; v < numClasses; v++) {
+			buffer.putDouble(classOffset + 8L*v, table.logClassProbability(v));
+		}
+		for (int k = 0; k < numFeatures; k++) {
+			for (int v = 0; v < numClasses; v++) {
+				buffer.putDouble(matrixOffset + 8L*((long) k*numClasses+v), table.logWordProbability(k, v));
+			}
+		}
+
+		// words
+		long charPosition = 0;
+		for (int id = 0; id < words.size(); id++) {
+			String word = words.word(id);
+			buffer.putLong(wordOffsetsOffset + 8L*id, charPosition);
+			for (int i = 0; i < word.length(); i++) {
+				buffer.putChar(wordCharsOffset + 2*(charPosition+i), word.charAt(i));
+			}
+			charPosition += word.length();
+
+			long hash = Hashing.hash64(word);
+			long slot = hash & (numWordSlots-1);
+			while (buffer.getInt(wordSlotsOffset + SLOT_SIZE*slot + 8) != 0) {
+				slot = (slot+1) & (numWordSlots-1);
+			}
+			buffer.putLong(wordSlotsOffset + SLOT_SIZE*slot, hash);
+			buffer.putInt(wordSlotsOffset + SLOT_SIZE*slot + 8, id+1);
+		}
+		buffer.putLong(wordOffsetsOffset + 8L*words.size(), charPosition);
+
+		// n-grams
+		long[] keys = ngrams.keys();
+		int[] features = ngrams.values();
+		for (int i = 0; i < keys.length; i++) {
+			long slot = Hashing.mix64(keys[i]) & (numNGramSlots-1);
+			while (buffer.getInt(ngramSlotsOffset + SLOT_SIZE*slot + 8) != 0) {
+				slot = (slot+1) & (numNGramSlots-1);
+			}
+			buffer.putLong(ngramSlotsOffset + SLOT_SIZE*slot, keys[i]);
+			buffer.putInt(ngramSlotsOffset + SLOT_SIZE*slot + 8, features[i]+1);
+		}
+
+		buffer.force();
+		return new OffHeapModel(buffer);
+	}
+
+	/**
+	 * Maps a model file created by build() into memory (read-only).
+	 */
+	public static OffHeapModel map(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return new OffHeapModel(OffHeapBuffer.map(channel, FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	private boolean wordEquals(int id, char[] word, int offset, int length) {
+		long start = buffer.getLong(wordOffsetsOffset + 8L*id);
+		if (buffer.getLong(wordOffsetsOffset + 8L*(id+1)) - start != length)
+			return false;
+		long position = wordCharsOffset + 2*start;
+		for (int i = 0; i < length; i++, position += 2) {
+			if (buffer.getChar(position) != word[offset+i])
+				return false;
+		}
+		return true;
+	}
+
+	private boolean wordEquals(int id, CharSequence word) {
+		long start = buffer.getLong(wordOffsetsOffset + 8L*id);
+		if (buffer.getLong(wordOffsetsOffset + 8L*(id+1)) - start != word.length())
+			return false;
+		long position = wordCharsOffset + 2*start;
+		for (int i = 0; i < word.length(); i++, position += 2) {
+			if (buffer.getChar(position) != word.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int wordId(CharSequence word) {
+		if (numWords == 0)
+			return -1;
+		long hash = Hashing.hash64(word);
+		long slot = hash & wordSlotMask;
+		int id;
+		while ((id = buffer.getInt(wordSlotsOffset + SLOT_SIZE*slot + 8)-1) >= 0) {
+			if (buffer.getLong(wordSlotsOffset + SLOT_SIZE*slot) == hash && wordEquals(id, word))
+				return id;
+			slot = (slot+1) & wordSlotMask;
+		}
+		return -1;
+	}
+
+	@Override
+	public int wordId(char[] word, int offset, int length) {
+		if (numWords == 0)
+			return -1;
+		long hash = Hashing.hash64(word, offset, length);
+		long slot = hash & wordSlotMask;
+		int id;
+		while ((id = buffer.getInt(wordSlotsOffset + SLOT_SIZE*slot + 8)-1) >= 0) {
+			if (buffer.getLong(wordSlotsOffset + SLOT_SIZE*slot) == hash && wordEquals(id, word, offset, length))
+				return id;
+			slot = (slot+1) & wordSlotMask;
+		}
+		return -1;
+	}
+
+	@Override
+	public int ngramFeature(long key) {
+		if (ngramSlotMask < 0)
+			return -1;
+		long slot = Hashing.mix64(key) & ngramSlotMask;
+		int feature;
+		while ((feature = buffer.getInt(ngramSlotsOffset + SLOT_SIZE*slot + 8)-1) >= 0) {
+			if (buffer.getLong(ngramSlotsOffset + SLOT_SIZE*slot) == key)
+				return feature;
+			slot = (slot+1) & ngramSlotMask;
+		}
+		return -1;
+	}
+
+	@Override
+	public int numClasses() {
+		return numClasses;
+	}
+
+	@Override
+	public int numFeatures() {
+		return numFeatures;
+	}
+
+	@Override
+	public double logClassProbability(int v) {
+		return buffer.getDouble(classOffset + 8L*v);
+	}
+
+	@Override
+	public double logWordProbability(int k, int v) {
+		return buffer.getDouble(matrixOffset + 8L*((long) k*numClasses+v));
+	}
+
+	@Override
+	public void score(int[] features, int numFeatures, double[] scores, int offset) {
+		for (int v = 0; v < numClasses; v++) {
+			scores[offset+v] = buffer.getDouble(classOffset + 8L*v);
+		}
+		for (int i = 0; i < numFeatures; i++) {
+			long row = matrixOffset + 8L*features[i]*numClasses;
+			for (int v = 0; v < numClasses; v++) {
+				scores[offset+v] += buffer.getDouble(row + 8L*v);
+			}
+		}
+	}
+
+	@Override
+	public double addColumn(int[] features, int from, int to, int v, double score) {
+		for (int i = from; i < to; i++) {
+			score += buffer.getDouble(matrixOffset + 8L*((long) features[i]*numClasses+v));
+		}
+		return score;
+	}
+
+	/**
+	 * @return The size of the model in (off-heap) bytes.
+	 */
+	@Override
+	public long memoryBytes() {
+		return buffer.size();
+	}
+
+	public List<String> targetValues() {
+		return targetValues;
+	}
+
+	public int hashBits() {
+		return hashBits;
+	}
+
+	public int ngramOrder() {
+		return ngramOrder;
+	}
+
+	public int vocabularySize() {
+		return vocabularySize;
+	}
+}
@@ -0,0 +1,614 @@
+package uni.ml.text;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.Map.Entry;
+import java.util.function.Function;
+
+import uni.ml.util.CompressedFiles;
+
+/**
+ * Trains a Bayes classifier (vocabulary of single words chosen by frequency) from a training file,
+ * whose instances and word counts do not fit into memory.
+ * <p>
+ * The file is streamed line by line and the words are counted per target value in a table,
+ * which is spilled to a temporary file as a run sorted by word whenever it exceeds the memory budget.
+ * Finally, all runs are merged (k-way) into the total counts, from which the vocabulary is selected
+ * keeping only the counts of the vocabulary words in memory.
+ * <p>
+ * The resulting model is the same as the one of BayesTextClassifier.learnBayesText() for the dataset loaded from the file:
+ * the vocabulary is ordered by count in descending order and words with equal counts by their first occurrence
+ * in the file, so ties are broken deterministically and independently of hashing, spilling and sharding.
+ * <p>
+ * Counting and merging can also be distributed (map/reduce): countShard() counts a slice of consecutive lines
+ * of the training file and writes the counts to a snapshot file. Snapshots of consecutive shards can be combined
+ * into one snapshot with mergeSnapshots() and a classifier is trained from the snapshots of all shards with train(List).
+ * Each of these steps may run in a different process, the result is the same as the one of train(File).
+ */
+public class OutOfCoreTrainer {
+
+	private static final long ENTRY_BYTES = 128; // approximate memory of a word in the count table without characters and counts
+	private static final int SNAPSHOT_MAGIC = 0x4e424353; // "NBCS"
+	private static final int SNAPSHOT_VERSION = 1;
+	private static final long DISTINCT_WORDS_OFFSET = 8; // position of the number of distinct words in a snapshot
+
+	private final int vocabularySize;
+	private final Function<String, String> filter;
+	private long memoryBudget = 64L << 20;
+	private File tempDirectory = null;
+
+	// state of counting
+	private final List<String> labels = new ArrayList<>(); // in order of first occurrence
+	private int[] numInstances = new int[0];
+	private long[] numWords = new long[0];
+	private long position = 0;                              // number of words counted so far
+	private Map<String, WordCounts> table = new HashMap<>();
+	private long tableBytes = 0;
+	private final List<File> runs = new ArrayList<>();
+	private long numDistinctWords = 0;
+
+	/**
+	 * The counts of a word.
+	 */
+	static class WordCounts {
+		String word;
+		long firstPosition;  // number of words preceding the first occurrence
+		int[] counts;        // occurrences per label (in order of first occurrence)
+
+		WordCounts(String word, long firstPosition, int[] counts) {
+			this.word = word;
+			this.firstPosition = firstPosition;
+			this.counts = counts;
+		}
+
+		long total() {
+			long total = 0;
+			for (int count : counts) {
+				total += count;
+			}
+			return total;
+		}
+	}
+
+	/**
+	 * @param vocabularySize The size of the vocabulary of the trained classifier.
+	 * @param filter The filter applied to the words, like for TextDataset.loadFromFile().
+	 */
+	public OutOfCoreTrainer(int vocabularySize, Function<String, String> filter) {
+		this.vocabularySize = vocabularySize;
+		this.filter = filter;
+	}
+
+	/**
+	 * Sets the approximate memory used for counting, before the counts are spilled to disk (default 64 MB).
+	 */
+	public void setMemoryBudget(long bytes) {
+		if (bytes <= 0)
+			throw new IllegalArgumentException("memory budget must be positive: " + bytes);
+		this.memoryBudget = bytes;
+	}
+
+	public long memoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * Sets the directory for the spilled runs (default: the system's temporary directory).
+	 */
+	public void setTempDirectory(File tempDirectory) {
+		this.tempDirectory = tempDirectory;
+	}
+
+	/**
+	 * @return The number of runs spilled to disk during the last training.
+	 */
+	public int numRuns() {
+		return runs.size();
+	}
+
+	/**
+	 * @return The number of instances in the last training file.
+	 */
+	public int numInstances() {
+		int total = 0;
+		for (int count : numInstances) {
+			total += count;
+		}
+		return total;
+	}
+
+	/**
+	 * @return The number of distinct words in the last training file.
+	 */
+	public long numDistinctWords() {
+		return numDistinctWords;
+	}
+
+	/**
+	 * Trains a classifier with the instances of a training file.
+	 * @param trainingFile A file with one instance 'L "text"' per line, see TextDataset.loadFromFile().
+	 */
+	public BayesTextClassifier train(File trainingFile) throws IOException {
+		reset();
+		try {
+			count(trainingFile, 0, Long.MAX_VALUE);
+			return finish(openRuns());
+		} finally {
+			deleteRuns();
+		}
+	}
+
+	/**
+	 * Counts the words of one shard of a training file and writes the counts to a snapshot.
+	 * The file is split into numShards slices of equal size in bytes and a shard consists of
+	 * the lines beginning in its slice. A gzip compressed file cannot be split, it must be counted as a single shard.
+	 * @param trainingFile A file with one instance 'L "text"' per line, see TextDataset.loadFromFile().
+	 * @param shard The index of the shard (0 &lt;= shard &lt; numShards).
+	 */
+	public void countShard(File trainingFile, int shard, int numShards, File snapshot) throws IOException {
+		if (shard < 0 || shard >= numShards)
+			throw new IllegalArgumentException("invalid shard " + shard + " of " + numShards);
+		if (numShards > 1 && CompressedFiles.isGzip(trainingFile))
+			throw new IllegalArgumentException("a gzip compressed file cannot be split into shards: " + trainingFile);
+		reset();
+		try {
+			long size = trainingFile.length();
+			count(trainingFile, shard*size/numShards, (shard+1)*size/numShards);
+			writeSnapshot(openRuns(), snapshot);
+		} finally {
+			deleteRuns();
+		}
+	}
+
+	/**
+	 * Combines the snapshots of consecutive shards into one snapshot.
+	 * @param snapshots The snapshots in the order of their shards.
+	 */
+	public void mergeSnapshots(List<File> snapshots, File output) throws IOException {
+		reset();
+		List<Run> sources = openSnapshots(snapshots);
+		writeSnapshot(sources, output);
+	}
+
+	/**
+	 * Trains a classifier with the counts of all shards of a training file.
+	 * @param snapshots The snapshots of all shards (or combined snapshots) in the order of their shards.
+	 */
+	public BayesTextClassifier train(List<File> snapshots) throws IOException {
+		reset();
+		return finish(openSnapshots(snapshots));
+	}
+
+	private void reset() {
+		labels.clear();
+		numInstances = new int[0];
+		numWords = new long[0];
+		position = 0;
+		table = new HashMap<>();
+		tableBytes = 0;
+		runs.clear();
+		numDistinctWords = 0;
+	}
+
+	private void deleteRuns() {
+		for (File run : runs) {
+			run.delete();
+		}
+		table = new HashMap<>();
+	}
+
+	private File createTempFile() throws IOException {
+		File file = File.createTempFile("counts", ".run", tempDirectory);
+		file.deleteOnExit();
+		return file;
+	}
+
+	/**
+	 * Counts the words of the instances in the lines of a file beginning at a byte position in [start, end),
+	 * spilling the count table whenever it exceeds the memory budget. A gzip compressed file is counted completely.
+	 */
+	void count(File file, long start, long end) throws IOException {
+		boolean compressed = CompressedFiles.isGzip(file);
+		if (compressed) {
+			start = 0;
+			end = Long.MAX_VALUE;
+		}
+		try (InputStream fileIn = compressed? CompressedFiles.open(file) : new FileInputStream(file)) {
+			long offset = Math.max(0, start-1);
+			if (!compressed)
+				((FileInputStream) fileIn).getChannel().position(offset);
+			InputStream in = new BufferedInputStream(fileIn, 1 << 16);
+			int b = 0;
+			if (start > 0) { // skip the line containing the byte before start, it belongs to the previous shard
+				while ((b = in.read()) >= 0) {
+					offset++;
+					if (b == '\n')
+						break;
+				}
+			}
+			byte[] buffer = new byte[1024];
+			Charset charset = Charset.defaultCharset(); // like TextDataset.loadFromFile()
+			while (b >= 0 && offset < end) {
+				int length = 0;
+				while ((b = in.read()) >= 0 && b != '\n') {
+					if (length == buffer.length)
+						buffer = Arrays.copyOf(buffer, 2*length);
+					buffer[length++] = (byte) b;
+				}
+				offset += length+1;
+				String line = new String(buffer, 0, length, charset).trim();
+				if (!line.isEmpty()) {
+					count(TextDataset.createTextInstance(line, filter));
+					if (tableBytes > memoryBudget)
+						spill();
+				}
+			}
+		}
+	}
+
+	private int labelIndex(String label) {
+		int v = labels.indexOf(label);
+		if (v < 0) {
+			v = labels.size();
+			labels.add(label);
+			numInstances = Arrays.copyOf(numInstances, v+1);
+			numWords = Arrays.copyOf(numWords, v+1);
+		}
+		return v;
+	}
+
+	private void count(TextInstance instance) {
+		int v = labelIndex(instance.label());
+		numInstances[v]++;
+		numWords[v] += instance.numWords();
+		for (String word : instance.words()) {
+			WordCounts counts = table.get(word);
+			if (counts == null) {
+				counts = new WordCounts(word, position, new int[labels.size()]);
+				table.put(word, counts);
+				tableBytes += ENTRY_BYTES + 2*word.length() + 4*labels.size();
+			}
+			if (counts.counts.length <= v)
+				counts.counts = Arrays.copyOf(counts.counts, labels.size());
+			counts.counts[v]++;
+			position++;
+		}
+	}
+
+	/**
+	 * @return The entries of the count table sorted by word.
+	 */
+	private List<WordCounts> sortedTable() {
+		List<WordCounts> entries = new ArrayList<>(table.values());
+		entries.sort(Comparator.comparing(counts -> counts.word));
+		return entries;
+	}
+
+	/**
+	 * Writes the count table to a new run on disk and empties it.
+	 */
+	private void spill() throws IOException {
+		File run = createTempFile();
+		runs.add(run);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)))) {
+			for (WordCounts counts : sortedTable()) {
+				write(counts, labels.size(), out);
+			}
+		}
+		table = new HashMap<>();
+		tableBytes = 0;
+	}
+
+	/**
+	 * Writes the counts of a word for the first numLabels labels.
+	 */
+	static void write(WordCounts counts, int numLabels, DataOutputStream out) throws IOException {
+		out.writeUTF(counts.word);
+		out.writeLong(counts.firstPosition);
+		out.writeInt(numLabels);
+		for (int v = 0; v < numLabels; v++) {
+			out.writeInt(v < counts.counts.length? counts.counts[v] : 0);
+		}
+	}
+
+	/**
+	 * A sequence of word counts sorted by word.
+	 */
+	interface Run {
+		/**
+		 * @return The next counts or null at the end of the run. The counts are only valid until the next call.
+		 */
+		WordCounts next() throws IOException;
+	}
+
+	/**
+	 * A run in a file, ending at the end of the file.
+	 * The counts of labels, which did not occur yet when the run was written, are 0.
+	 */
+	static class FileRun implements Run {
+		private final DataInputStream in;
+		private final WordCounts counts;
+
+		/**
+		 * @param numLabels The number of labels of all runs.
+		 */
+		FileRun(DataInputStream in, int numLabels) {
+			this.in = in;
+			this.counts = new WordCounts(null, 0, new int[numLabels]);
+		}
+
+		@Override
+		public WordCounts next() throws IOException {
+			try {
+				counts.word = in.readUTF();
+			} catch (EOFException e) {
+				return null;
+			}
+			counts.firstPosition = in.readLong();
+			int numLabels = in.readInt();
+			for (int v = 0; v < counts.counts.length; v++) {
+				counts.counts[v] = v < numLabels? in.readInt() : 0;
+			}
+			return counts;
+		}
+	}
+
+	/**
+	 * @return The runs spilled to disk and the remaining count table.
+	 * The streams of the runs are closed at their ends.
+	 */
+	private List<Run> openRuns() throws IOException {
+		List<Run> sources = new ArrayList<>();
+		for (File file : runs) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			FileRun run = new FileRun(in, labels.size());
+			sources.add(() -> {
+				WordCounts counts = run.next();
+				if (counts == null)
+					in.close();
+				return counts;
+			});
+		}
+		Iterator<WordCounts> remaining = sortedTable().iterator();
+		sources.add(() -> remaining.hasNext()? remaining.next() : null);
+		return sources;
+	}
+
+	/**
+	 * Merges runs (k-way) into one run: sums up the counts and keeps the first position of each word.
+	 * @param numLabels The number of labels of the merged run (runs may have counts for fewer labels).
+	 * @return The number of distinct words.
+	 */
+	static long merge(List<Run> runs, int numLabels, DataOutputStream out) throws IOException {
+		class Head {
+			final Run run;
+			WordCounts counts;
+			Head(Run run) {
+				this.run = run;
+			}
+		}
+		PriorityQueue<Head> heads = new PriorityQueue<>(Math.max(1, runs.size()), Comparator.comparing(head -> head.counts.word));
+		for (Run run : runs) {
+			Head head = new Head(run);
+			if ((head.counts = run.next()) != null)
+				heads.add(head);
+		}
+		WordCounts merged = new WordCounts(null, 0, new int[numLabels]);
+		long numWords = 0;
+		while (!heads.isEmpty()) {
+			Head head = heads.poll();
+			merged.word = head.counts.word;
+			merged.firstPosition = Long.MAX_VALUE;
+			Arrays.fill(merged.counts, 0);
+			// add the counts of all runs containing the word
+			while (true) {
+				merged.firstPosition = Math.min(merged.firstPosition, head.counts.firstPosition);
+				for (int v = 0; v < head.counts.counts.length; v++) {
+					merged.counts[v] += head.counts.counts[v];
+				}
+				if ((head.counts = head.run.next()) != null)
+					heads.add(head);
+				if (heads.isEmpty() || !heads.peek().counts.word.equals(merged.word))
+					break;
+				head = heads.poll();
+			}
+			write(merged, numLabels, out);
+			numWords++;
+		}
+		return numWords;
+	}
+
+	/**
+	 * Writes a snapshot: the number of distinct words, the labels in order of first occurrence, 
+	 * the numbers of instances and words per label, the number of words and the merged runs.
+	 */
+	private void writeSnapshot(List<Run> sources, File snapshot) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(snapshot)))) {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeLong(0); // number of distinct words, known after merging
+			out.writeInt(labels.size());
+			for (int v = 0; v < labels.size(); v++) {
+				out.writeUTF(labels.get(v));
+				out.writeInt(numInstances[v]);
+				out.writeLong(numWords[v]);
+			}
+			out.writeLong(position);
+			numDistinctWords = merge(sources, labels.size(), out);
+		}
+		try (RandomAccessFile file = new RandomAccessFile(snapshot, "rw")) {
+			file.seek(DISTINCT_WORDS_OFFSET);
+			file.writeLong(numDistinctWords);
+		}
+	}
+
+	/**
+	 * Reads the headers of snapshots of consecutive shards, adding up their labels, numbers of instances and words.
+	 * @return The runs of the snapshots with the counts of the labels of all snapshots and the positions of all shards.
+	 * The streams of the runs are closed at their ends.
+	 */
+	private List<Run> openSnapshots(List<File> snapshots) throws IOException {
+		List<Run> sources = new ArrayList<>();
+		List<DataInputStream> streams = new ArrayList<>();
+		List<int[]> labelMaps = new ArrayList<>();
+		List<Long> offsets = new ArrayList<>();
+		try {
+			for (File snapshot : snapshots) {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)));
+				streams.add(in);
+				if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION)
+					throw new IOException("not a count snapshot: " + snapshot);
+				in.readLong(); // number of distinct words
+				int[] labelMap = new int[in.readInt()];
+				for (int i = 0; i < labelMap.length; i++) {
+					int v = labelIndex(in.readUTF());
+					labelMap[i] = v;
+					numInstances[v] += in.readInt();
+					numWords[v] += in.readLong();
+				}
+				labelMaps.add(labelMap);
+				offsets.add(position); // the words of the previous shards precede this shard
+				position += in.readLong();
+			}
+		} catch (IOException e) {
+			for (DataInputStream in : streams) {
+				in.close();
+			}
+			throw e;
+		}
+		for (int i = 0; i < streams.size(); i++) {
+			DataInputStream in = streams.get(i);
+			int[] labelMap = labelMaps.get(i);
+			long offset = offsets.get(i);
+			FileRun run = new FileRun(in, labelMap.length);
+			WordCounts counts = new WordCounts(null, 0, new int[labels.size()]);
+			sources.add(() -> {
+				WordCounts shardCounts = run.next();
+				if (shardCounts == null) {
+					in.close();
+					return null;
+				}
+				counts.word = shardCounts.word;
+				counts.firstPosition = offset + shardCounts.firstPosition;
+				Arrays.fill(counts.counts, 0);
+				for (int v = 0; v < labelMap.length; v++) {
+					counts.counts[labelMap[v]] = shardCounts.counts[v];
+				}
+				return counts;
+			});
+		}
+		return sources;
+	}
+
+	/**
+	 * A candidate for the vocabulary.
+	 */
+	private static class Candidate {
+		final String word;
+		final int count;
+		final long firstPosition;
+		final int[] counts;
+
+		Candidate(WordCounts counts) {
+			this.word = counts.word;
+			this.count = (int) counts.total();
+			this.firstPosition = counts.firstPosition;
+			this.counts = counts.counts.clone();
+		}
+	}
+
+	/**
+	 * The order of the vocabulary of learnBayesText(): by count in descending order, then by first occurrence.
+	 */
+	private static final Comparator<Candidate> VOCABULARY_ORDER = Comparator.<Candidate>comparingInt(c -> -c.count)
+			.thenComparingLong(c -> c.firstPosition);
+
+	/**
+	 * Merges the runs into a temporary file and trains the classifier from the merged counts.
+	 */
+	private BayesTextClassifier finish(List<Run> sources) throws IOException {
+		File merged = createTempFile();
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(merged)))) {
+				numDistinctWords = merge(sources, labels.size(), out);
+			}
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(merged)))) {
+				return finish(new FileRun(in, labels.size()));
+			}
+		} finally {
+			merged.delete();
+		}
+	}
+
+	/**
+	 * Selects the vocabulary from the merged counts and trains the classifier.
+	 * @param merged The counts of all distinct words (numDistinctWords).
+	 */
+	BayesTextClassifier finish(Run merged) throws IOException {
+		// select the most frequent words, keeping the worst candidate at the head of the queue
+		PriorityQueue<Candidate> candidates = new PriorityQueue<>(Math.max(1, vocabularySize), VOCABULARY_ORDER.reversed());
+		WordCounts counts;
+		while ((counts = merged.next()) != null) {
+			if (candidates.size() < vocabularySize) {
+				candidates.add(new Candidate(counts));
+			} else if (vocabularySize > 0) {
+				Candidate candidate = new Candidate(counts);
+				if (VOCABULARY_ORDER.compare(candidate, candidates.peek()) < 0) {
+					candidates.poll();
+					candidates.add(candidate);
+				}
+			}
+		}
+		List<Candidate> selected = new ArrayList<>(candidates);
+		selected.sort(VOCABULARY_ORDER);
+
+		// the target values in the order of a HashSet filled in order of first occurrence
+		Set<String> labelSet = new HashSet<>();
+		labelSet.addAll(labels);
+		List<String> targetValues = new ArrayList<>(labelSet);
+		int numClasses = targetValues.size();
+		int[] classInstances = new int[numClasses];
+		long[] classWords = new long[numClasses];
+		int[] labelToClass = new int[labels.size()];
+		for (int i = 0; i < labels.size(); i++) {
+			int v = targetValues.indexOf(labels.get(i));
+			labelToClass[i] = v;
+			classInstances[v] = numInstances[i];
+			classWords[v] = numWords[i];
+		}
+
+		List<Entry<String, Integer>> vocabulary = new ArrayList<>(selected.size());
+		int[] wordCounts = new int[selected.size()*numClasses];
+		for (int k = 0; k < selected.size(); k++) {
+			Candidate candidate = selected.get(k);
+			vocabulary.add(new SimpleEntry<>(candidate.word, candidate.count));
+			for (int i = 0; i < labels.size(); i++) {
+				wordCounts[k*numClasses+labelToClass[i]] = candidate.counts[i];
+			}
+		}
+		BayesTextClassifier classifier = new BayesTextClassifier(vocabularySize);
+		classifier.learnFromCounts(targetValues, classInstances, classWords, vocabulary, wordCounts);
+		return classifier;
+	}
+}
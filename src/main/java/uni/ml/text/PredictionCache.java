@@ -0,0 +1,115 @@
+package uni.ml.text;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of predicted class labels, keyed by a 64 bit hash of the (filtered) words of a text instance.
+ * Least recently used entries are evicted once the capacity is reached.
+ * The cache is bound to a model version: All entries are dropped as soon as it is accessed with a different version,
+ * e.g. after the classifier was retrained. The versions of {@link BayesTextClassifier} are unique among all classifiers,
+ * so a cache shared by two classifiers is cleared whenever they alternate instead of mixing their predictions.
+ * The cache is thread-safe.
+ */
+public class PredictionCache {
+
+	private final int capacity;
+	private final Map<Long, String> entries;
+	private long modelVersion = -1;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Creates a new cache.
+	 * @param capacity The maximum number of cached predictions. Must be positive.
+	 */
+	public PredictionCache(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		this.capacity = capacity;
+		// access-ordered map, so the eldest entry is the least recently used one
+		this.entries = new LinkedHashMap<Long, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+				return size() > PredictionCache.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * Drops all entries if they were computed by a different model version.
+	 */
+	private void validate(long modelVersion) {
+		if (this.modelVersion != modelVersion) {
+			entries.clear();
+			this.modelVersion = modelVersion;
+		}
+	}
+
+	/**
+	 * Looks up a cached prediction.
+	 * @param key The hash of the text instance.
+	 * @param modelVersion The version of the model asking for the prediction.
+	 * @return The cached class label or null, if there is none.
+	 */
+	public synchronized String get(long key, long modelVersion) {
+		validate(modelVersion);
+		String label = entries.get(key);
+		if (label == null)
+			misses++;
+		else
+			hits++;
+		return label;
+	}
+
+	/**
+	 * Caches a prediction.
+	 * @param key The hash of the text instance.
+	 * @param label The predicted class label.
+	 * @param modelVersion The version of the model that computed the prediction.
+	 */
+	public synchronized void put(long key, String label, long modelVersion) {
+		validate(modelVersion);
+		entries.put(key, label);
+	}
+
+	/**
+	 * Removes all entries and resets the counters.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		hits = 0;
+		misses = 0;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long hits() {
+		return hits;
+	}
+
+	public synchronized long misses() {
+		return misses;
+	}
+
+	/**
+	 * @return The fraction of lookups that were answered by the cache.
+	 */
+	public synchronized double hitRate() {
+		long lookups = hits + misses;
+		return lookups == 0? 0 : (double) hits/lookups;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "PredictionCache [size=" + entries.size() + "/" + capacity + ", hits=" + hits + ", misses=" + misses + "]";
+	}
+}
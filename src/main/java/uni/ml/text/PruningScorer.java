@@ -0,0 +1,94 @@
+package uni.ml.text;
+
+/**
+ * Exact branch-and-bound search for the target value with maximum posterior.
+ * The target values are scored one after another, the most probable one a priori first. The features are added 
+ * in blocks (in the same order as in exhaustive scoring) and a target value is abandoned as soon as its upper bound,
+ * the partial score plus the maximum log probabilities of the remaining features over all target values,
+ * falls below the complete score of the best target value so far.
+ * <p>
+ * The bound includes the worst case rounding error of the remaining additions, so a target value is only pruned
+ * if it cannot be the maximum. The scores of the other target values are computed exactly as by exhaustive scoring,
+ * hence the prediction (including ties) is always the same.
+ */
+class PruningScorer {
+
+	private static final int BLOCK_SIZE = 8;
+	private static final double EPSILON = Math.ulp(1.0);
+
+	final LogProbabilityTable table;
+	private final double[] maxLogWordProbabilities; // max over v of ln(P(wk|v)) per feature
+	private final int[] classOrder;                 // target values by descending ln(P(v))
+
+	PruningScorer(LogProbabilityTable table) {
+		this.table = table;
+		int numClasses = table.numClasses();
+		maxLogWordProbabilities = new double[table.numFeatures()];
+		for (int k = 0; k < maxLogWordProbabilities.length; k++) {
+			double max = Double.NEGATIVE_INFINITY;
+			for (int v = 0; v < numClasses; v++) {
+				max = Math.max(max, table.logWordProbability(k, v));
+			}
+			maxLogWordProbabilities[k] = max;
+		}
+		classOrder = new int[numClasses];
+		for (int v = 0; v < numClasses; v++) {
+			int i = v;
+			while (i > 0 && table.logClassProbability(classOrder[i-1]) < table.logClassProbability(v)) {
+				classOrder[i] = classOrder[i-1];
+				i--;
+			}
+			classOrder[i] = v;
+		}
+	}
+
+	/**
+	 * Computes the target value with maximum score like exhaustive scoring followed by an arg max.
+	 * @param context The distinct feature indices in ascending order. Counts the (pruned) operations.
+	 * @param scores Receives the score of the v-th target value at index offset+v 
+	 * or negative infinity, if the target value has been pruned.
+	 * @return The index of the maximum score (the first one in case of ties) or -1, if no score exceeds negative infinity.
+	 */
+	int argMax(ClassificationContext context, double[] scores, int offset) {
+		int[] features = context.features;
+		int numFeatures = context.numFeatures;
+		// bounds[i]: sum of the maximum log probabilities of the features at [i, numFeatures)
+		double[] bounds = context.bounds(numFeatures+1);
+		bounds[numFeatures] = 0;
+		for (int i = numFeatures-1; i >= 0; i--) {
+			bounds[i] = bounds[i+1] + maxLogWordProbabilities[features[i]];
+		}
+
+		int best = -1;
+		double bestScore = Double.NEGATIVE_INFINITY;
+		long numOperations = 0;
+		for (int v : classOrder) {
+			double score = table.logClassProbability(v);
+			int i = 0;
+			while (i < numFeatures) {
+				if (best >= 0) {
+					double tolerance = 2*(numFeatures-i+2)*EPSILON*(Math.abs(score) + Math.abs(bounds[i]));
+					if (score + bounds[i] + tolerance < bestScore)
+						break;
+				}
+				int to = Math.min(i+BLOCK_SIZE, numFeatures);
+				score = table.addColumn(features, i, to, v, score);
+				numOperations += to-i;
+				i = to;
+			}
+			if (i < numFeatures) {
+				scores[offset+v] = Double.NEGATIVE_INFINITY;
+			} else {
+				scores[offset+v] = score;
+				if (score > bestScore || (score == bestScore && best >= 0 && v < best)) {
+					best = v;
+					bestScore = score;
+				}
+			}
+		}
+		long numExhaustive = (long) numFeatures*classOrder.length;
+		context.numOperations += numExhaustive;
+		context.numPrunedOperations += numExhaustive - numOperations;
+		return best;
+	}
+}
@@ -0,0 +1,52 @@
+package uni.ml.text;
+
+/**
+ * The inner loop of scoring: adds the rows of the present features of a feature-major log probability matrix 
+ * to the scores of all target values.
+ * <p>
+ * This is the scalar kernel for Java 8 to 16. The multi-release jar contains a version for Java 17 and later
+ * (src/main/java17), which accumulates the scores of several target values at once with the Vector API, 
+ * if the JVM is started with --add-modules jdk.incubator.vector. Both kernels add the log probabilities 
+ * of each target value in the same order, so they compute identical scores.
+ */
+public final class ScoringKernel {
+
+	private ScoringKernel() {
+	}
+
+	/**
+	 * @return true, if the Vector API is available (Java 17+ with --add-modules jdk.incubator.vector).
+	 */
+	public static boolean isVectorAvailable() {
+		return false;
+	}
+
+	/**
+	 * @return true, if scores are accumulated with the Vector API.
+	 */
+	public static boolean isVectorized() {
+		return false;
+	}
+
+	/**
+	 * Enables or disables the Vector API kernel (enabled by default, if available), e.g. to compare both kernels.
+	 */
+	public static void setVectorized(boolean vectorized) {
+	}
+
+	/**
+	 * Adds the rows of the features to the scores: scores[offset+v] += matrix[k*numClasses+v] for each feature k.
+	 * @param matrix A feature-major matrix with numClasses columns.
+	 * @param features The indices of the features (rows).
+	 * @param numFeatures The number of features.
+	 * @param scores The scores of the target values at [offset, offset+numClasses).
+	 */
+	static void addRows(double[] matrix, int numClasses, int[] features, int numFeatures, double[] scores, int offset) {
+		for (int i = 0; i < numFeatures; i++) {
+			int row = features[i]*numClasses;
+			for (int v = 0; v < numClasses; v++) {
+				scores[offset+v] += matrix[row+v];
+			}
+		}
+	}
+}
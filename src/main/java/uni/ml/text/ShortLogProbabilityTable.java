@@ -0,0 +1,103 @@
+package uni.ml.text;
+
+/**
+ * A table of log probabilities ln(P(wk|v)) quantized to 16 bit (a quarter of the memory of a double table).
+ * The log probabilities of each target value v are mapped linearly onto the range of short:
+ * ln(P(wk|v)) ~ base(v) + scale(v)*q(k,v), where base(v) corresponds to Short.MIN_VALUE and the
+ * maximum error of a single log probability is scale(v)/2.
+ * <p>
+ * Scoring sums the quantized values q exactly (as integers in double precision) and applies
+ * the base and scale of each target value once per text instead of once per feature.
+ */
+public class ShortLogProbabilityTable implements LogProbabilityTable {
+
+	private static final int LEVELS = 65535; // number of steps between Short.MIN_VALUE and Short.MAX_VALUE
+
+	private final double[] logClassProbabilities;  // ln(P(v)) per target value
+	private final double[] base;                   // ln(P(wk|v)) of q = 0 per target value
+	private final double[] scale;                  // difference of ln(P(wk|v)) between two steps per target value
+	private final short[] logWordProbabilities;    // q(k,v), feature-major: index k*numClasses+v
+
+	/**
+	 * Quantizes the log probabilities of a table.
+	 */
+	public ShortLogProbabilityTable(LogProbabilityTable table) {
+		int numClasses = table.numClasses();
+		int numFeatures = table.numFeatures();
+		logClassProbabilities = new double[numClasses];
+		base = new double[numClasses];
+		scale = new double[numClasses];
+		logWordProbabilities = new short[numFeatures*numClasses];
+		for (int v = 0; v < numClasses; v++) {
+			logClassProbabilities[v] = table.logClassProbability(v);
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			for (int k = 0; k < numFeatures; k++) {
+				min = Math.min(min, table.logWordProbability(k, v));
+				max = Math.max(max, table.logWordProbability(k, v));
+			}
+			scale[v] = max > min? (max-min)/LEVELS : 1;
+			base[v] = numFeatures == 0? 0 : min - Short.MIN_VALUE*scale[v];
+			for (int k = 0; k < numFeatures; k++) {
+				long steps = Math.round((table.logWordProbability(k, v) - min)/scale[v]);
+				logWordProbabilities[k*numClasses+v] = (short) (steps + Short.MIN_VALUE);
+			}
+		}
+	}
+
+	@Override
+	public int numClasses() {
+		return logClassProbabilities.length;
+	}
+
+	@Override
+	public int numFeatures() {
+		return logWordProbabilities.length/logClassProbabilities.length;
+	}
+
+	@Override
+	public double logClassProbability(int v) {
+		return logClassProbabilities[v];
+	}
+
+	@Override
+	public double logWordProbability(int k, int v) {
+		return base[v] + scale[v]*logWordProbabilities[k*logClassProbabilities.length+v];
+	}
+
+	@Override
+	public void score(int[] features, int numFeatures, double[] scores, int offset) {
+		int numClasses = logClassProbabilities.length;
+		for (int v = 0; v < numClasses; v++) {
+			scores[offset+v] = 0;
+		}
+		for (int i = 0; i < numFeatures; i++) {
+			int row = features[i]*numClasses;
+			for (int v = 0; v < numClasses; v++) {
+				scores[offset+v] += logWordProbabilities[row+v];
+			}
+		}
+		for (int v = 0; v < numClasses; v++) {
+			scores[offset+v] = logClassProbabilities[v] + numFeatures*base[v] + scale[v]*scores[offset+v];
+		}
+	}
+
+	/**
+	 * Dequantizes the column sum: adds the quantized values of the features exactly and applies base and scale
+	 * of the target value once per range. The result can differ from score() by rounding only.
+	 */
+	@Override
+	public double addColumn(int[] features, int from, int to, int v, double score) {
+		int numClasses = logClassProbabilities.length;
+		long sum = 0;
+		for (int i = from; i < to; i++) {
+			sum += logWordProbabilities[features[i]*numClasses+v];
+		}
+		return score + (to-from)*base[v] + scale[v]*sum;
+	}
+
+	@Override
+	public long memoryBytes() {
+		return 3*8L*logClassProbabilities.length + 2L*logWordProbabilities.length;
+	}
+}
@@ -4,7 +4,6 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
@@ -12,6 +11,9 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.function.Function;
 
+import uni.ml.util.CompressedFiles;
+import uni.ml.util.StreamSampler;
+
 
 public class TextDataset extends TextDatasetView {
 	private List<TextInstance> instances = new ArrayList<>();
@@ -23,17 +25,21 @@ public class TextDataset extends TextDatasetView {
 	 * A word of the text can be altered or removed by the filter. To remove a word let the filter return an empty string.
 	 * @return The text instance containing the label L and a list of filtered words.
 	 */
-	private TextInstance createTextInstance(String line, Function<String, String> filter) {
-		String label = "";
-		
-		if (!line.startsWith("\"")) { // if labeled
-			label = line.substring(0, 1);
-		}
+	static TextInstance createTextInstance(String line, Function<String, String> filter) {
+		String label = labelOf(line);
 		String text = line.substring(line.indexOf('"')+1, line.lastIndexOf('"'));
 		List<String> words = TextUtil.words(text);
 		return new TextInstance(label, TextUtil.filterWords(words, filter));
 	}
 	
+	/**
+	 * Reads the label of a (trimmed) line 'L "text"' without tokenizing the text.
+	 * @return The label L or an empty string, if the line is unlabeled.
+	 */
+	public static String labelOf(String line) {
+		return line.startsWith("\"")? "" : line.substring(0, 1);
+	}
+	
 	public TextDataset() {}
 	public TextDataset(String name) {super(name);}
 	
@@ -46,6 +52,7 @@ public class TextDataset extends TextDatasetView {
 	
     /**
      * Parses the given text file and adds the instances to the dataset.
+     * The file may be gzip compressed, it is decompressed while reading (see {@link CompressedFiles}).
      * @param filter Preprocesses each word before it is passed to the dataset.
      * A word can be altered or removed by the filter. To remove a word let the filter return an empty string.
      * @throws IOException 
@@ -56,7 +63,7 @@ public class TextDataset extends TextDatasetView {
     		setName(file.getName());
     	
 		String line = null;
-		BufferedReader r = new BufferedReader(new FileReader(file));
+		BufferedReader r = CompressedFiles.openReader(file);
 	
 		while ((line = r.readLine()) != null) {
 		    line = line.trim();
@@ -68,6 +75,55 @@ public class TextDataset extends TextDatasetView {
     }
     
 
+    /**
+     * Parses the next non-empty lines of a reader and adds their instances to the dataset, so a large file
+     * can be processed in blocks of bounded size.
+     * @param filter Preprocesses each word, see {@link #loadFromFile(File, Function)}.
+     * @param maxInstances The maximum number of instances to add.
+     * @return The number of added instances, less than maxInstances only at the end of the reader.
+     * @throws IOException
+     */
+    public int loadFromReader(BufferedReader r, Function<String, String> filter, int maxInstances) throws IOException {
+    	int numAdded = 0;
+    	String line;
+    	while (numAdded < maxInstances && (line = r.readLine()) != null) {
+    		line = line.trim();
+    		if (!line.isEmpty()) {
+    			addInstance(createTextInstance(line, filter));
+    			numAdded++;
+    		}
+    	}
+    	return numAdded;
+    }
+
+    /**
+     * Reads the given text file in a single pass and adds only the sampled instances to the dataset.
+     * Each non-empty (trimmed) line is offered to the sampler, only the lines in the sample are kept and
+     * they are tokenized after the pass, in the order of the file. Use {@link #labelOf(String)} to stratify
+     * or weight lines by their labels. The file may be gzip compressed.
+     * @param filter Preprocesses each word of a sampled instance, see {@link #loadFromFile(File, Function)}.
+     * @param sampler An empty sampler, it contains the sampled lines afterwards.
+     * @throws IOException
+     */
+    public void loadSampleFromFile(File file, Function<String, String> filter, StreamSampler<String> sampler) throws IOException {
+    	if (sampler.numOffered() > 0)
+    		throw new IllegalArgumentException("the sampler was already used");
+    	if (unnamed())
+    		setName(file.getName());
+    	
+    	try (BufferedReader r = CompressedFiles.openReader(file)) {
+    		String line;
+    		while ((line = r.readLine()) != null) {
+    			line = line.trim();
+    			if (!line.isEmpty())
+    				sampler.offer(line);
+    		}
+    	}
+    	for (String line : sampler.sample()) {
+    		addInstance(createTextInstance(line, filter));
+    	}
+    }
+
     /**
      * Parses the given text file and adds the instances to the dataset.
      * @throws IOException 
@@ -43,5 +43,10 @@ public class TextDatasetIndexedView extends TextDatasetView {
 	public TextInstance instanceAt(int index) {
 		return baseView.instanceAt(indices.get(index));
 	}
+	
+	@Override
+	public String labelAt(int index) {
+		return baseView.labelAt(indices.get(index));
+	}
 
 }
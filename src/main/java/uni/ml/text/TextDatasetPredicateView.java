@@ -33,13 +33,24 @@ public class TextDatasetPredicateView extends TextDatasetIndexedView {
 		super(baseView, validIndices(baseView, predicate));
 	}
 	
+	private TextDatasetPredicateView(TextDatasetView baseView, List<Integer> indices) {
+		super(baseView, indices);
+	}
+	
 	/**
 	 * Selects all instances within the provided text dataset(-view) which have the specified label.
+	 * Only the labels are read (see {@link TextDatasetView#labelAt(int)}).
 	 * @param dataset The text dataset(-view) to create the subset from.
 	 * @return the subset view on the dataset.
 	 */
 	public static TextDatasetPredicateView selectInstances(TextDatasetView dataset, String label) {
-		return new TextDatasetPredicateView(dataset, (instance) -> label.equals(instance.label()));
+		List<Integer> indices = new ArrayList<>();
+		for (int i = 0; i < dataset.numInstances(); i++) {
+			if (label.equals(dataset.labelAt(i))) {
+				indices.add(i);
+			}
+		}
+		return new TextDatasetPredicateView(dataset, indices);
 	}
 
 }
@@ -115,6 +115,13 @@ public abstract class TextDatasetView {
 	public abstract TextInstance instanceAt(int index);
 
 	
+	/**
+	 * @return The label of an instance. Views of lazily tokenized datasets read it without tokenizing the instance.
+	 */
+	public String labelAt(int index) {
+		return instanceAt(index).label();
+	}
+	
 	public boolean hasInstances() {
 		return numInstances() > 0;
 	}
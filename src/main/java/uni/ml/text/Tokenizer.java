@@ -0,0 +1,110 @@
+package uni.ml.text;
+
+import uni.ml.util.Hashing;
+import uni.ml.util.Stemmer;
+import uni.ml.util.Stopwords;
+
+/**
+ * Splits a line of a dataset file into filtered words without creating any objects.
+ * Produces the same words as loading the line with the filter keepLettersOnly().andThen(filterStopwords()):
+ * The text between the first and the last quote is split at spaces, all characters but letters are removed
+ * from each word and stopwords are skipped.
+ * The current word is held in a reusable buffer, use it like this:
+ * <pre>
+ * tokenizer.reset(line);
+ * while (tokenizer.next()) {
+ *     // process tokenizer.word()[0, tokenizer.length())
+ * }
+ * </pre>
+ * A tokenizer must not be shared between threads.
+ */
+public class Tokenizer {
+
+	private final Stemmer stemmer = new Stemmer();
+	private char[] word = new char[64];
+	private int length = 0;
+	private CharSequence line;
+	private int position = 0;
+	private int end = 0;
+
+	/**
+	 * Starts tokenizing a line 'L "text"', where the label L is optional.
+	 */
+	public void reset(CharSequence line) {
+		int start = 0;
+		int end = line.length();
+		while (start < end && line.charAt(start) <= ' ')
+			start++;
+		while (end > start && line.charAt(end-1) <= ' ')
+			end--;
+
+		// the text is enclosed in the first and last quote
+		int firstQuote = start;
+		while (firstQuote < end && line.charAt(firstQuote) != '"')
+			firstQuote++;
+		int lastQuote = end-1;
+		while (lastQuote > firstQuote && line.charAt(lastQuote) != '"')
+			lastQuote--;
+		if (firstQuote < end) {
+			start = firstQuote+1;
+			end = Math.max(start, lastQuote);
+		}
+
+		this.line = line;
+		this.position = start;
+		this.end = end;
+		this.length = 0;
+	}
+
+	private static boolean isLetter(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	private void append(char c) {
+		if (length == word.length) {
+			char[] newWord = new char[2*word.length];
+			System.arraycopy(word, 0, newWord, 0, length);
+			word = newWord;
+		}
+		word[length++] = c;
+	}
+
+	/**
+	 * Advances to the next word, that is not a stopword.
+	 * @return false if the end of the text is reached.
+	 */
+	public boolean next() {
+		while (position < end) {
+			// collect and hash the letters of the next space separated word
+			length = 0;
+			long hash = Hashing.SEED;
+			while (position < end) {
+				char c = line.charAt(position++);
+				if (c == ' ')
+					break;
+				if (isLetter(c)) {
+					append(c);
+					hash = Hashing.update(hash, c);
+				}
+			}
+			if (length > 0 && !Stopwords.isStemmedStopword(word, 0, length, Hashing.finish(hash, length), stemmer))
+				return true;
+		}
+		length = 0;
+		return false;
+	}
+
+	/**
+	 * @return The buffer holding the current word at [0, length()).
+	 */
+	public char[] word() {
+		return word;
+	}
+
+	/**
+	 * @return The length of the current word.
+	 */
+	public int length() {
+		return length;
+	}
+}
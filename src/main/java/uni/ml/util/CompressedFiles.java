@@ -0,0 +1,58 @@
+package uni.ml.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens plain or gzip compressed files transparently. Gzip files are recognized by their first bytes (not their name)
+ * and decompressed while reading, in parallel if they consist of several members (see {@link ParallelGzipInputStream}).
+ */
+public class CompressedFiles {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * @return true, if the file begins with the magic bytes of gzip.
+	 */
+	public static boolean isGzip(File file) throws IOException {
+		try (InputStream in = new FileInputStream(file)) {
+			return in.read() == 0x1f && in.read() == 0x8b;
+		}
+	}
+
+	/**
+	 * Opens a file for reading, decompressing gzip files on all available cores.
+	 */
+	public static InputStream open(File file) throws IOException {
+		return open(file, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Opens a file for reading, decompressing gzip files.
+	 * @param numThreads The number of decompressing threads, 1 decompresses sequentially with a GZIPInputStream.
+	 */
+	public static InputStream open(File file, int numThreads) throws IOException {
+		if (!isGzip(file))
+			return new FileInputStream(file);
+		if (numThreads <= 1 || file.length() <= ParallelGzipInputStream.DEFAULT_CHUNK_SIZE)
+			return new GZIPInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE), BUFFER_SIZE);
+		return new ParallelGzipInputStream(FileChannel.open(file.toPath(), StandardOpenOption.READ), 
+				numThreads, ParallelGzipInputStream.DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Opens a plain or gzip compressed text file for reading lines with the default charset (like FileReader).
+	 */
+	public static BufferedReader openReader(File file) throws IOException {
+		return new BufferedReader(new InputStreamReader(open(file), Charset.defaultCharset()), BUFFER_SIZE);
+	}
+}
@@ -0,0 +1,85 @@
+package uni.ml.util;
+
+import java.util.List;
+
+/**
+ * Fast (non-cryptographic) 64 bit hash functions for words and word sequences.
+ *
+ */
+public class Hashing {
+
+	public static final long SEED = 0x9E3779B97F4A7C15L;
+	private static final long FNV_PRIME = 0x100000001B3L;
+
+	/**
+	 * Scrambles the bits of a 64 bit value (finalizer of MurmurHash3).
+	 */
+	public static long mix64(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Combines a running hash with the next value of a sequence. The result depends on the order of the values.
+	 */
+	public static long combine(long h, long value) {
+		return Long.rotateLeft(h ^ mix64(value), 27) * 5 + 0x52DCE729L;
+	}
+
+	/**
+	 * Hashes a range of characters.
+	 * @param chars The character buffer.
+	 * @param offset The index of the first character.
+	 * @param length The number of characters to hash.
+	 */
+	public static long hash64(char[] chars, int offset, int length) {
+		long h = SEED;
+		for (int i = offset; i < offset+length; i++) {
+			h = (h ^ chars[i]) * FNV_PRIME;
+		}
+		return mix64(h ^ length);
+	}
+
+	/**
+	 * Adds the next character to the hash of a character sequence, which starts with SEED.
+	 * update(...update(update(SEED, c0), c1)..., cn-1) finished with the length n equals hash64() of the characters,
+	 * so a word can be hashed while it is read.
+	 */
+	public static long update(long h, char c) {
+		return (h ^ c) * FNV_PRIME;
+	}
+
+	/**
+	 * Finishes the hash of a character sequence built with update().
+	 * @param length The number of characters.
+	 */
+	public static long finish(long h, int length) {
+		return mix64(h ^ length);
+	}
+
+	/**
+	 * Hashes a character sequence, e.g. a word.
+	 */
+	public static long hash64(CharSequence s) {
+		long h = SEED;
+		for (int i = 0; i < s.length(); i++) {
+			h = (h ^ s.charAt(i)) * FNV_PRIME;
+		}
+		return mix64(h ^ s.length());
+	}
+
+	/**
+	 * Hashes a sequence of words. Equal sequences (same words in the same order) have equal hashes.
+	 */
+	public static long hash64(List<String> words) {
+		long h = SEED;
+		for (String word : words) {
+			h = combine(h, hash64(word));
+		}
+		return mix64(h ^ words.size());
+	}
+}
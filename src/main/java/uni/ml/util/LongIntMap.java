@@ -0,0 +1,143 @@
+package uni.ml.util;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from long keys to int values without boxing, using open addressing with linear probing.
+ * The key 0 is reserved to mark empty slots and must not be used.
+ * Lookups are thread-safe as long as the map is not modified concurrently.
+ */
+public class LongIntMap {
+
+	private long[] keys;
+	private int[] values;
+	private int size = 0;
+
+	public LongIntMap() {
+		this(16);
+	}
+
+	/**
+	 * @param expectedSize The expected number of keys.
+	 */
+	public LongIntMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(4, expectedSize*2-1)) << 1;
+		keys = new long[capacity];
+		values = new int[capacity];
+	}
+
+	private int slot(long key) {
+		if (key == 0)
+			throw new IllegalArgumentException("key 0 is reserved");
+		int mask = keys.length-1;
+		int slot = (int) Hashing.mix64(key) & mask;
+		while (keys[slot] != 0 && keys[slot] != key) {
+			slot = (slot+1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Doubles the capacity and reinserts all keys.
+	 */
+	private void rehash() {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[oldKeys.length*2];
+		values = new int[oldKeys.length*2];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != 0) {
+				int slot = slot(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	/**
+	 * @return The value of the key or defaultValue, if the key is not contained.
+	 */
+	public int get(long key, int defaultValue) {
+		int slot = slot(key);
+		return keys[slot] == 0? defaultValue : values[slot];
+	}
+
+	public boolean containsKey(long key) {
+		return keys[slot(key)] != 0;
+	}
+
+	/**
+	 * Sets the value of a key.
+	 */
+	public void put(long key, int value) {
+		int slot = slot(key);
+		if (keys[slot] == 0) {
+			keys[slot] = key;
+			size++;
+		}
+		values[slot] = value;
+		if (2*size > keys.length)
+			rehash();
+	}
+
+	/**
+	 * Adds delta to the value of a key. A missing key is inserted with value delta.
+	 * @return The new value.
+	 */
+	public int add(long key, int delta) {
+		int slot = slot(key);
+		if (keys[slot] == 0) {
+			keys[slot] = key;
+			size++;
+		}
+		int value = values[slot] += delta;
+		if (2*size > keys.length)
+			rehash();
+		return value;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return All keys, in the same order as values().
+	 */
+	public long[] keys() {
+		long[] result = new long[size];
+		int n = 0;
+		for (long key : keys) {
+			if (key != 0)
+				result[n++] = key;
+		}
+		return result;
+	}
+
+	/**
+	 * @return All values, in the same order as keys().
+	 */
+	public int[] values() {
+		int[] result = new int[size];
+		int n = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != 0)
+				result[n++] = values[i];
+		}
+		return result;
+	}
+
+	/**
+	 * Removes all keys.
+	 */
+	public void clear() {
+		Arrays.fill(keys, 0);
+		size = 0;
+	}
+
+	/**
+	 * @return The approximate memory used by the map in bytes.
+	 */
+	public long memoryBytes() {
+		return 8L*keys.length + 4L*values.length;
+	}
+}
@@ -0,0 +1,115 @@
+package uni.ml.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Off-heap memory of (almost) arbitrary size, addressed by long byte positions.
+ * The memory is split into chunks of {@value #CHUNK_BITS} bit size, each backed by a direct or memory-mapped ByteBuffer,
+ * so it is not limited to 2 GB and does not count towards the Java heap.
+ * Values must be aligned to their size (e.g. longs at multiples of 8), so they never cross a chunk boundary.
+ * Reads and writes use absolute positions and are therefore thread-safe, as long as no thread writes concurrently.
+ */
+public class OffHeapBuffer {
+
+	public static final int CHUNK_BITS = 30;
+	private static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+	private static final int CHUNK_MASK = (int) CHUNK_SIZE-1;
+
+	private final ByteBuffer[] chunks;
+	private final long size;
+
+	private OffHeapBuffer(ByteBuffer[] chunks, long size) {
+		this.chunks = chunks;
+		this.size = size;
+	}
+
+	private static int numChunks(long size) {
+		return (int) ((size + CHUNK_SIZE-1) >>> CHUNK_BITS);
+	}
+
+	/**
+	 * Allocates direct (off-heap) memory.
+	 * @param size The size in bytes.
+	 */
+	public static OffHeapBuffer allocateDirect(long size) {
+		ByteBuffer[] chunks = new ByteBuffer[numChunks(size)];
+		for (int i = 0; i < chunks.length; i++) {
+			long chunkSize = Math.min(CHUNK_SIZE, size - i*CHUNK_SIZE);
+			chunks[i] = ByteBuffer.allocateDirect((int) chunkSize).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		return new OffHeapBuffer(chunks, size);
+	}
+
+	/**
+	 * Maps a region of a file into memory.
+	 * @param channel The file channel, opened for reading (and writing, if mode is READ_WRITE).
+	 * @param position The position of the region in the file.
+	 * @param size The size of the region in bytes. The file is extended if necessary and the mode is READ_WRITE.
+	 */
+	public static OffHeapBuffer map(FileChannel channel, FileChannel.MapMode mode, long position, long size) throws IOException {
+		ByteBuffer[] chunks = new ByteBuffer[numChunks(size)];
+		for (int i = 0; i < chunks.length; i++) {
+			long chunkSize = Math.min(CHUNK_SIZE, size - i*CHUNK_SIZE);
+			chunks[i] = channel.map(mode, position + i*CHUNK_SIZE, chunkSize).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		return new OffHeapBuffer(chunks, size);
+	}
+
+	private ByteBuffer chunk(long position) {
+		return chunks[(int) (position >>> CHUNK_BITS)];
+	}
+
+	private static int offset(long position) {
+		return (int) position & CHUNK_MASK;
+	}
+
+	public long size() {
+		return size;
+	}
+
+	public int getInt(long position) {
+		return chunk(position).getInt(offset(position));
+	}
+
+	public void putInt(long position, int value) {
+		chunk(position).putInt(offset(position), value);
+	}
+
+	public long getLong(long position) {
+		return chunk(position).getLong(offset(position));
+	}
+
+	public void putLong(long position, long value) {
+		chunk(position).putLong(offset(position), value);
+	}
+
+	public double getDouble(long position) {
+		return chunk(position).getDouble(offset(position));
+	}
+
+	public void putDouble(long position, double value) {
+		chunk(position).putDouble(offset(position), value);
+	}
+
+	public char getChar(long position) {
+		return chunk(position).getChar(offset(position));
+	}
+
+	public void putChar(long position, char value) {
+		chunk(position).putChar(offset(position), value);
+	}
+
+	/**
+	 * Forces changes of memory-mapped chunks to be written to the storage device.
+	 */
+	public void force() {
+		for (ByteBuffer chunk : chunks) {
+			if (chunk instanceof MappedByteBuffer)
+				((MappedByteBuffer) chunk).force();
+		}
+	}
+}
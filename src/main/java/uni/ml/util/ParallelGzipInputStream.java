@@ -0,0 +1,397 @@
+package uni.ml.util;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses a gzip file with several members (e.g. concatenated gzip files or block-gzipped files like BGZF)
+ * on several threads, delivering the decompressed bytes in order.
+ * <p>
+ * The file is split into chunks of similar compressed size, each beginning at a gzip header found near the split point.
+ * Each chunk is decompressed by a worker from its first member on, until a member ends at or behind the end of the chunk.
+ * A header found inside compressed data is detected, because the previous chunk's last member ends behind it;
+ * that chunk is then discarded and the data decompressed again from the true member boundary.
+ * Each member is checked against its CRC-32 and size.
+ * <p>
+ * The decompressed bytes of a chunk are held in memory, so they are limited to {@value #MAX_EXPANSION} times the chunk size.
+ * If a member exceeds this limit (e.g. a file with a single member), the rest of the file is decompressed sequentially
+ * by a GZIPInputStream instead.
+ */
+public class ParallelGzipInputStream extends InputStream {
+
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+	public static final int MAX_EXPANSION = 32;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final FileChannel channel;
+	private final long size;
+	private final long[] chunkStarts; // chunkStarts[numChunks] is the size of the file
+	private final long maxChunkLength; // maximum number of decompressed bytes of a chunk
+	private final ExecutorService executor;
+	private final Deque<Future<Chunk>> pending = new ArrayDeque<>();
+	private int nextSubmitted = 0;    // the next chunk to be submitted
+	private int nextChunk = 0;        // the next chunk to be read
+	private long memberStart = 0;     // the start of the next member that was not decompressed yet
+	private byte[] buffer = new byte[0];
+	private int position = 0;
+	private int limit = 0;
+	private InputStream sequential = null; // decompresses the rest of the file, if a member is too large
+	private volatile boolean stopped = false; // workers must not be interrupted, that would close the channel
+
+	/**
+	 * Thrown if the decompressed bytes of a chunk exceed the maximum length.
+	 */
+	private static class ChunkTooLargeException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		ChunkTooLargeException() {
+			super("decompressed chunk too large");
+		}
+	}
+
+	/**
+	 * The decompressed bytes of the members from start to end.
+	 */
+	private static class Chunk {
+		long end;
+		byte[] data;
+		int length = 0;
+
+		Chunk(int capacity) {
+			this.data = new byte[capacity];
+		}
+
+		void ensureCapacity(long maxLength) {
+			if (length == data.length)
+				data = Arrays.copyOf(data, (int) Math.min(2L*data.length, maxLength));
+		}
+	}
+
+	/**
+	 * Reads the file sequentially from a position with positional (thread-safe) reads of the channel.
+	 */
+	private static class Source {
+		final FileChannel channel;
+		final byte[] buffer = new byte[BUFFER_SIZE];
+		long bufferStart;
+		int position = 0;
+		int limit = 0;
+
+		Source(FileChannel channel, long start) {
+			this.channel = channel;
+			this.bufferStart = start;
+		}
+
+		long position() {
+			return bufferStart + position;
+		}
+
+		/**
+		 * Reads the bytes following the current position.
+		 * @return false at the end of the file.
+		 */
+		boolean fill() throws IOException {
+			bufferStart += position;
+			position = 0;
+			limit = 0;
+			int n = channel.read(ByteBuffer.wrap(buffer), bufferStart);
+			limit = Math.max(n, 0);
+			return n > 0;
+		}
+
+		int read() throws IOException {
+			if (position == limit && !fill())
+				throw new EOFException("unexpected end of gzip file");
+			return buffer[position++] & 0xff;
+		}
+
+		int readShort() throws IOException {
+			return read() | read() << 8;
+		}
+
+		int readInt() throws IOException {
+			return readShort() | readShort() << 16;
+		}
+	}
+
+	/**
+	 * @param channel The channel of a gzip file.
+	 * @param numThreads The number of decompressing threads.
+	 * @param chunkSize The approximate compressed size of the chunks decompressed by one thread at once.
+	 */
+	public ParallelGzipInputStream(FileChannel channel, int numThreads, int chunkSize) throws IOException {
+		if (numThreads <= 0)
+			throw new IllegalArgumentException("number of threads must be positive: " + numThreads);
+		if (chunkSize <= 0)
+			throw new IllegalArgumentException("chunk size must be positive: " + chunkSize);
+		this.channel = channel;
+		this.size = channel.size();
+		this.chunkStarts = findChunkStarts(channel, size, chunkSize);
+		this.maxChunkLength = Math.min((long) MAX_EXPANSION*chunkSize, Integer.MAX_VALUE-8);
+		this.executor = Executors.newFixedThreadPool(numThreads, r -> {
+			Thread thread = new Thread(r, "gzip-inflater");
+			thread.setDaemon(true);
+			return thread;
+		});
+		for (int i = 0; i < 2*numThreads; i++) {
+			submitNext();
+		}
+	}
+
+	/**
+	 * @return true, if the bytes at the current position of a source may be a gzip header.
+	 */
+	private static boolean isHeader(byte[] b, int i) {
+		return (b[i] & 0xff) == 0x1f && (b[i+1] & 0xff) == 0x8b && b[i+2] == 8 // deflate
+				&& (b[i+3] & 0xe0) == 0; // no reserved flags
+	}
+
+	/**
+	 * Splits the file at the first possible gzip header behind every chunkSize bytes.
+	 */
+	private static long[] findChunkStarts(FileChannel channel, long size, int chunkSize) throws IOException {
+		List<Long> starts = new ArrayList<>();
+		starts.add(0L);
+		byte[] b = new byte[BUFFER_SIZE];
+		long split = chunkSize;
+		while (split < size) {
+			// search the next header at or behind split
+			long found = -1;
+			for (long position = split; found < 0 && position < size-3; position += b.length-3) {
+				int n = channel.read(ByteBuffer.wrap(b), position);
+				for (int i = 0; i+3 < n; i++) {
+					if (isHeader(b, i)) {
+						found = position+i;
+						break;
+					}
+				}
+			}
+			if (found < 0)
+				break;
+			starts.add(found);
+			split = found + chunkSize;
+		}
+		long[] chunkStarts = new long[starts.size()+1];
+		for (int i = 0; i < starts.size(); i++) {
+			chunkStarts[i] = starts.get(i);
+		}
+		chunkStarts[starts.size()] = size;
+		return chunkStarts;
+	}
+
+	private void submitNext() {
+		if (nextSubmitted < chunkStarts.length-1) {
+			long start = chunkStarts[nextSubmitted];
+			long end = chunkStarts[nextSubmitted+1];
+			pending.add(executor.submit(() -> decompress(start, end)));
+			nextSubmitted++;
+		}
+	}
+
+	/**
+	 * Decompresses the members from start on, until a member ends at or behind end.
+	 * Bytes behind the last member, which do not begin with a gzip header, are ignored (like GZIPInputStream does).
+	 */
+	private Chunk decompress(long start, long end) throws IOException, DataFormatException {
+		Source in = new Source(channel, start);
+		Chunk chunk = new Chunk((int) Math.min(maxChunkLength, Math.max(BUFFER_SIZE, 4*(end-start))));
+		Inflater inflater = new Inflater(true);
+		CRC32 crc = new CRC32();
+		try {
+			long offset = start;
+			do {
+				if (!readHeader(in)) {
+					if (offset == 0)
+						throw new DataFormatException("not in gzip format");
+					offset = size;
+					break;
+				}
+				int memberStart = chunk.length;
+				while (!inflater.finished()) {
+					if (inflater.needsInput()) {
+						if (in.position == in.limit && !in.fill())
+							throw new EOFException("unexpected end of gzip file");
+						inflater.setInput(in.buffer, in.position, in.limit-in.position);
+						in.position = in.limit;
+					}
+					if (chunk.length == maxChunkLength)
+						throw new ChunkTooLargeException();
+					if (stopped)
+						throw new IOException("decompression stopped");
+					chunk.ensureCapacity(maxChunkLength);
+					chunk.length += inflater.inflate(chunk.data, chunk.length, chunk.data.length-chunk.length);
+					if (inflater.needsDictionary())
+						throw new DataFormatException("gzip member needs a dictionary");
+				}
+				in.position -= inflater.getRemaining();
+				crc.update(chunk.data, memberStart, chunk.length-memberStart);
+				if ((int) crc.getValue() != in.readInt() || chunk.length-memberStart != in.readInt())
+					throw new DataFormatException("corrupt gzip member (CRC or size mismatch)");
+				inflater.reset();
+				crc.reset();
+				offset = in.position();
+			} while (offset < end && offset < size);
+			chunk.end = offset;
+			return chunk;
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Reads a gzip header.
+	 * @return false, if there are no more bytes or they do not begin with a gzip header.
+	 */
+	private static boolean readHeader(Source in) throws IOException {
+		if (in.position+10 > in.limit) {
+			in.fill();
+			if (in.limit < 10)
+				return false;
+		}
+		if (!isHeader(in.buffer, in.position))
+			return false;
+		int flags = in.buffer[in.position+3];
+		in.position += 10; // magic, method, flags, time, extra flags, OS
+		if ((flags & 4) != 0) { // extra field
+			int length = in.readShort();
+			for (int i = 0; i < length; i++) {
+				in.read();
+			}
+		}
+		if ((flags & 8) != 0) { // file name
+			while (in.read() != 0) {
+			}
+		}
+		if ((flags & 16) != 0) { // comment
+			while (in.read() != 0) {
+			}
+		}
+		if ((flags & 2) != 0) // header CRC
+			in.readShort();
+		return true;
+	}
+
+	/**
+	 * Moves to the decompressed bytes of the next chunk.
+	 * @return false at the end of the file.
+	 */
+	private boolean nextChunk() throws IOException {
+		while (nextChunk < chunkStarts.length-1) {
+			Future<Chunk> future = pending.poll();
+			submitNext();
+			long start = chunkStarts[nextChunk];
+			long end = chunkStarts[++nextChunk];
+			Chunk chunk;
+			try {
+				if (start < memberStart) {
+					// the chunk does not begin at a member (but inside the previous chunk's last member)
+					future.cancel(false);
+					if (end <= memberStart)
+						continue;
+					chunk = decompress(memberStart, end);
+				} else {
+					chunk = future.get();
+				}
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof ChunkTooLargeException)
+					return startSequential();
+				throw e.getCause() instanceof IOException? (IOException) e.getCause() : new IOException(e.getCause().getMessage(), e.getCause());
+			} catch (ChunkTooLargeException e) {
+				return startSequential();
+			} catch (DataFormatException e) {
+				throw new IOException(e.getMessage(), e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while decompressing", e);
+			}
+			buffer = chunk.data;
+			position = 0;
+			limit = chunk.length;
+			memberStart = chunk.end;
+			if (limit > 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Stops the workers and decompresses the rest of the file from the next member on sequentially.
+	 * @return false at the end of the file.
+	 */
+	private boolean startSequential() throws IOException {
+		stopped = true;
+		executor.shutdown();
+		pending.clear();
+		nextChunk = chunkStarts.length-1;
+		position = 0;
+		limit = 0;
+		sequential = new GZIPInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(memberStart)), BUFFER_SIZE), BUFFER_SIZE);
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (sequential != null)
+			return sequential.read();
+		if (position == limit && !nextChunk())
+			return -1;
+		if (sequential != null)
+			return sequential.read();
+		return buffer[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (sequential != null)
+			return sequential.read(b, off, len);
+		if (position == limit && !nextChunk())
+			return -1;
+		if (sequential != null)
+			return sequential.read(b, off, len);
+		int n = Math.min(len, limit-position);
+		System.arraycopy(buffer, position, b, off, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return sequential != null? sequential.available() : limit-position;
+	}
+
+	/**
+	 * @return The number of chunks the file was split into.
+	 */
+	public int numChunks() {
+		return chunkStarts.length-1;
+	}
+
+	@Override
+	public void close() throws IOException {
+		stopped = true;
+		executor.shutdown();
+		if (sequential != null)
+			sequential.close();
+		channel.close();
+	}
+}
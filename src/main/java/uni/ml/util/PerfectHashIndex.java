@@ -0,0 +1,281 @@
+package uni.ml.util;
+
+/**
+ * An immutable map from words to ids, frozen from a {@link WordIndex} (same ids), e.g. for a vocabulary that no longer
+ * changes after training. The words are placed by a minimal perfect hash function (hash and displace): the hash of
+ * a word selects a bucket, whose displacement places all words of the bucket into distinct slots of a table with
+ * exactly one slot per word. Each slot stores a 32 bit fingerprint of the hash of its word.
+ * <p>
+ * A lookup computes the hash of a word given as String, range of a character array or range of UTF-8 bytes
+ * (without creating a String), reads one displacement and one slot and compares the fingerprint. A word which
+ * is not contained is rejected by the fingerprint without touching its characters, except for a fraction
+ * of about 2^-32 of them. If the fingerprint matches, the characters are compared, so lookups are exact.
+ * Lookups are thread-safe.
+ */
+public class PerfectHashIndex {
+
+	private static final int BUCKET_SIZE = 3;           // average number of words per bucket
+	private static final int MAX_DISPLACEMENT = 1 << 28;
+
+	private final char[] chars;            // characters of all words, in order of their ids
+	private final int[] offsets;           // start of word i in chars, offsets[size] is the end of the last word
+	private final int[] displacements;     // displacement of each bucket
+	private final int[] ids;               // id of the word in each slot
+	private final int[] fingerprints;      // fingerprint of the word in each slot
+
+	/**
+	 * Builds the perfect hash function of the words of an index.
+	 */
+	public PerfectHashIndex(WordIndex words) {
+		int size = words.size();
+		offsets = new int[size+1];
+		long[] hashes = new long[size];
+		int numChars = 0;
+		for (int id = 0; id < size; id++) {
+			String word = words.word(id);
+			hashes[id] = Hashing.hash64(word);
+			numChars += word.length();
+			offsets[id+1] = numChars;
+		}
+		chars = new char[numChars];
+		for (int id = 0; id < size; id++) {
+			words.word(id).getChars(0, offsets[id+1]-offsets[id], chars, offsets[id]);
+		}
+		int numBuckets = size/BUCKET_SIZE + 1;
+		displacements = new int[numBuckets];
+		ids = new int[size];
+		fingerprints = new int[size];
+
+		// group the words by bucket (counting sort)
+		int[] bucketStarts = new int[numBuckets+1];
+		for (int id = 0; id < size; id++) {
+			bucketStarts[bucket(hashes[id], numBuckets)+1]++;
+		}
+		int maxBucketSize = 0;
+		for (int b = 0; b < numBuckets; b++) {
+			maxBucketSize = Math.max(maxBucketSize, bucketStarts[b+1]);
+			bucketStarts[b+1] += bucketStarts[b];
+		}
+		int[] bucketWords = new int[size];
+		int[] fill = bucketStarts.clone();
+		for (int id = 0; id < size; id++) {
+			bucketWords[fill[bucket(hashes[id], numBuckets)]++] = id;
+		}
+
+		// place the buckets by decreasing size, so that the large ones find free slots easily
+		int[] bucketsBySize = new int[numBuckets];
+		int[] sizeStarts = new int[maxBucketSize+2];
+		for (int b = 0; b < numBuckets; b++) {
+			sizeStarts[maxBucketSize - (bucketStarts[b+1]-bucketStarts[b]) + 1]++;
+		}
+		for (int s = 0; s <= maxBucketSize; s++) {
+			sizeStarts[s+1] += sizeStarts[s];
+		}
+		for (int b = 0; b < numBuckets; b++) {
+			bucketsBySize[sizeStarts[maxBucketSize - (bucketStarts[b+1]-bucketStarts[b])]++] = b;
+		}
+		boolean[] occupied = new boolean[size];
+		int[] slots = new int[maxBucketSize];
+		for (int b : bucketsBySize) {
+			int from = bucketStarts[b];
+			int to = bucketStarts[b+1];
+			if (from == to)
+				break; // only empty buckets follow
+			int d = 0;
+			while (!place(hashes, bucketWords, from, to, d, occupied, slots)) {
+				if (++d == MAX_DISPLACEMENT)
+					throw new IllegalStateException("no perfect hash function found (equal hashes of distinct words)");
+			}
+			displacements[b] = d;
+			for (int i = from; i < to; i++) {
+				int id = bucketWords[i];
+				ids[slots[i-from]] = id;
+				fingerprints[slots[i-from]] = (int) hashes[id];
+			}
+		}
+	}
+
+	/**
+	 * Tries to place the words of a bucket with a displacement.
+	 * @param slots Receives the slots of the words.
+	 * @return true and marks the slots as occupied, if they are free and distinct.
+	 */
+	private static boolean place(long[] hashes, int[] bucketWords, int from, int to, int displacement, boolean[] occupied,
+			int[] slots) {
+		for (int i = from; i < to; i++) {
+			int slot = slot(hashes[bucketWords[i]], displacement, occupied.length);
+			if (occupied[slot]) {
+				for (int j = 0; j < i-from; j++) {
+					occupied[slots[j]] = false;
+				}
+				return false;
+			}
+			occupied[slot] = true;
+			slots[i-from] = slot;
+		}
+		return true;
+	}
+
+	private static int bucket(long hash, int numBuckets) {
+		return (int) (((hash >>> 32) * numBuckets) >>> 32);
+	}
+
+	private static int slot(long hash, int displacement, int numSlots) {
+		return (int) (((Hashing.mix64(hash + displacement*Hashing.SEED) >>> 32) * numSlots) >>> 32);
+	}
+
+	/**
+	 * @return The slot of the word with the hash, if its fingerprint matches, -1 otherwise.
+	 */
+	private int candidate(long hash) {
+		if (ids.length == 0)
+			return -1;
+		int slot = slot(hash, displacements[bucket(hash, displacements.length)], ids.length);
+		return fingerprints[slot] == (int) hash? slot : -1;
+	}
+
+	/**
+	 * Looks up a word given as range of a character array.
+	 * @return The id of the word or -1, if it is not contained.
+	 */
+	public int get(char[] word, int offset, int length) {
+		return get(Hashing.hash64(word, offset, length), word, offset, length);
+	}
+
+	/**
+	 * Looks up a word given as range of a character array, whose hash is already known (e.g. computed while reading it).
+	 * @param hash The hash of the word, see {@link Hashing#hash64(char[], int, int)}.
+	 * @return The id of the word or -1, if it is not contained.
+	 */
+	public int get(long hash, char[] word, int offset, int length) {
+		int slot = candidate(hash);
+		if (slot < 0)
+			return -1;
+		int id = ids[slot];
+		int start = offsets[id];
+		if (offsets[id+1]-start != length)
+			return -1;
+		for (int i = 0; i < length; i++) {
+			if (chars[start+i] != word[offset+i])
+				return -1;
+		}
+		return id;
+	}
+
+	/**
+	 * Looks up a word.
+	 * @return The id of the word or -1, if it is not contained.
+	 */
+	public int get(CharSequence word) {
+		int slot = candidate(Hashing.hash64(word));
+		if (slot < 0)
+			return -1;
+		int id = ids[slot];
+		int start = offsets[id];
+		if (offsets[id+1]-start != word.length())
+			return -1;
+		for (int i = 0; i < word.length(); i++) {
+			if (chars[start+i] != word.charAt(i))
+				return -1;
+		}
+		return id;
+	}
+
+	/**
+	 * Looks up a word given as range of UTF-8 encoded bytes, which is decoded while hashing and comparing.
+	 * @return The id of the word or -1, if it is not contained or the bytes are not valid UTF-8.
+	 */
+	public int get(byte[] utf8, int offset, int length) {
+		// hash the UTF-16 characters like Hashing.hash64()
+		long h = Hashing.SEED;
+		int numChars = 0;
+		int end = offset+length;
+		for (int position = offset; position < end; ) {
+			int decoded = decode(utf8, position, end);
+			if (decoded < 0)
+				return -1;
+			int codePoint = decoded >>> 3;
+			position += decoded & 7;
+			if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+				h = Hashing.update(Hashing.update(h, Character.highSurrogate(codePoint)), Character.lowSurrogate(codePoint));
+				numChars += 2;
+			} else {
+				h = Hashing.update(h, (char) codePoint);
+				numChars++;
+			}
+		}
+		int slot = candidate(Hashing.finish(h, numChars));
+		if (slot < 0)
+			return -1;
+		int id = ids[slot];
+		int i = offsets[id];
+		if (offsets[id+1]-i != numChars)
+			return -1;
+		for (int position = offset; position < end; ) {
+			int decoded = decode(utf8, position, end);
+			int codePoint = decoded >>> 3;
+			position += decoded & 7;
+			if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+				if (chars[i++] != Character.highSurrogate(codePoint) || chars[i++] != Character.lowSurrogate(codePoint))
+					return -1;
+			} else if (chars[i++] != codePoint) {
+				return -1;
+			}
+		}
+		return id;
+	}
+
+	/**
+	 * Decodes the UTF-8 sequence of one code point.
+	 * @return The code point shifted left by 3 bits, or-ed with the number of bytes of the sequence, or -1 if it is invalid.
+	 */
+	private static int decode(byte[] utf8, int position, int end) {
+		int b = utf8[position] & 0xff;
+		int length;
+		int codePoint;
+		if (b < 0x80)
+			return b << 3 | 1;
+		else if ((b & 0xe0) == 0xc0) {
+			length = 2;
+			codePoint = b & 0x1f;
+		} else if ((b & 0xf0) == 0xe0) {
+			length = 3;
+			codePoint = b & 0x0f;
+		} else if ((b & 0xf8) == 0xf0) {
+			length = 4;
+			codePoint = b & 0x07;
+		} else {
+			return -1;
+		}
+		if (position+length > end)
+			return -1;
+		for (int i = 1; i < length; i++) {
+			int continuation = utf8[position+i] & 0xff;
+			if ((continuation & 0xc0) != 0x80)
+				return -1;
+			codePoint = codePoint << 6 | (continuation & 0x3f);
+		}
+		return codePoint > Character.MAX_CODE_POINT? -1 : codePoint << 3 | length;
+	}
+
+	/**
+	 * @return The word with the given id.
+	 */
+	public String word(int id) {
+		return new String(chars, offsets[id], offsets[id+1]-offsets[id]);
+	}
+
+	/**
+	 * @return The number of words.
+	 */
+	public int size() {
+		return ids.length;
+	}
+
+	/**
+	 * @return The approximate memory used by the index in bytes.
+	 */
+	public long memoryBytes() {
+		return 2L*chars.length + 4L*(offsets.length + displacements.length + ids.length + fingerprints.length);
+	}
+}
@@ -3,6 +3,7 @@ package uni.ml.util;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * Source: https://github.com/harryaskham/Twitter-L-LDA/blob/master/util/Stopwords.java
@@ -12,8 +13,17 @@ import java.util.Set;
 public class Stopwords {
 	
 	public static String[] stopwords = {"a", "as", "able", "about", "above", "according", "accordingly", "across", "actually", "after", "afterwards", "again", "against", "aint", "all", "allow", "allows", "almost", "alone", "along", "already", "also", "although", "always", "am", "among", "amongst", "an", "and", "another", "any", "anybody", "anyhow", "anyone", "anything", "anyway", "anyways", "anywhere", "apart", "appear", "appreciate", "appropriate", "are", "arent", "around", "as", "aside", "ask", "asking", "associated", "at", "available", "away", "awfully", "be", "became", "because", "become", "becomes", "becoming", "been", "before", "beforehand", "behind", "being", "believe", "below", "beside", "besides", "best", "better", "between", "beyond", "both", "brief", "but", "by", "cmon", "cs", "came", "can", "cant", "cannot", "cant", "cause", "causes", "certain", "certainly", "changes", "clearly", "co", "com", "come", "comes", "concerning", "consequently", "consider", "considering", "contain", "containing", "contains", "corresponding", "could", "couldnt", "course", "currently", "definitely", "described", "despite", "did", "didnt", "different", "do", "does", "doesnt", "doing", "dont", "done", "down", "downwards", "during", "each", "edu", "eg", "eight", "either", "else", "elsewhere", "enough", "entirely", "especially", "et", "etc", "even", "ever", "every", "everybody", "everyone", "everything", "everywhere", "ex", "exactly", "example", "except", "far", "few", "ff", "fifth", "first", "five", "followed", "following", "follows", "for", "former", "formerly", "forth", "four", "from", "further", "furthermore", "get", "gets", "getting", "given", "gives", "go", "goes", "going", "gone", "got", "gotten", "greetings", "had", "hadnt", "happens", "hardly", "has", "hasnt", "have", "havent", "having", "he", "hes", "hello", "help", "hence", "her", "here", "heres", "hereafter", "hereby", "herein", "hereupon", "hers", "herself", "hi", "him", "himself", "his", "hither", "hopefully", "how", "howbeit", "however", "i", "id", "ill", "im", "ive", "ie", "if", "ignored", "immediate", "in", "inasmuch", "inc", "indeed", "indicate", "indicated", "indicates", "inner", "insofar", "instead", "into", "inward", "is", "isnt", "it", "itd", "itll", "its", "its", "itself", "just", "keep", "keeps", "kept", "know", "knows", "known", "last", "lately", "later", "latter", "latterly", "least", "less", "lest", "let", "lets", "like", "liked", "likely", "little", "look", "looking", "looks", "ltd", "mainly", "many", "may", "maybe", "me", "mean", "meanwhile", "merely", "might", "more", "moreover", "most", "mostly", "much", "must", "my", "myself", "name", "namely", "nd", "near", "nearly", "necessary", "need", "needs", "neither", "never", "nevertheless", "new", "next", "nine", "no", "nobody", "non", "none", "noone", "nor", "normally", "not", "nothing", "novel", "now", "nowhere", "obviously", "of", "off", "often", "oh", "ok", "okay", "old", "on", "once", "one", "ones", "only", "onto", "or", "other", "others", "otherwise", "ought", "our", "ours", "ourselves", "out", "outside", "over", "overall", "own", "particular", "particularly", "per", "perhaps", "placed", "please", "plus", "possible", "presumably", "probably", "provides", "que", "quite", "qv", "rather", "rd", "re", "really", "reasonably", "regarding", "regardless", "regards", "relatively", "respectively", "right", "said", "same", "saw", "say", "saying", "says", "second", "secondly", "see", "seeing", "seem", "seemed", "seeming", "seems", "seen", "self", "selves", "sensible", "sent", "serious", "seriously", "seven", "several", "shall", "she", "should", "shouldnt", "since", "six", "so", "some", "somebody", "somehow", "someone", "something", "sometime", "sometimes", "somewhat", "somewhere", "soon", "sorry", "specified", "specify", "specifying", "still", "sub", "such", "sup", "sure", "ts", "take", "taken", "tell", "tends", "th", "than", "thank", "thanks", "thanx", "that", "thats", "thats", "the", "their", "theirs", "them", "themselves", "then", "thence", "there", "theres", "thereafter", "thereby", "therefore", "therein", "theres", "thereupon", "these", "they", "theyd", "theyll", "theyre", "theyve", "think", "third", "this", "thorough", "thoroughly", "those", "though", "three", "through", "throughout", "thru", "thus", "to", "together", "too", "took", "toward", "towards", "tried", "tries", "truly", "try", "trying", "twice", "two", "un", "under", "unfortunately", "unless", "unlikely", "until", "unto", "up", "upon", "us", "use", "used", "useful", "uses", "using", "usually", "value", "various", "very", "via", "viz", "vs", "want", "wants", "was", "wasnt", "way", "we", "wed", "well", "were", "weve", "welcome", "well", "went", "were", "werent", "what", "whats", "whatever", "when", "whence", "whenever", "where", "wheres", "whereafter", "whereas", "whereby", "wherein", "whereupon", "wherever", "whether", "which", "while", "whither", "who", "whos", "whoever", "whole", "whom", "whose", "why", "will", "willing", "wish", "with", "within", "without", "wont", "wonder", "would", "would", "wouldnt", "yes", "yet", "you", "youd", "youll", "youre", "youve", "your", "yours", "yourself", "yourselves", "zero"};
+	/**
+	 * The stems of the stopwords, precomputed (see main()) instead of stemming all stopwords when the class is loaded.
+	 */
+	public static String[] stemmedStopwords = {"a", "abl", "about", "abov", "accord", "accordingli", "across", "actual", "after", "afterward", "again", "against", "aint", "all", "allow", "almost", "alon", "along", "alreadi", "also", "although", "alwai", "am", "among", "amongst", "an", "and", "ani", "anoth", "anybodi", "anyhow", "anyon", "anyth", "anywai", "anywher", "apart", "appear", "appreci", "appropri", "ar", "arent", "around", "as", "asid", "ask", "associ", "at", "avail", "awai", "awfulli", "be", "becam", "becaus", "becom", "been", "befor", "beforehand", "behind", "believ", "below", "besid", "best", "better", "between", "beyond", "both", "brief", "but", "by", "came", "can", "cannot", "cant", "caus", "certain", "certainli", "chang", "clearli", "cmon", "co", "com", "come", "concern", "consequ", "consid", "contain", "correspond", "could", "couldnt", "cours", "cs", "current", "definit", "describ", "despit", "did", "didnt", "differ", "do", "doe", "doesnt", "done", "dont", "down", "downward", "dure", "each", "edu", "eg", "eight", "either", "els", "elsewher", "enough", "entir", "especi", "et", "etc", "even", "ever", "everi", "everybodi", "everyon", "everyth", "everywher", "ex", "exactli", "exampl", "except", "far", "few", "ff", "fifth", "first", "five", "follow", "for", "former", "formerli", "forth", "four", "from", "further", "furthermor", "get", "give", "given", "go", "goe", "gone", "got", "gotten", "greet", "ha", "had", "hadnt", "happen", "hardli", "hasnt", "have", "havent", "he", "hello", "help", "henc", "her", "here", "hereaft", "herebi", "herein", "hereupon", "herself", "hi", "him", "himself", "hither", "hopefulli", "how", "howbeit", "howev", "i", "id", "ie", "if", "ignor", "ill", "im", "immedi", "in", "inasmuch", "inc", "inde", "indic", "inner", "insofar", "instead", "into", "inward", "is", "isnt", "it", "itd", "itll", "itself", "iv", "just", "keep", "kept", "know", "known", "last", "late", "later", "latter", "latterli", "least", "less", "lest", "let", "like", "littl", "look", "ltd", "mai", "mainli", "mani", "mayb", "me", "mean", "meanwhil", "mere", "might", "more", "moreov", "most", "mostli", "much", "must", "my", "myself", "name", "nd", "near", "nearli", "necessari", "need", "neither", "never", "nevertheless", "new", "next", "nine", "no", "nobodi", "non", "none", "noon", "nor", "normal", "not", "noth", "novel", "now", "nowher", "obvious", "of", "off", "often", "oh", "ok", "okai", "old", "on", "onc", "onli", "onto", "or", "other", "otherwis", "ought", "our", "ourselv", "out", "outsid", "over", "overal", "own", "particular", "particularli", "per", "perhap", "place", "pleas", "plu", "possibl", "presum", "probabl", "provid", "que", "quit", "qv", "rather", "rd", "re", "realli", "reason", "regard", "regardless", "rel", "respect", "right", "sai", "said", "same", "saw", "second", "secondli", "see", "seem", "seen", "self", "selv", "sensibl", "sent", "seriou", "serious", "seven", "sever", "shall", "she", "should", "shouldnt", "sinc", "six", "so", "some", "somebodi", "somehow", "someon", "someth", "sometim", "somewhat", "somewher", "soon", "sorri", "specifi", "still", "sub", "such", "sup", "sure", "take", "taken", "tell", "tend", "th", "than", "thank", "thanx", "that", "the", "thei", "their", "them", "themselv", "then", "thenc", "there", "thereaft", "therebi", "therefor", "therein", "thereupon", "these", "theyd", "theyll", "theyr", "theyv", "thi", "think", "third", "thorough", "thoroughli", "those", "though", "three", "through", "throughout", "thru", "thu", "to", "togeth", "too", "took", "toward", "tri", "truli", "try", "ts", "twice", "two", "un", "under", "unfortun", "unless", "unlik", "until", "unto", "up", "upon", "us", "usual", "valu", "variou", "veri", "via", "viz", "vs", "wa", "wai", "want", "wasnt", "we", "wed", "welcom", "well", "went", "were", "werent", "weve", "what", "whatev", "when", "whenc", "whenev", "where", "wherea", "whereaft", "wherebi", "wherein", "whereupon", "wherev", "whether", "which", "while", "whither", "who", "whoever", "whole", "whom", "whose", "why", "will", "wish", "with", "within", "without", "wonder", "wont", "would", "wouldnt", "ye", "yet", "you", "youd", "youll", "your", "yourself", "yourselv", "youv", "zero"};
 	public static Set<String> stopWordSet = new HashSet<String>(Arrays.asList(stopwords));
-	public static Set<String> stemmedStopWordSet = stemStringSet(stopWordSet);
+	public static Set<String> stemmedStopWordSet = new HashSet<String>(Arrays.asList(stemmedStopwords));
+	/**
+	 * The stopwords and their stems in one frozen index, so that a word is checked with a single probe.
+	 */
+	public static PerfectHashIndex stopwordIndex = new PerfectHashIndex(wordIndex(stopWordSet, stemmedStopWordSet));
+	private static final ThreadLocal<Stemmer> stemmers = ThreadLocal.withInitial(Stemmer::new);
 	
 	public static boolean isStopword(String word) {
 		if(word.length() < 2) return true;
@@ -25,12 +35,32 @@ public class Stopwords {
 	public static boolean isStemmedStopword(String word) {
 		if(word.length() < 2) return true;
 		if(word.charAt(0) >= '0' && word.charAt(0) <= '9') return true; //remove numbers, "25th", etc
-		String stemmed = stemString(word);
-		if(stopWordSet.contains(stemmed)) return true;
-		if(stemmedStopWordSet.contains(stemmed)) return true;
-		if(stopWordSet.contains(word)) return true;
-		if(stemmedStopWordSet.contains(word)) return true;
-		else return false;
+		if(stopwordIndex.get(word) >= 0) return true;
+		return stopwordIndex.get(stemmers.get().stem(word)) >= 0;
+	}
+	
+	/**
+	 * Same as isStemmedStopword(String) for a word given as range of a character array, but without creating any objects.
+	 * @param stemmer The stemmer to use (can be reused for subsequent calls).
+	 */
+	public static boolean isStemmedStopword(char[] word, int offset, int length, Stemmer stemmer) {
+		return isStemmedStopword(word, offset, length, Hashing.hash64(word, offset, length), stemmer);
+	}
+	
+	/**
+	 * Same as isStemmedStopword(char[], int, int, Stemmer) for a word, whose hash was computed while it was tokenized.
+	 * The word is only stemmed, if it is not a stopword itself.
+	 * @param hash The hash of the word, see {@link Hashing#hash64(char[], int, int)}.
+	 */
+	public static boolean isStemmedStopword(char[] word, int offset, int length, long hash, Stemmer stemmer) {
+		if(length < 2) return true;
+		if(word[offset] >= '0' && word[offset] <= '9') return true; //remove numbers, "25th", etc
+		if(stopwordIndex.get(hash, word, offset, length) >= 0) return true;
+		for(int i = offset; i < offset+length; i++) {
+			stemmer.add(word[i]);
+		}
+		stemmer.stem();
+		return stopwordIndex.get(stemmer.getResultBuffer(), 0, stemmer.getResultLength()) >= 0;
 	}
 	
 	public static String removeStopWords(String string) {
@@ -60,6 +90,17 @@ public class Stopwords {
 		return new Stemmer().stem(string);
 	}
 	
+	@SafeVarargs
+	public static WordIndex wordIndex(Set<String>... stringSets) {
+		WordIndex index = new WordIndex();
+		for(Set<String> stringSet : stringSets) {
+			for(String string : stringSet) {
+				index.add(string);
+			}
+		}
+		return index;
+	}
+	
 	public static Set<String> stemStringSet(Set<String> stringSet) {
 		Stemmer stemmer = new Stemmer();
 		Set<String> results = new HashSet<String>();
@@ -68,4 +109,15 @@ public class Stopwords {
 		}
 		return results;
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Prints the stems of the stopwords in the source format of stemmedStopwords (run after changing the stopwords or the stemmer).
+	 */
+	public static void main(String[] args) {
+		StringBuilder b = new StringBuilder();
+		for(String stemmed : new TreeSet<String>(stemStringSet(stopWordSet))) {
+			b.append(b.length() == 0? "" : ", ").append('"').append(stemmed).append('"');
+		}
+		System.out.println("public static String[] stemmedStopwords = {" + b + "};");
+	}
+}
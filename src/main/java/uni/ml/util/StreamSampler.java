@@ -0,0 +1,358 @@
+package uni.ml.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Draws a sample from a stream of items in a single pass, without knowing the length of the stream in advance
+ * (reservoir sampling): the items are offered one by one and only the items of the current sample are kept.
+ * <p>
+ * The sample depends only on the seed and the offered items, so a run can be reproduced. The sampled items are
+ * returned in the order in which they were offered. Samplers are not thread-safe.
+ * @param <T> The type of the items.
+ */
+public abstract class StreamSampler<T> {
+
+	protected final int capacity;
+	protected long numOffered = 0;
+
+	protected StreamSampler(int capacity) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("sample size must not be negative: " + capacity);
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Samples items uniformly: each subset of size items of the stream is the sample with the same probability.
+	 * Uses Li's skipping reservoir algorithm L, which draws random numbers only for the items entering the sample.
+	 * @param size The maximum number of sampled items.
+	 */
+	public static <T> StreamSampler<T> uniform(int size, long seed) {
+		return new Reservoir<>(size, seed);
+	}
+
+	/**
+	 * Samples items with probabilities proportional to their weights, without replacement
+	 * (algorithm A-Res of Efraimidis and Spirakis). Items of weight 0 are never sampled.
+	 * @param size The maximum number of sampled items.
+	 * @param weight The non-negative weight of an item.
+	 */
+	public static <T> StreamSampler<T> weighted(int size, ToDoubleFunction<? super T> weight, long seed) {
+		return new WeightedReservoir<>(size, weight, seed);
+	}
+
+	/**
+	 * Samples the items of each stratum (e.g. each label) uniformly and independently: the sample contains
+	 * size items of each stratum or all of them, if the stream contains fewer.
+	 * @param sizePerStratum The maximum number of sampled items per stratum.
+	 * @param stratum The stratum of an item.
+	 */
+	public static <T> StreamSampler<T> stratified(int sizePerStratum, Function<? super T, ?> stratum, long seed) {
+		return new StratifiedReservoir<>(sizePerStratum, stratum, seed);
+	}
+
+	/**
+	 * Offers the next item of the stream.
+	 * @return true if the item was added to the sample (it may be replaced by a later item).
+	 */
+	public abstract boolean offer(T item);
+
+	/**
+	 * @return The number of items in the sample.
+	 */
+	public abstract int size();
+
+	/**
+	 * @return The positions of the sampled items in the stream (0 for the first offered item) in ascending order.
+	 */
+	public abstract long[] positions();
+
+	/**
+	 * @return The sampled items in the order in which they were offered.
+	 */
+	public abstract List<T> sample();
+
+	/**
+	 * @return The number of items offered so far.
+	 */
+	public long numOffered() {
+		return numOffered;
+	}
+
+	/**
+	 * @return The maximum number of sampled items (per stratum for a stratified sampler).
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * A fixed size buffer of items and their positions in the stream.
+	 */
+	static class Slots<T> {
+		final Object[] items;
+		final long[] positions;
+		int size = 0;
+
+		Slots(int capacity) {
+			items = new Object[capacity];
+			positions = new long[capacity];
+		}
+
+		void set(int slot, T item, long position) {
+			items[slot] = item;
+			positions[slot] = position;
+		}
+	}
+
+	/**
+	 * Collects the items of slot buffers ordered by their positions.
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> void collect(List<Slots<T>> buffers, List<T> sample, List<Long> samplePositions) {
+		List<Object[]> entries = new ArrayList<>();
+		for (Slots<T> slots : buffers) {
+			for (int slot = 0; slot < slots.size; slot++) {
+				entries.add(new Object[] {slots.positions[slot], slots.items[slot]});
+			}
+		}
+		entries.sort((a, b) -> Long.compare((Long) a[0], (Long) b[0]));
+		for (Object[] entry : entries) {
+			samplePositions.add((Long) entry[0]);
+			sample.add((T) entry[1]);
+		}
+	}
+
+	private static long[] toArray(List<Long> positions) {
+		return positions.stream().mapToLong(Long::longValue).toArray();
+	}
+
+	/**
+	 * Uniform reservoir sampling with skips (algorithm L).
+	 */
+	static class Reservoir<T> extends StreamSampler<T> {
+		private final SplittableRandom random;
+		private final Slots<T> slots;
+		private double w;                // the largest of capacity uniform random numbers of the current sample
+		private long next;               // position of the next item entering the sample
+
+		Reservoir(int capacity, long seed) {
+			super(capacity);
+			random = new SplittableRandom(seed);
+			slots = new Slots<>(capacity);
+			w = capacity == 0? 0 : Math.exp(Math.log(uniform())/capacity);
+			next = capacity-1;
+			if (capacity > 0)
+				skip();
+		}
+
+		/**
+		 * @return A uniform random number in (0, 1).
+		 */
+		private double uniform() {
+			double u;
+			do {
+				u = random.nextDouble();
+			} while (u == 0);
+			return u;
+		}
+
+		private void skip() {
+			next += (long) Math.floor(Math.log(uniform())/Math.log1p(-w)) + 1;
+		}
+
+		@Override
+		public boolean offer(T item) {
+			return add(item, numOffered) >= 0;
+		}
+
+		/**
+		 * Offers the next item, which is recorded with the given position (e.g. in an enclosing stream).
+		 * @return The slot of the item or -1, if it was not sampled.
+		 */
+		int add(T item, long position) {
+			long index = numOffered++;
+			if (slots.size < capacity) {
+				slots.set(slots.size, item, position);
+				return slots.size++;
+			}
+			if (capacity == 0 || index != next)
+				return -1;
+			int slot = random.nextInt(capacity);
+			slots.set(slot, item, position);
+			w *= Math.exp(Math.log(uniform())/capacity);
+			skip();
+			return slot;
+		}
+
+		@Override
+		public int size() {
+			return slots.size;
+		}
+
+		@Override
+		public long[] positions() {
+			List<Long> positions = new ArrayList<>();
+			collect(Collections.singletonList(slots), new ArrayList<>(), positions);
+			return toArray(positions);
+		}
+
+		@Override
+		public List<T> sample() {
+			List<T> sample = new ArrayList<>();
+			collect(Collections.singletonList(slots), sample, new ArrayList<>());
+			return sample;
+		}
+
+		Slots<T> slots() {
+			return slots;
+		}
+	}
+
+	/**
+	 * Weighted reservoir sampling: each item gets the key log(u)/weight for a uniform random number u
+	 * (the logarithm of u^(1/weight)) and the sample consists of the items with the largest keys,
+	 * which are kept in a binary min-heap of the slots.
+	 */
+	static class WeightedReservoir<T> extends StreamSampler<T> {
+		private final ToDoubleFunction<? super T> weight;
+		private final SplittableRandom random;
+		private final Slots<T> slots;
+		private final double[] keys;
+		private final int[] heap;       // slots, the slot with the smallest key first
+
+		WeightedReservoir(int capacity, ToDoubleFunction<? super T> weight, long seed) {
+			super(capacity);
+			this.weight = weight;
+			random = new SplittableRandom(seed);
+			slots = new Slots<>(capacity);
+			keys = new double[capacity];
+			heap = new int[capacity];
+		}
+
+		@Override
+		public boolean offer(T item) {
+			long position = numOffered++;
+			double w = weight.applyAsDouble(item);
+			if (!(w >= 0) || Double.isInfinite(w))
+				throw new IllegalArgumentException("weight must be finite and non-negative: " + w);
+			if (w == 0 || capacity == 0)
+				return false;
+			double key = Math.log(random.nextDouble())/w;
+			if (slots.size < capacity) {
+				int slot = slots.size++;
+				slots.set(slot, item, position);
+				keys[slot] = key;
+				heap[slot] = slot;
+				for (int i = slot; i > 0 && keys[heap[i]] < keys[heap[(i-1)/2]]; i = (i-1)/2) {
+					swap(i, (i-1)/2);
+				}
+				return true;
+			}
+			if (key <= keys[heap[0]])
+				return false;
+			int slot = heap[0];
+			slots.set(slot, item, position);
+			keys[slot] = key;
+			for (int i = 0; ; ) {
+				int smallest = i;
+				for (int child = 2*i+1; child <= 2*i+2 && child < capacity; child++) {
+					if (keys[heap[child]] < keys[heap[smallest]])
+						smallest = child;
+				}
+				if (smallest == i)
+					break;
+				swap(i, smallest);
+				i = smallest;
+			}
+			return true;
+		}
+
+		private void swap(int i, int j) {
+			int slot = heap[i];
+			heap[i] = heap[j];
+			heap[j] = slot;
+		}
+
+		@Override
+		public int size() {
+			return slots.size;
+		}
+
+		@Override
+		public long[] positions() {
+			List<Long> positions = new ArrayList<>();
+			collect(Collections.singletonList(slots), new ArrayList<>(), positions);
+			return toArray(positions);
+		}
+
+		@Override
+		public List<T> sample() {
+			List<T> sample = new ArrayList<>();
+			collect(Collections.singletonList(slots), sample, new ArrayList<>());
+			return sample;
+		}
+	}
+
+	/**
+	 * A uniform reservoir per stratum. The seed of a stratum's reservoir is derived from the seed
+	 * and the order in which the strata first occur.
+	 */
+	static class StratifiedReservoir<T> extends StreamSampler<T> {
+		private final Function<? super T, ?> stratum;
+		private final long seed;
+		private final Map<Object, Reservoir<T>> reservoirs = new LinkedHashMap<>();
+
+		StratifiedReservoir(int capacity, Function<? super T, ?> stratum, long seed) {
+			super(capacity);
+			this.stratum = stratum;
+			this.seed = seed;
+		}
+
+		@Override
+		public boolean offer(T item) {
+			long position = numOffered++;
+			Reservoir<T> reservoir = reservoirs.computeIfAbsent(stratum.apply(item),
+					s -> new Reservoir<>(capacity, Hashing.mix64(seed + reservoirs.size()*Hashing.SEED)));
+			// the reservoir counts the items of its stratum only, but records their positions in the whole stream
+			return reservoir.add(item, position) >= 0;
+		}
+
+		@Override
+		public int size() {
+			int size = 0;
+			for (Reservoir<T> reservoir : reservoirs.values()) {
+				size += reservoir.size();
+			}
+			return size;
+		}
+
+		private List<Slots<T>> buffers() {
+			List<Slots<T>> buffers = new ArrayList<>();
+			for (Reservoir<T> reservoir : reservoirs.values()) {
+				buffers.add(reservoir.slots());
+			}
+			return buffers;
+		}
+
+		@Override
+		public long[] positions() {
+			List<Long> positions = new ArrayList<>();
+			collect(buffers(), new ArrayList<>(), positions);
+			return toArray(positions);
+		}
+
+		@Override
+		public List<T> sample() {
+			List<T> sample = new ArrayList<>();
+			collect(buffers(), sample, new ArrayList<>());
+			return sample;
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package uni.ml.util;
+
+import java.util.Arrays;
+
+/**
+ * Assigns consecutive ids (0, 1, 2, ...) to words.
+ * Unlike a HashMap&lt;String, Integer&gt;, a word can be looked up directly from a range of a character array,
+ * so lookups do not need to create a String. The index uses open addressing with linear probing,
+ * all characters are stored in a single shared array.
+ * Lookups are thread-safe as long as no words are added concurrently.
+ */
+public class WordIndex {
+
+	private char[] chars;          // characters of all words, in order of their ids
+	private int[] offsets;         // start of word i in chars, offsets[size] is the end of the last word
+	private int[] slots;           // hash table: id+1 of the word in this slot, 0 if empty
+	private long[] hashes;         // hash of word i
+	private int size = 0;
+
+	public WordIndex() {
+		this(16);
+	}
+
+	/**
+	 * @param expectedSize The expected number of words.
+	 */
+	public WordIndex(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(4, expectedSize*2-1)) << 1;
+		slots = new int[capacity];
+		hashes = new long[Math.max(4, expectedSize)];
+		offsets = new int[hashes.length+1];
+		chars = new char[hashes.length*8];
+	}
+
+	private boolean equals(int id, char[] word, int offset, int length) {
+		int start = offsets[id];
+		if (offsets[id+1]-start != length)
+			return false;
+		for (int i = 0; i < length; i++) {
+			if (chars[start+i] != word[offset+i])
+				return false;
+		}
+		return true;
+	}
+
+	private boolean equals(int id, CharSequence word) {
+		int start = offsets[id];
+		if (offsets[id+1]-start != word.length())
+			return false;
+		for (int i = 0; i < word.length(); i++) {
+			if (chars[start+i] != word.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Finds the slot of a word.
+	 * @return The slot holding the word or the empty slot, where it would be inserted.
+	 */
+	private int slot(long hash, char[] word, int offset, int length) {
+		int mask = slots.length-1;
+		int slot = (int) hash & mask;
+		int id;
+		while ((id = slots[slot]-1) >= 0) {
+			if (hashes[id] == hash && equals(id, word, offset, length))
+				return slot;
+			slot = (slot+1) & mask;
+		}
+		return slot;
+	}
+
+	private int slot(long hash, CharSequence word) {
+		int mask = slots.length-1;
+		int slot = (int) hash & mask;
+		int id;
+		while ((id = slots[slot]-1) >= 0) {
+			if (hashes[id] == hash && equals(id, word))
+				return slot;
+			slot = (slot+1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Doubles the hash table and reinserts all words.
+	 */
+	private void rehash() {
+		slots = new int[slots.length*2];
+		int mask = slots.length-1;
+		for (int id = 0; id < size; id++) {
+			int slot = (int) hashes[id] & mask;
+			while (slots[slot] != 0) {
+				slot = (slot+1) & mask;
+			}
+			slots[slot] = id+1;
+		}
+	}
+
+	/**
+	 * Adds a word, unless it is already contained.
+	 * @return The id of the word.
+	 */
+	public int add(CharSequence word) {
+		long hash = Hashing.hash64(word);
+		int slot = slot(hash, word);
+		if (slots[slot] != 0)
+			return slots[slot]-1;
+
+		int id = size++;
+		if (id == hashes.length) {
+			hashes = Arrays.copyOf(hashes, hashes.length*2);
+			offsets = Arrays.copyOf(offsets, hashes.length+1);
+		}
+		int start = offsets[id];
+		if (start+word.length() > chars.length)
+			chars = Arrays.copyOf(chars, Math.max(2*chars.length, start+word.length()));
+		for (int i = 0; i < word.length(); i++) {
+			chars[start+i] = word.charAt(i);
+		}
+		offsets[id+1] = start+word.length();
+		hashes[id] = hash;
+		slots[slot] = id+1;
+		if (2*size > slots.length)
+			rehash();
+		return id;
+	}
+
+	/**
+	 * Looks up a word given as range of a character array.
+	 * @return The id of the word or -1, if it is not contained.
+	 */
+	public int get(char[] word, int offset, int length) {
+		return slots[slot(Hashing.hash64(word, offset, length), word, offset, length)]-1;
+	}
+
+	/**
+	 * Looks up a word.
+	 * @return The id of the word or -1, if it is not contained.
+	 */
+	public int get(CharSequence word) {
+		return slots[slot(Hashing.hash64(word), word)]-1;
+	}
+
+	public boolean contains(char[] word, int offset, int length) {
+		return get(word, offset, length) >= 0;
+	}
+
+	public boolean contains(CharSequence word) {
+		return get(word) >= 0;
+	}
+
+	/**
+	 * @return The word with the given id.
+	 */
+	public String word(int id) {
+		return new String(chars, offsets[id], offsets[id+1]-offsets[id]);
+	}
+
+	/**
+	 * @return The approximate memory used by the index in bytes.
+	 */
+	public long memoryBytes() {
+		return 2L*chars.length + 4L*offsets.length + 4L*slots.length + 8L*hashes.length;
+	}
+
+	/**
+	 * @return The number of words.
+	 */
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,86 @@
+package uni.ml.text;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The inner loop of scoring: adds the rows of the present features of a feature-major log probability matrix 
+ * to the scores of all target values.
+ * <p>
+ * This is the kernel for Java 17 and later. If the JVM is started with --add-modules jdk.incubator.vector,
+ * the scores of several target values are accumulated at once in a vector register, otherwise the scalar loop is used.
+ * Both kernels add the log probabilities of each target value in the same order, so they compute identical scores.
+ */
+public final class ScoringKernel {
+
+	private static final boolean VECTOR_AVAILABLE = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+	private static boolean vectorized = VECTOR_AVAILABLE;
+
+	private ScoringKernel() {
+	}
+
+	/**
+	 * @return true, if the Vector API is available (Java 17+ with --add-modules jdk.incubator.vector).
+	 */
+	public static boolean isVectorAvailable() {
+		return VECTOR_AVAILABLE;
+	}
+
+	/**
+	 * @return true, if scores are accumulated with the Vector API.
+	 */
+	public static boolean isVectorized() {
+		return vectorized;
+	}
+
+	/**
+	 * Enables or disables the Vector API kernel (enabled by default, if available), e.g. to compare both kernels.
+	 */
+	public static void setVectorized(boolean vectorized) {
+		ScoringKernel.vectorized = vectorized && VECTOR_AVAILABLE;
+	}
+
+	/**
+	 * Adds the rows of the features to the scores: scores[offset+v] += matrix[k*numClasses+v] for each feature k.
+	 * @param matrix A feature-major matrix with numClasses columns.
+	 * @param features The indices of the features (rows).
+	 * @param numFeatures The number of features.
+	 * @param scores The scores of the target values at [offset, offset+numClasses).
+	 */
+	static void addRows(double[] matrix, int numClasses, int[] features, int numFeatures, double[] scores, int offset) {
+		int numVectorized = vectorized? VectorKernel.addRows(matrix, numClasses, features, numFeatures, scores, offset) : 0;
+		for (int i = 0; i < numFeatures; i++) {
+			int row = features[i]*numClasses;
+			for (int v = numVectorized; v < numClasses; v++) {
+				scores[offset+v] += matrix[row+v];
+			}
+		}
+	}
+
+	/**
+	 * The Vector API kernel, in a separate class, which is only loaded if jdk.incubator.vector is available.
+	 */
+	private static final class VectorKernel {
+
+		// the species must be a constant to be compiled into vector instructions, a single species also keeps 
+		// the type profiles of the Vector API monomorphic (mixing species or masks disables the intrinsics in Java 17)
+		private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_256;
+
+		/**
+		 * Adds the rows of the features to the scores of the first target values, which fill complete vectors,
+		 * SPECIES.length() target values at a time, keeping the partial sums in a register.
+		 * @return The number of target values processed.
+		 */
+		static int addRows(double[] matrix, int numClasses, int[] features, int numFeatures, double[] scores, int offset) {
+			int bound = SPECIES.loopBound(numClasses);
+			for (int v = 0; v < bound; v += SPECIES.length()) {
+				DoubleVector sum = DoubleVector.fromArray(SPECIES, scores, offset+v);
+				for (int i = 0; i < numFeatures; i++) {
+					sum = sum.add(DoubleVector.fromArray(SPECIES, matrix, features[i]*numClasses+v));
+				}
+				sum.intoArray(scores, offset+v);
+			}
+			return bound;
+		}
+	}
+}